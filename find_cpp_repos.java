@@ -1,27 +1,34 @@
 import redis.clients.jedis.Jedis;
-import java.util.Set;
+import redis.clients.jedis.params.ScanParams;
+import redis.clients.jedis.resps.ScanResult;
 
 public class find_cpp_repos {
     public static void main(String[] args) {
         Jedis jedis = new Jedis("localhost", 6379);
         jedis.select(0);
         
-        Set<String> keys = jedis.keys("repo-*");
-        System.out.println("Checking " + keys.size() + " repositories for C/C++ projects...\n");
+        System.out.println("Checking repositories for C/C++ projects...\n");
         
+        // walk repo keys with SCAN instead of KEYS so the server is never blocked
+        ScanParams params = new ScanParams().match("repo-*").count(500);
+        String cursor = ScanParams.SCAN_POINTER_START;
         int count = 0;
-        for (String key : keys) {
-            String url = jedis.hget(key, "Url");
-            if (url != null && (url.contains("rust") || url.contains("c") || url.contains("cpp") || 
-                url.contains("llvm") || url.contains("gcc") || url.contains("clang") ||
-                url.contains("opencv") || url.contains("tensorflow") || url.contains("bitcoin"))) {
-                System.out.println("Repository ID: " + key);
-                System.out.println("URL: " + url);
-                System.out.println("---");
-                count++;
-                if (count >= 5) break;
+        do {
+            ScanResult<String> batch = jedis.scan(cursor, params);
+            cursor = batch.getCursor();
+            for (String key : batch.getResult()) {
+                String url = jedis.hget(key, "Url");
+                if (url != null && (url.contains("rust") || url.contains("c") || url.contains("cpp") || 
+                    url.contains("llvm") || url.contains("gcc") || url.contains("clang") ||
+                    url.contains("opencv") || url.contains("tensorflow") || url.contains("bitcoin"))) {
+                    System.out.println("Repository ID: " + key);
+                    System.out.println("URL: " + url);
+                    System.out.println("---");
+                    count++;
+                    if (count >= 5) break;
+                }
             }
-        }
+        } while (count < 5 && !ScanParams.SCAN_POINTER_START.equals(cursor));
         
         jedis.close();
     }
@@ -157,24 +157,21 @@ public class App {
     
     private void listAvailableRepositories() {
         try {
-            // get all keys that start with "repo-"
-            java.util.Set<String> keys = redisDB.listKeys("repo-*");
-            if (keys == null || keys.isEmpty()) {
+            // get all keys that start with "repo-", scanned in batches, and filter out test repos
+            java.util.Set<String> testRepos = new java.util.HashSet<>();
+            java.util.Set<String> realRepos = new java.util.HashSet<>();
+            redisDB.scanKeys("repo-*", 500).forEach(key -> {
+                if (key.contains("test")) {
+                    testRepos.add(key);
+                } else {
+                    realRepos.add(key);
+                }
+            });
+            
+            if (testRepos.isEmpty() && realRepos.isEmpty()) {
                 System.err.println("No repositories found in Redis.");
                 System.err.println("Run the HW1 App.java to populate Redis with repositories.");
             } else {
-                // filter out test repos
-                java.util.Set<String> testRepos = new java.util.HashSet<>();
-                java.util.Set<String> realRepos = new java.util.HashSet<>();
-                
-                for (String key : keys) {
-                    if (key.contains("test")) {
-                        testRepos.add(key);
-                    } else {
-                        realRepos.add(key);
-                    }
-                }
-                
                 if (!realRepos.isEmpty()) {
                     System.err.println("Found " + realRepos.size() + " repository(ies):");
                     for (String key : realRepos) {
@@ -201,14 +198,8 @@ public class App {
     
     private void cleanTestData() {
         try {
-            java.util.Set<String> keys = redisDB.listKeys("repo-*");
-            int cleaned = 0;
-            for (String key : keys) {
-                if (key.contains("test")) {
-                    redisDB.deleteKey(key);
-                    cleaned++;
-                }
-            }
+            // repo keys containing "test", removed with batched UNLINKs
+            long cleaned = redisDB.deleteMatching("repo-*test*");
             if (cleaned > 0) {
                 System.out.println("Cleaned " + cleaned + " test repositories from Redis.");
             }
@@ -223,19 +214,16 @@ public class App {
             return issues;
         }
         
-        String[] issueIds = issueIdsStr.split(",");
-        for (String issueId : issueIds) {
+        List<String> issueIds = new ArrayList<>();
+        for (String issueId : issueIdsStr.split(",")) {
             issueId = issueId.trim();
             if (!issueId.isEmpty()) {
-                IssueModel issue = new IssueModel();
-                issue.setId(issueId);
-                IssueModel loaded = (IssueModel) issueRedisDB.load(issue);
-                if (loaded != null) {
-                    issues.add(loaded);
-                }
+                issueIds.add(issueId);
             }
         }
         
+        // load all issues in one batch instead of one round trip per issue
+        issues.addAll(issueRedisDB.loadAll(IssueModel.class, issueIds));
         return issues;
     }
     
@@ -8,14 +8,17 @@ import java.util.Date;
 
 @PersistableObject
 public class IssueModel {
+    // issue descriptions longer than this are stored compressed, GitService writes them the same way
+    public static final int DESCRIPTION_COMPRESS_ABOVE = 1024;
+
     @Id
     @PersistableField
     private String id;
     
-    @PersistableField
+    @PersistableField(name = "Date")
     private Date date;
     
-    @PersistableField
+    @PersistableField(name = "Description", compressAbove = DESCRIPTION_COMPRESS_ABOVE)
     private String description;
 
     public String getId() {
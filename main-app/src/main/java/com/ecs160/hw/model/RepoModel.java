@@ -12,16 +12,16 @@ public class RepoModel {
     @PersistableField
     private String id;
     
-    @PersistableField
+    @PersistableField(name = "Url", aliases = {"URL", "htmlUrl"})
     private String url;
     
-    @PersistableField
+    @PersistableField(name = "CreatedAt")
     private Date createdAt;
     
-    @PersistableField
+    @PersistableField(name = "Author Name")
     private String authorName;
     
-    @PersistableField
+    @PersistableField(name = "Issues")
     private String issues;
 
     public String getId() {
@@ -3,7 +3,9 @@ package com.ecs160.hw.service;
 import com.ecs160.hw.model.Commit;
 import com.ecs160.hw.model.Repo;
 import com.ecs160.hw.model.Issue;
+import com.ecs160.hw.model.IssueModel;
 import com.ecs160.hw.util.ConfigUtil;
+import com.ecs160.persistence.StringCompression;
 import redis.clients.jedis.Jedis;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
@@ -161,7 +163,8 @@ public class GitService {
                     java.text.SimpleDateFormat sdf = new java.text.SimpleDateFormat("yyyy-MM-dd");
                     jedis.hset(issueKey, "Date", sdf.format(new Date()));
                 }
-                jedis.hset(issueKey, "Description", issue.getDescription() != null ? issue.getDescription() : "");
+                jedis.hset(issueKey, "Description", issue.getDescription() != null
+                    ? StringCompression.encode(issue.getDescription(), IssueModel.DESCRIPTION_COMPRESS_ABOVE) : "");
                 
                 // saves title and body for reference
                 jedis.hset(issueKey, "title", issue.getTitle() != null ? issue.getTitle() : "");
@@ -0,0 +1,61 @@
+package com.ecs160.persistence.benchmarks;
+
+import com.ecs160.persistence.annotations.Encoding;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// persist and load of one object holding a List field of growing size
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ListBenchmark {
+    private static final AtomicInteger THREADS = new AtomicInteger();
+
+    @Param({"10", "100", "10000"})
+    public int listSize;
+
+    @Param({"HASH", "BINARY"})
+    public Encoding encoding;
+
+    private Object object;
+    private String id;
+
+    @Setup(Level.Trial)
+    public void setUp(StorageState storage) {
+        id = "bench:list:" + listSize + ":" + encoding + ":" + THREADS.incrementAndGet();
+        object = Models.create("list", encoding, id, listSize);
+        storage.redisDB.persist(object);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown(StorageState storage) {
+        storage.redisDB.delete(object);
+    }
+
+    @Benchmark
+    public boolean persist(StorageState storage) {
+        return storage.redisDB.persist(object);
+    }
+
+    @Benchmark
+    public Object load(StorageState storage) {
+        return storage.redisDB.load(Models.query("list", encoding, id));
+    }
+}
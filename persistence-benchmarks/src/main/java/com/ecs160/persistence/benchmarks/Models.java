@@ -0,0 +1,260 @@
+package com.ecs160.persistence.benchmarks;
+
+import com.ecs160.persistence.annotations.Encoding;
+import com.ecs160.persistence.annotations.Id;
+import com.ecs160.persistence.annotations.PersistableField;
+import com.ecs160.persistence.annotations.PersistableObject;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+// benchmark models, each shape once per encoding since the encoding is fixed per class.
+// fields are package-private so the generated codecs cover all of them, as in a processed app.
+// ids are plain keys, so callers keep them unique across shapes
+public final class Models {
+    private Models() {
+    }
+
+    // an object of the given shape with every field set
+    public static Object create(String shape, Encoding encoding, String id, int listSize) {
+        boolean binary = encoding == Encoding.BINARY;
+        switch (shape) {
+            case "flat":
+                return flat(binary, id);
+            case "dated": {
+                Date now = new Date();
+                if (binary) {
+                    BinaryDated dated = new BinaryDated();
+                    dated.id = id;
+                    dated.name = "dated " + id;
+                    dated.createdAt = now;
+                    dated.updatedAt = now;
+                    return dated;
+                }
+                Dated dated = new Dated();
+                dated.id = id;
+                dated.name = "dated " + id;
+                dated.createdAt = now;
+                dated.updatedAt = now;
+                return dated;
+            }
+            case "nested": {
+                if (binary) {
+                    BinaryNested nested = new BinaryNested();
+                    nested.id = id;
+                    nested.name = "nested " + id;
+                    nested.child = (BinaryFlat) flat(true, id + ":child");
+                    return nested;
+                }
+                Nested nested = new Nested();
+                nested.id = id;
+                nested.name = "nested " + id;
+                nested.child = (Flat) flat(false, id + ":child");
+                return nested;
+            }
+            case "list": {
+                List<String> items = new ArrayList<>(listSize);
+                for (int i = 0; i < listSize; i++) {
+                    items.add("item-" + i);
+                }
+                if (binary) {
+                    BinaryListed listed = new BinaryListed();
+                    listed.id = id;
+                    listed.items = items;
+                    return listed;
+                }
+                Listed listed = new Listed();
+                listed.id = id;
+                listed.items = items;
+                return listed;
+            }
+            default:
+                throw new IllegalArgumentException("Unknown shape " + shape);
+        }
+    }
+
+    // an empty object of the given shape carrying only the id, as load expects
+    public static Object query(String shape, Encoding encoding, String id) {
+        boolean binary = encoding == Encoding.BINARY;
+        switch (shape) {
+            case "flat": {
+                if (binary) {
+                    BinaryFlat flat = new BinaryFlat();
+                    flat.id = id;
+                    return flat;
+                }
+                Flat flat = new Flat();
+                flat.id = id;
+                return flat;
+            }
+            case "dated": {
+                if (binary) {
+                    BinaryDated dated = new BinaryDated();
+                    dated.id = id;
+                    return dated;
+                }
+                Dated dated = new Dated();
+                dated.id = id;
+                return dated;
+            }
+            case "nested": {
+                if (binary) {
+                    BinaryNested nested = new BinaryNested();
+                    nested.id = id;
+                    return nested;
+                }
+                Nested nested = new Nested();
+                nested.id = id;
+                return nested;
+            }
+            case "list": {
+                if (binary) {
+                    BinaryListed listed = new BinaryListed();
+                    listed.id = id;
+                    return listed;
+                }
+                Listed listed = new Listed();
+                listed.id = id;
+                return listed;
+            }
+            default:
+                throw new IllegalArgumentException("Unknown shape " + shape);
+        }
+    }
+
+    private static Object flat(boolean binary, String id) {
+        if (binary) {
+            BinaryFlat flat = new BinaryFlat();
+            flat.id = id;
+            flat.name = "flat " + id;
+            flat.count = 42;
+            flat.score = 0.75;
+            flat.active = true;
+            return flat;
+        }
+        Flat flat = new Flat();
+        flat.id = id;
+        flat.name = "flat " + id;
+        flat.count = 42;
+        flat.score = 0.75;
+        flat.active = true;
+        return flat;
+    }
+
+    @PersistableObject
+    public static class Flat {
+        @Id
+        @PersistableField
+        String id;
+
+        @PersistableField
+        String name;
+
+        @PersistableField
+        int count;
+
+        @PersistableField
+        double score;
+
+        @PersistableField
+        boolean active;
+    }
+
+    @PersistableObject(encoding = Encoding.BINARY)
+    public static class BinaryFlat {
+        @Id
+        @PersistableField
+        String id;
+
+        @PersistableField
+        String name;
+
+        @PersistableField
+        int count;
+
+        @PersistableField
+        double score;
+
+        @PersistableField
+        boolean active;
+    }
+
+    @PersistableObject
+    public static class Dated {
+        @Id
+        @PersistableField
+        String id;
+
+        @PersistableField
+        String name;
+
+        @PersistableField
+        Date createdAt;
+
+        @PersistableField
+        Date updatedAt;
+    }
+
+    @PersistableObject(encoding = Encoding.BINARY)
+    public static class BinaryDated {
+        @Id
+        @PersistableField
+        String id;
+
+        @PersistableField
+        String name;
+
+        @PersistableField
+        Date createdAt;
+
+        @PersistableField
+        Date updatedAt;
+    }
+
+    @PersistableObject
+    public static class Nested {
+        @Id
+        @PersistableField
+        String id;
+
+        @PersistableField
+        String name;
+
+        @PersistableField
+        Flat child;
+    }
+
+    @PersistableObject(encoding = Encoding.BINARY)
+    public static class BinaryNested {
+        @Id
+        @PersistableField
+        String id;
+
+        @PersistableField
+        String name;
+
+        @PersistableField
+        BinaryFlat child;
+    }
+
+    @PersistableObject
+    public static class Listed {
+        @Id
+        @PersistableField
+        String id;
+
+        @PersistableField
+        List<String> items;
+    }
+
+    @PersistableObject(encoding = Encoding.BINARY)
+    public static class BinaryListed {
+        @Id
+        @PersistableField
+        String id;
+
+        @PersistableField
+        List<String> items;
+    }
+}
@@ -0,0 +1,62 @@
+package com.ecs160.persistence.benchmarks;
+
+import com.ecs160.persistence.annotations.Encoding;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// persist and load of single objects: flat fields, Date fields, and one nested object
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ObjectBenchmark {
+    private static final AtomicInteger THREADS = new AtomicInteger();
+
+    @Param({"flat", "dated", "nested"})
+    public String shape;
+
+    @Param({"HASH", "BINARY"})
+    public Encoding encoding;
+
+    private Object object;
+    private String id;
+
+    @Setup(Level.Trial)
+    public void setUp(StorageState storage) {
+        // a key per thread, so threads never write over each other
+        id = "bench:" + shape + ":" + encoding + ":" + THREADS.incrementAndGet();
+        object = Models.create(shape, encoding, id, 0);
+        storage.redisDB.persist(object);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown(StorageState storage) {
+        storage.redisDB.delete(object);
+    }
+
+    @Benchmark
+    public boolean persist(StorageState storage) {
+        return storage.redisDB.persist(object);
+    }
+
+    @Benchmark
+    public Object load(StorageState storage) {
+        return storage.redisDB.load(Models.query(shape, encoding, id));
+    }
+}
@@ -0,0 +1,66 @@
+package com.ecs160.persistence.benchmarks;
+
+import com.ecs160.persistence.InMemoryBackend;
+import com.ecs160.persistence.RedisBackend;
+import com.ecs160.persistence.RedisDB;
+import com.ecs160.persistence.SegmentBackend;
+import com.ecs160.persistence.StorageBackend;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+// one RedisDB per trial, shared by all benchmark threads.
+// the redis backend uses db 15 on redis.host:redis.port, the same database the tests use
+@State(Scope.Benchmark)
+public class StorageState {
+    private static final int REDIS_DATABASE = 15;
+
+    @Param({"memory", "segment", "redis"})
+    public String backend;
+
+    public RedisDB redisDB;
+    private Path directory;
+
+    @Setup(Level.Trial)
+    public void open() throws IOException {
+        redisDB = new RedisDB(createBackend());
+        // every persist writes the whole object, not just what changed since the last one
+        redisDB.setDirtyTracking(false);
+    }
+
+    private StorageBackend createBackend() throws IOException {
+        switch (backend) {
+            case "memory":
+                return new InMemoryBackend();
+            case "segment":
+                directory = Files.createTempDirectory("persistence-benchmarks");
+                return new SegmentBackend(directory);
+            case "redis":
+                String host = System.getProperty("redis.host", "localhost");
+                int port = Integer.getInteger("redis.port", 6379);
+                return new RedisBackend(host, port, REDIS_DATABASE, Runtime.getRuntime().availableProcessors());
+            default:
+                throw new IllegalArgumentException("Unknown backend " + backend);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void close() throws IOException {
+        redisDB.close();
+        if (directory != null) {
+            try (Stream<Path> files = Files.walk(directory)) {
+                files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+            }
+        }
+    }
+}
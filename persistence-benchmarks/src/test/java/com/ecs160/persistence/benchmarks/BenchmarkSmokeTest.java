@@ -0,0 +1,66 @@
+package com.ecs160.persistence.benchmarks;
+
+import com.ecs160.persistence.annotations.Encoding;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.openjdk.jmh.annotations.Param;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+// runs every benchmark once per parameter combination on the in-memory backend, so a broken
+// model or benchmark shows up in the build instead of minutes into a jmh run
+public class BenchmarkSmokeTest {
+    private StorageState storage;
+
+    @Before
+    public void setUp() throws Exception {
+        storage = new StorageState();
+        storage.backend = "memory";
+        storage.open();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        storage.close();
+    }
+
+    @Test
+    public void testObjectBenchmarks() throws Exception {
+        for (String shape : params(ObjectBenchmark.class, "shape")) {
+            for (String encoding : params(ObjectBenchmark.class, "encoding")) {
+                ObjectBenchmark benchmark = new ObjectBenchmark();
+                benchmark.shape = shape;
+                benchmark.encoding = Encoding.valueOf(encoding);
+                benchmark.setUp(storage);
+                assertTrue(shape + " " + encoding, benchmark.persist(storage));
+                assertNotNull(shape + " " + encoding, benchmark.load(storage));
+                benchmark.tearDown(storage);
+            }
+        }
+    }
+
+    @Test
+    public void testListBenchmarks() throws Exception {
+        for (String listSize : params(ListBenchmark.class, "listSize")) {
+            for (String encoding : params(ListBenchmark.class, "encoding")) {
+                ListBenchmark benchmark = new ListBenchmark();
+                benchmark.listSize = Integer.parseInt(listSize);
+                benchmark.encoding = Encoding.valueOf(encoding);
+                benchmark.setUp(storage);
+                assertTrue(listSize + " " + encoding, benchmark.persist(storage));
+                Object loaded = benchmark.load(storage);
+                assertNotNull(listSize + " " + encoding, loaded);
+                assertEquals(Models.create("list", benchmark.encoding, "any", 0).getClass(), loaded.getClass());
+                benchmark.tearDown(storage);
+            }
+        }
+    }
+
+    // the values jmh would run, read from the benchmark's own @Param
+    private static String[] params(Class<?> benchmark, String field) throws NoSuchFieldException {
+        return benchmark.getField(field).getAnnotation(Param.class).value();
+    }
+}
@@ -0,0 +1,354 @@
+package com.ecs160.persistence;
+
+import com.ecs160.persistence.ClassDescriptor.Converter;
+import com.ecs160.persistence.ClassDescriptor.FieldDescriptor;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+// single value layout of Encoding.BINARY classes: format byte, schema version, field count,
+// then every non-null field as its binaryId followed by a tagged value. binaryIds default to the
+// field's position and stay put when fields are removed or reordered, so values written under an
+// older schema version load into the current class and numbers it no longer has are skipped
+final class BinaryCodec {
+    static final int FORMAT = 2;
+    // the first layout, fields as length-prefixed names, still read
+    private static final int NAMED_FORMAT = 1;
+
+    private static final int NULL = 0;
+    private static final int STRING = 1;
+    private static final int INT = 2;
+    private static final int LONG = 3;
+    private static final int DOUBLE = 4;
+    private static final int FLOAT = 5;
+    private static final int FALSE = 6;
+    private static final int TRUE = 7;
+    private static final int DATE = 8;
+    private static final int LIST = 9;
+    private static final int REFERENCE = 10;
+
+    private BinaryCodec() {
+    }
+
+    // references maps a nested persistable object to its key, persisting it along the way
+    static byte[] encode(ClassDescriptor descriptor, Object o, Function<Object, String> references) {
+        Writer out = new Writer();
+        out.write(FORMAT);
+        out.writeVarint(descriptor.schemaVersion());
+
+        List<FieldDescriptor> fields = descriptor.fields();
+        List<Object> values = new ArrayList<>(fields.size());
+        int present = 0;
+        for (FieldDescriptor field : fields) {
+            Object value = field.accessor().get(o);
+            values.add(value);
+            if (value != null) {
+                present++;
+            }
+        }
+        // null fields are left out, decoding leaves them unset anyway
+        out.writeVarint(present);
+
+        for (int ordinal = 0; ordinal < fields.size(); ordinal++) {
+            FieldDescriptor field = fields.get(ordinal);
+            Object value = values.get(ordinal);
+            if (value == null) {
+                continue;
+            }
+            out.writeVarint(field.binaryId());
+
+            switch (field.kind()) {
+                case LIST:
+                    List<?> list = (List<?>) value;
+                    boolean nested = ClassDescriptor.of(field.elementType()).isPersistable();
+                    out.write(LIST);
+                    out.writeVarint(list.size());
+                    for (Object item : list) {
+                        if (item != null && nested) {
+                            out.write(REFERENCE);
+                            out.writeString(references.apply(item));
+                        } else {
+                            writeValue(out, item, field.elementConverter());
+                        }
+                    }
+                    break;
+                case NESTED:
+                    out.write(REFERENCE);
+                    out.writeString(references.apply(value));
+                    break;
+                default:
+                    writeValue(out, value, field.converter());
+                    break;
+            }
+        }
+        return out.toByteArray();
+    }
+
+    // fills instance from bytes, handing keys of nested objects to references instead of loading them
+    static void decode(ClassDescriptor descriptor, Object instance, byte[] bytes,
+                       BiConsumer<FieldDescriptor, List<String>> references) {
+        Reader in = new Reader(bytes);
+        int format = in.read();
+        if (format != FORMAT && format != NAMED_FORMAT) {
+            throw new RuntimeException("Unsupported binary format " + format + " for class " +
+                descriptor.type().getName());
+        }
+        // the schema version of the writer, binaryIds already line its fields up with the class
+        in.readVarint();
+
+        int fieldCount = in.readVarint();
+        for (int i = 0; i < fieldCount; i++) {
+            FieldDescriptor field;
+            if (format == FORMAT) {
+                field = descriptor.fieldForBinaryId(in.readVarint());
+            } else {
+                field = descriptor.field(in.readString());
+            }
+            Object value = readValue(in);
+            // fields the class no longer has are skipped
+            if (field == null || value == null) {
+                continue;
+            }
+
+            if (value instanceof Reference) {
+                references.accept(field, Collections.singletonList(((Reference) value).key));
+            } else if (field.kind() == ClassDescriptor.Kind.LIST && value instanceof List) {
+                decodeList(instance, field, (List<?>) value, references);
+            } else if (field.kind() == ClassDescriptor.Kind.VALUE) {
+                field.accessor().set(instance, coerce(value, field.converter()));
+            }
+        }
+    }
+
+    private static void decodeList(Object instance, FieldDescriptor field, List<?> items,
+                                   BiConsumer<FieldDescriptor, List<String>> references) {
+        if (ClassDescriptor.of(field.elementType()).isPersistable()) {
+            List<String> keys = new ArrayList<>(items.size());
+            for (Object item : items) {
+                if (item instanceof Reference) {
+                    keys.add(((Reference) item).key);
+                }
+            }
+            if (keys.isEmpty()) {
+                field.accessor().set(instance, new ArrayList<>());
+            } else {
+                references.accept(field, keys);
+            }
+            return;
+        }
+
+        List<Object> list = new ArrayList<>(items.size());
+        for (Object item : items) {
+            list.add(item == null ? null : coerce(item, field.elementConverter()));
+        }
+        field.accessor().set(instance, list);
+    }
+
+    private static void writeValue(Writer out, Object value, Converter converter) {
+        if (value == null) {
+            out.write(NULL);
+            return;
+        }
+
+        switch (converter) {
+            case INT:
+                out.write(INT);
+                out.writeVarlong(zigZag(((Number) value).intValue()));
+                break;
+            case LONG:
+                out.write(LONG);
+                out.writeVarlong(zigZag(((Number) value).longValue()));
+                break;
+            case DOUBLE:
+                out.write(DOUBLE);
+                out.writeFixed64(Double.doubleToLongBits(((Number) value).doubleValue()));
+                break;
+            case FLOAT:
+                out.write(FLOAT);
+                out.writeFixed32(Float.floatToIntBits(((Number) value).floatValue()));
+                break;
+            case BOOLEAN:
+                out.write((Boolean) value ? TRUE : FALSE);
+                break;
+            case DATE:
+                out.write(DATE);
+                out.writeVarlong(zigZag(((Date) value).getTime()));
+                break;
+            default:
+                out.write(STRING);
+                out.writeString(value.toString());
+                break;
+        }
+    }
+
+    private static Object readValue(Reader in) {
+        int tag = in.read();
+        switch (tag) {
+            case NULL:
+                return null;
+            case STRING:
+                return in.readString();
+            case INT:
+                return (int) unZigZag(in.readVarlong());
+            case LONG:
+                return unZigZag(in.readVarlong());
+            case DOUBLE:
+                return Double.longBitsToDouble(in.readFixed64());
+            case FLOAT:
+                return Float.intBitsToFloat(in.readFixed32());
+            case FALSE:
+                return Boolean.FALSE;
+            case TRUE:
+                return Boolean.TRUE;
+            case DATE:
+                return new Date(unZigZag(in.readVarlong()));
+            case LIST:
+                int size = in.readVarint();
+                List<Object> items = new ArrayList<>(size);
+                for (int i = 0; i < size; i++) {
+                    items.add(readValue(in));
+                }
+                return items;
+            case REFERENCE:
+                return new Reference(in.readString());
+            default:
+                throw new RuntimeException("Unknown binary value tag " + tag);
+        }
+    }
+
+    // keeps values readable after a field changes type, e.g. int to long
+    private static Object coerce(Object value, Converter converter) {
+        switch (converter) {
+            case INT:
+                return value instanceof Number ? ((Number) value).intValue() : Integer.parseInt(value.toString());
+            case LONG:
+                return value instanceof Number ? ((Number) value).longValue() : Long.parseLong(value.toString());
+            case DOUBLE:
+                return value instanceof Number ? ((Number) value).doubleValue() : Double.parseDouble(value.toString());
+            case FLOAT:
+                return value instanceof Number ? ((Number) value).floatValue() : Float.parseFloat(value.toString());
+            case BOOLEAN:
+                return value instanceof Boolean ? value : Boolean.parseBoolean(value.toString());
+            case DATE:
+                return value instanceof Date ? value : value instanceof Number ? new Date(((Number) value).longValue()) : null;
+            default:
+                return value.toString();
+        }
+    }
+
+    private static long zigZag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unZigZag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static final class Reference {
+        private final String key;
+
+        Reference(String key) {
+            this.key = key;
+        }
+    }
+
+    private static final class Writer extends ByteArrayOutputStream {
+        Writer() {
+            super(64);
+        }
+
+        void writeVarint(int value) {
+            writeVarlong(value & 0xFFFFFFFFL);
+        }
+
+        void writeVarlong(long value) {
+            while ((value & ~0x7FL) != 0) {
+                write((int) ((value & 0x7F) | 0x80));
+                value >>>= 7;
+            }
+            write((int) value);
+        }
+
+        void writeFixed32(int value) {
+            for (int shift = 0; shift < 32; shift += 8) {
+                write(value >>> shift);
+            }
+        }
+
+        void writeFixed64(long value) {
+            for (int shift = 0; shift < 64; shift += 8) {
+                write((int) (value >>> shift));
+            }
+        }
+
+        void writeString(String value) {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            writeVarint(bytes.length);
+            write(bytes, 0, bytes.length);
+        }
+    }
+
+    private static final class Reader {
+        private final byte[] bytes;
+        private int position;
+
+        Reader(byte[] bytes) {
+            this.bytes = bytes;
+        }
+
+        int read() {
+            if (position >= bytes.length) {
+                throw new RuntimeException("Truncated binary value");
+            }
+            return bytes[position++] & 0xFF;
+        }
+
+        int readVarint() {
+            return (int) readVarlong();
+        }
+
+        long readVarlong() {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = read();
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new RuntimeException("Malformed varint in binary value");
+        }
+
+        int readFixed32() {
+            int value = 0;
+            for (int shift = 0; shift < 32; shift += 8) {
+                value |= read() << shift;
+            }
+            return value;
+        }
+
+        long readFixed64() {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 8) {
+                value |= (long) read() << shift;
+            }
+            return value;
+        }
+
+        String readString() {
+            int length = readVarint();
+            if (length < 0 || length > bytes.length - position) {
+                throw new RuntimeException("Truncated binary value");
+            }
+            String value = new String(bytes, position, length, StandardCharsets.UTF_8);
+            position += length;
+            return value;
+        }
+    }
+}
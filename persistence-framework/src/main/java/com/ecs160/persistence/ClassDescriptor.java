@@ -0,0 +1,505 @@
+package com.ecs160.persistence;
+
+import com.ecs160.persistence.annotations.Encoding;
+import com.ecs160.persistence.annotations.Id;
+import com.ecs160.persistence.annotations.LazyLoad;
+import com.ecs160.persistence.annotations.ListStorage;
+import com.ecs160.persistence.annotations.PersistableField;
+import com.ecs160.persistence.annotations.PersistableObject;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// persistence metadata for one class, computed once and cached per class
+final class ClassDescriptor {
+    private static final ClassValue<ClassDescriptor> DESCRIPTORS = new ClassValue<>() {
+        @Override
+        protected ClassDescriptor computeValue(Class<?> type) {
+            // lazy load proxies share the metadata of the model they extend
+            if (LazyLoader.isProxyClass(type)) {
+                return of(type.getSuperclass());
+            }
+            return new ClassDescriptor(type);
+        }
+    };
+
+    enum Kind {
+        VALUE,
+        LIST,
+        NESTED
+    }
+
+    enum Converter {
+        STRING,
+        INT,
+        LONG,
+        DOUBLE,
+        FLOAT,
+        BOOLEAN,
+        DATE;
+
+        static Converter forType(Class<?> type) {
+            if (type == int.class || type == Integer.class) {
+                return INT;
+            } else if (type == long.class || type == Long.class) {
+                return LONG;
+            } else if (type == double.class || type == Double.class) {
+                return DOUBLE;
+            } else if (type == float.class || type == Float.class) {
+                return FLOAT;
+            } else if (type == boolean.class || type == Boolean.class) {
+                return BOOLEAN;
+            } else if (type == Date.class) {
+                return DATE;
+            }
+            // strings and anything else are kept as raw strings
+            return STRING;
+        }
+    }
+
+    static final class FieldDescriptor {
+        private final Field field;
+        private final FieldAccessor accessor;
+        private final String redisName;
+        private final List<String> readNames;
+        private final Kind kind;
+        private final Converter converter;
+        private final Class<?> elementType;
+        private final Converter elementConverter;
+        private final boolean lazy;
+        private final String indexKey;
+        private final ListStorage listStorage;
+        private final int compressAbove;
+        private final int binaryId;
+
+        private FieldDescriptor(Field field, FieldAccessor accessor, boolean lazy, int classCompressAbove,
+                                int position) {
+            this.field = field;
+            this.accessor = accessor;
+            PersistableField annotation = field.getAnnotation(PersistableField.class);
+            this.redisName = annotation.name().isEmpty() ? field.getName() : annotation.name();
+            // the java name comes last, values persisted before a name was declared stay readable
+            Set<String> names = new LinkedHashSet<>();
+            names.add(redisName);
+            names.addAll(Arrays.asList(annotation.aliases()));
+            names.add(field.getName());
+            this.readNames = Collections.unmodifiableList(new ArrayList<>(names));
+            this.lazy = lazy;
+
+            Class<?> type = field.getType();
+            if (List.class.isAssignableFrom(type)) {
+                this.kind = Kind.LIST;
+                this.elementType = listElementType(field);
+                this.elementConverter = Converter.forType(elementType);
+            } else if (type.isAnnotationPresent(PersistableObject.class)) {
+                this.kind = Kind.NESTED;
+                this.elementType = null;
+                this.elementConverter = null;
+            } else {
+                this.kind = Kind.VALUE;
+                this.elementType = null;
+                this.elementConverter = null;
+            }
+            this.converter = Converter.forType(type);
+
+            this.listStorage = field.getAnnotation(PersistableField.class).listStorage();
+            if (listStorage != ListStorage.INLINE && kind != Kind.LIST) {
+                throw new RuntimeException("Field " + field.getName() + " of class " +
+                    field.getDeclaringClass().getName() + " is not a List, only List fields can use " + listStorage);
+            }
+
+            int compressAbove = field.getAnnotation(PersistableField.class).compressAbove();
+            if (compressAbove > 0 && (kind != Kind.VALUE || converter != Converter.STRING || type != String.class)) {
+                throw new RuntimeException("Field " + field.getName() + " of class " +
+                    field.getDeclaringClass().getName() + " cannot be compressed, only String fields can");
+            }
+            // the class setting covers its String fields only
+            boolean text = kind == Kind.VALUE && type == String.class;
+            this.compressAbove = compressAbove >= 0 ? compressAbove : text ? classCompressAbove : 0;
+
+            int binaryId = field.getAnnotation(PersistableField.class).binaryId();
+            if (binaryId < -1) {
+                throw new RuntimeException("Field " + field.getName() + " of class " +
+                    field.getDeclaringClass().getName() + " has a negative binaryId");
+            }
+            this.binaryId = binaryId >= 0 ? binaryId : position;
+
+            if (field.getAnnotation(PersistableField.class).indexed()) {
+                if (kind != Kind.VALUE || converter == Converter.STRING || converter == Converter.BOOLEAN) {
+                    throw new RuntimeException("Field " + field.getName() + " of class " +
+                        field.getDeclaringClass().getName() + " cannot be indexed, only Date and numeric fields can");
+                }
+                this.indexKey = "_index:" + field.getDeclaringClass().getName() + ":" + field.getName();
+            } else {
+                this.indexKey = null;
+            }
+        }
+
+        FieldAccessor accessor() {
+            return accessor;
+        }
+
+        String name() {
+            return field.getName();
+        }
+
+        String redisName() {
+            return redisName;
+        }
+
+        // hash fields the value may be stored under, the one written first
+        List<String> readNames() {
+            return readNames;
+        }
+
+        Kind kind() {
+            return kind;
+        }
+
+        Class<?> type() {
+            return field.getType();
+        }
+
+        Converter converter() {
+            return converter;
+        }
+
+        Class<?> elementType() {
+            return elementType;
+        }
+
+        Converter elementConverter() {
+            return elementConverter;
+        }
+
+        boolean isLazy() {
+            return lazy;
+        }
+
+        boolean isIndexed() {
+            return indexKey != null;
+        }
+
+        // sorted set of object ids scored by this field's value
+        String indexKey() {
+            return indexKey;
+        }
+
+        ListStorage listStorage() {
+            return listStorage;
+        }
+
+        // threshold in characters for storing the value compressed, 0 when it never is
+        int compressAbove() {
+            return compressAbove;
+        }
+
+        int binaryId() {
+            return binaryId;
+        }
+
+        // true when the elements live in their own redis list or set
+        boolean isNativeCollection() {
+            return listStorage != ListStorage.INLINE;
+        }
+
+        // key of the native list or set holding this field's elements for one object
+        String collectionKey(String objectKey) {
+            return "_list:" + objectKey + ":" + redisName;
+        }
+
+        private static Class<?> listElementType(Field field) {
+            Type genericType = field.getGenericType();
+            if (genericType instanceof ParameterizedType) {
+                Type argument = ((ParameterizedType) genericType).getActualTypeArguments()[0];
+                if (argument instanceof Class) {
+                    return (Class<?>) argument;
+                }
+            }
+            // raw or wildcard lists hold plain strings
+            return String.class;
+        }
+    }
+
+    // objects per bucket of a BUCKETED class, below the 128 fields of a listpack hash
+    static final int OBJECTS_PER_BUCKET = 100;
+    // longest bucket field, in bytes, that still keeps the bucket a listpack
+    static final int LISTPACK_VALUE_LIMIT = 64;
+
+    private final Class<?> type;
+    private final PersistenceCodec<Object> codec;
+    private final boolean persistable;
+    private final Encoding encoding;
+    private final int schemaVersion;
+    private final int buckets;
+    private final String bucketPrefix;
+    private final AtomicBoolean warnedOversizedBucketValue = new AtomicBoolean();
+    private final FieldAccessor idAccessor;
+    private final Converter idConverter;
+    private final List<FieldDescriptor> fields;
+    private final Map<String, FieldDescriptor> fieldsByName;
+    private final Map<String, FieldDescriptor> fieldsByStoredName;
+    private final Map<Integer, FieldDescriptor> fieldsByBinaryId;
+    private final List<FieldDescriptor> indexedFields;
+    private final List<FieldDescriptor> nativeCollections;
+    private final boolean hasLazyFields;
+    private final String membersKey;
+
+    private ClassDescriptor(Class<?> type) {
+        this.type = type;
+        this.persistable = type.isAnnotationPresent(PersistableObject.class);
+        PersistableObject annotation = type.getAnnotation(PersistableObject.class);
+        this.encoding = annotation != null ? annotation.encoding() : Encoding.HASH;
+        this.schemaVersion = annotation != null ? annotation.schemaVersion() : 1;
+        int compressAbove = annotation != null ? annotation.compressAbove() : 0;
+        int expectedObjects = annotation != null ? annotation.expectedObjects() : 1;
+        if (encoding == Encoding.BUCKETED && expectedObjects < 1) {
+            throw new RuntimeException("Bucketed class " + type.getName() + " needs a positive expectedObjects");
+        }
+        this.buckets = (int) ((expectedObjects + OBJECTS_PER_BUCKET - 1L) / OBJECTS_PER_BUCKET);
+        this.bucketPrefix = "_bucket:" + type.getName() + ":";
+        this.codec = persistable ? findCodec(type) : null;
+        Map<String, Integer> codecFields = new HashMap<>();
+        if (codec != null) {
+            String[] names = codec.fields();
+            for (int i = 0; i < names.length; i++) {
+                codecFields.put(names[i], i);
+            }
+        }
+
+        // collect fields named by @LazyLoad getters, binary values and bucketed objects are always read whole
+        Set<String> lazyFields = new HashSet<>();
+        for (Method method : type.getDeclaredMethods()) {
+            if (encoding == Encoding.HASH && method.isAnnotationPresent(LazyLoad.class)) {
+                lazyFields.add(method.getAnnotation(LazyLoad.class).field());
+            }
+        }
+
+        Field id = null;
+        List<FieldDescriptor> persistableFields = new ArrayList<>();
+        Map<String, FieldDescriptor> byName = new HashMap<>();
+        Map<String, FieldDescriptor> byStoredName = new HashMap<>();
+        List<FieldDescriptor> indexed = new ArrayList<>();
+        List<FieldDescriptor> collections = new ArrayList<>();
+        boolean lazy = false;
+        for (Field field : type.getDeclaredFields()) {
+            if (id == null && field.isAnnotationPresent(Id.class)) {
+                id = field;
+            }
+            if (field.isAnnotationPresent(PersistableField.class)) {
+                FieldDescriptor descriptor = new FieldDescriptor(field, accessor(field, codecFields),
+                    lazyFields.contains(field.getName()), compressAbove, persistableFields.size());
+                persistableFields.add(descriptor);
+                byName.put(field.getName(), descriptor);
+                lazy |= descriptor.isLazy();
+                if (descriptor.isIndexed()) {
+                    indexed.add(descriptor);
+                }
+                if (descriptor.isNativeCollection()) {
+                    if (encoding != Encoding.HASH) {
+                        throw new RuntimeException("Field " + field.getName() + " of " + encoding.name().toLowerCase() +
+                            " encoded class " + type.getName() + " cannot use " + descriptor.listStorage());
+                    }
+                    collections.add(descriptor);
+                }
+            }
+        }
+
+        this.idAccessor = id != null ? accessor(id, codecFields) : null;
+        this.idConverter = id != null ? Converter.forType(id.getType()) : null;
+        this.fields = Collections.unmodifiableList(persistableFields);
+        // written names first, so they win over an alias or java name of another field
+        for (FieldDescriptor field : persistableFields) {
+            FieldDescriptor other = byStoredName.put(field.redisName(), field);
+            if (other != null) {
+                throw new RuntimeException("Fields " + other.name() + " and " + field.name() + " of class " +
+                    type.getName() + " are both stored as " + field.redisName());
+            }
+        }
+        for (FieldDescriptor field : persistableFields) {
+            for (String storedName : field.readNames()) {
+                byStoredName.putIfAbsent(storedName, field);
+            }
+        }
+        Map<Integer, FieldDescriptor> byBinaryId = new HashMap<>();
+        for (FieldDescriptor field : persistableFields) {
+            FieldDescriptor other = byBinaryId.put(field.binaryId(), field);
+            if (other != null) {
+                throw new RuntimeException("Fields " + other.name() + " and " + field.name() + " of class " +
+                    type.getName() + " both have binaryId " + field.binaryId());
+            }
+        }
+        this.fieldsByName = byName;
+        this.fieldsByStoredName = byStoredName;
+        this.fieldsByBinaryId = byBinaryId;
+        this.indexedFields = Collections.unmodifiableList(indexed);
+        this.nativeCollections = Collections.unmodifiableList(collections);
+        this.hasLazyFields = lazy;
+        this.membersKey = "_members:" + type.getName();
+    }
+
+    static ClassDescriptor of(Class<?> type) {
+        return DESCRIPTORS.get(type);
+    }
+
+    // the generated codec of a model compiled with PersistenceCodecProcessor, null for any other class
+    @SuppressWarnings("unchecked")
+    private static PersistenceCodec<Object> findCodec(Class<?> type) {
+        String packageName = type.getPackageName();
+        String simpleName = packageName.isEmpty() ? type.getName() : type.getName().substring(packageName.length() + 1);
+        String codecName = (packageName.isEmpty() ? "" : packageName + ".") +
+            simpleName.replace('$', '_') + PersistenceCodec.SUFFIX;
+        try {
+            Class<?> codecClass = Class.forName(codecName, true, type.getClassLoader());
+            if (!PersistenceCodec.class.isAssignableFrom(codecClass)) {
+                return null;
+            }
+            return (PersistenceCodec<Object>) codecClass.getDeclaredConstructor().newInstance();
+        } catch (ClassNotFoundException e) {
+            return null;
+        } catch (ReflectiveOperationException e) {
+            throw new RuntimeException("Cannot create codec " + codecName + " for " + type.getName(), e);
+        }
+    }
+
+    // the codec's access for fields it covers, method handles for the rest
+    private FieldAccessor accessor(Field field, Map<String, Integer> codecFields) {
+        Integer index = codecFields.get(field.getName());
+        return index != null ? FieldAccessor.of(codec, index, field.getType()) : FieldAccessor.of(field);
+    }
+
+    // a new empty instance, created by the codec when there is one
+    Object newInstance() throws ReflectiveOperationException {
+        if (codec != null) {
+            return codec.newInstance();
+        }
+        return type.getDeclaredConstructor().newInstance();
+    }
+
+    boolean hasCodec() {
+        return codec != null;
+    }
+
+    Class<?> type() {
+        return type;
+    }
+
+    boolean isPersistable() {
+        return persistable;
+    }
+
+    boolean isBinary() {
+        return encoding == Encoding.BINARY;
+    }
+
+    boolean isBucketed() {
+        return encoding == Encoding.BUCKETED;
+    }
+
+    // shared hash holding the packed object under its key, picked by the key's hash
+    String bucketKey(String objectKey) {
+        return bucketPrefix + ((objectKey.hashCode() & 0x7fffffff) % buckets);
+    }
+
+    // true the first time an object of the class packs past the listpack value limit
+    boolean firstOversizedBucketValue() {
+        return warnedOversizedBucketValue.compareAndSet(false, true);
+    }
+
+    // every bucket key of the class, in bucket order
+    List<String> bucketKeys() {
+        List<String> keys = new ArrayList<>(buckets);
+        for (int bucket = 0; bucket < buckets; bucket++) {
+            keys.add(bucketPrefix + bucket);
+        }
+        return keys;
+    }
+
+    int schemaVersion() {
+        return schemaVersion;
+    }
+
+    FieldAccessor idAccessor() {
+        return idAccessor;
+    }
+
+    Converter idConverter() {
+        return idConverter;
+    }
+
+    List<FieldDescriptor> fields() {
+        return fields;
+    }
+
+    FieldDescriptor field(String name) {
+        return fieldsByName.get(name);
+    }
+
+    // the field a hash field name belongs to, by its declared name, an alias or its java name
+    FieldDescriptor fieldForStoredName(String storedName) {
+        return fieldsByStoredName.get(storedName);
+    }
+
+    // the field a BINARY value stores under binaryId, null once the class no longer has it
+    FieldDescriptor fieldForBinaryId(int binaryId) {
+        return fieldsByBinaryId.get(binaryId);
+    }
+
+    List<FieldDescriptor> indexedFields() {
+        return indexedFields;
+    }
+
+    // List fields kept in native redis lists or sets
+    List<FieldDescriptor> nativeCollections() {
+        return nativeCollections;
+    }
+
+    boolean hasLazyFields() {
+        return hasLazyFields;
+    }
+
+    // set of the ids of every persisted object of this class
+    String membersKey() {
+        return membersKey;
+    }
+
+    // every key holding part of the object stored under objectKey, shared ones included
+    List<String> storedKeys(String objectKey) {
+        List<String> keys = new ArrayList<>();
+        keys.add(isBucketed() ? bucketKey(objectKey) : objectKey);
+        keys.add(membersKey);
+        for (FieldDescriptor field : indexedFields) {
+            keys.add(field.indexKey());
+        }
+        for (FieldDescriptor field : nativeCollections) {
+            keys.add(field.collectionKey(objectKey));
+        }
+        return keys;
+    }
+
+    // returns the id of o, failing if the class has no usable @Id
+    Object idOf(Object o) {
+        if (idAccessor == null) {
+            throw new RuntimeException("Class " + type.getName() + " must have a field annotated with @Id");
+        }
+
+        Object idValue = idAccessor.get(o);
+        if (idValue == null) {
+            throw new RuntimeException("Id field cannot be null for class " + type.getName());
+        }
+        return idValue;
+    }
+}
@@ -0,0 +1,340 @@
+package com.ecs160.persistence;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+
+// direct field access through method handles, built once per field
+abstract class FieldAccessor {
+    private static final MethodType OBJECT_GETTER = MethodType.methodType(Object.class, Object.class);
+    private static final MethodType OBJECT_SETTER = MethodType.methodType(void.class, Object.class, Object.class);
+
+    static FieldAccessor of(Field field) {
+        try {
+            field.setAccessible(true);
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            MethodHandle getter = lookup.unreflectGetter(field);
+            MethodHandle setter = lookup.unreflectSetter(field);
+            Class<?> type = field.getType();
+
+            // primitive fields get unboxed paths
+            if (type == int.class) {
+                return new IntAccessor(getter, setter);
+            } else if (type == long.class) {
+                return new LongAccessor(getter, setter);
+            } else if (type == double.class) {
+                return new DoubleAccessor(getter, setter);
+            } else if (type == boolean.class) {
+                return new BooleanAccessor(getter, setter);
+            }
+            return new ObjectAccessor(getter.asType(OBJECT_GETTER), setter.asType(OBJECT_SETTER));
+        } catch (IllegalAccessException e) {
+            throw new RuntimeException("Cannot access field " + field.getName() + " of " +
+                field.getDeclaringClass().getName(), e);
+        }
+    }
+
+    // access through a generated codec, primitive when the field is one of the unboxed types above
+    @SuppressWarnings("unchecked")
+    static FieldAccessor of(PersistenceCodec<?> codec, int index, Class<?> type) {
+        boolean primitive = type == int.class || type == long.class || type == double.class || type == boolean.class;
+        return new CodecAccessor((PersistenceCodec<Object>) codec, index, primitive);
+    }
+
+    abstract Object get(Object target);
+
+    abstract void set(Object target, Object value);
+
+    // primitive accessors read and write the text form without boxing
+    boolean isPrimitive() {
+        return false;
+    }
+
+    String getString(Object target) {
+        throw new UnsupportedOperationException("Not a primitive field");
+    }
+
+    void setString(Object target, String value) {
+        throw new UnsupportedOperationException("Not a primitive field");
+    }
+
+    private static RuntimeException rethrow(Throwable t) {
+        if (t instanceof RuntimeException) {
+            return (RuntimeException) t;
+        }
+        if (t instanceof Error) {
+            throw (Error) t;
+        }
+        return new RuntimeException(t);
+    }
+
+    private static final class ObjectAccessor extends FieldAccessor {
+        private final MethodHandle getter;
+        private final MethodHandle setter;
+
+        ObjectAccessor(MethodHandle getter, MethodHandle setter) {
+            this.getter = getter;
+            this.setter = setter;
+        }
+
+        @Override
+        Object get(Object target) {
+            try {
+                return (Object) getter.invokeExact(target);
+            } catch (Throwable t) {
+                throw rethrow(t);
+            }
+        }
+
+        @Override
+        void set(Object target, Object value) {
+            try {
+                setter.invokeExact(target, value);
+            } catch (Throwable t) {
+                throw rethrow(t);
+            }
+        }
+    }
+
+    private static final class CodecAccessor extends FieldAccessor {
+        private final PersistenceCodec<Object> codec;
+        private final int index;
+        private final boolean primitive;
+
+        CodecAccessor(PersistenceCodec<Object> codec, int index, boolean primitive) {
+            this.codec = codec;
+            this.index = index;
+            this.primitive = primitive;
+        }
+
+        @Override
+        Object get(Object target) {
+            return codec.get(target, index);
+        }
+
+        @Override
+        void set(Object target, Object value) {
+            codec.set(target, index, value);
+        }
+
+        @Override
+        boolean isPrimitive() {
+            return primitive;
+        }
+
+        @Override
+        String getString(Object target) {
+            return codec.getString(target, index);
+        }
+
+        @Override
+        void setString(Object target, String value) {
+            codec.setString(target, index, value);
+        }
+    }
+
+    private static final class IntAccessor extends FieldAccessor {
+        private final MethodHandle getter;
+        private final MethodHandle setter;
+
+        IntAccessor(MethodHandle getter, MethodHandle setter) {
+            this.getter = getter.asType(MethodType.methodType(int.class, Object.class));
+            this.setter = setter.asType(MethodType.methodType(void.class, Object.class, int.class));
+        }
+
+        int getInt(Object target) {
+            try {
+                return (int) getter.invokeExact(target);
+            } catch (Throwable t) {
+                throw rethrow(t);
+            }
+        }
+
+        void setInt(Object target, int value) {
+            try {
+                setter.invokeExact(target, value);
+            } catch (Throwable t) {
+                throw rethrow(t);
+            }
+        }
+
+        @Override
+        Object get(Object target) {
+            return getInt(target);
+        }
+
+        @Override
+        void set(Object target, Object value) {
+            setInt(target, (Integer) value);
+        }
+
+        @Override
+        boolean isPrimitive() {
+            return true;
+        }
+
+        @Override
+        String getString(Object target) {
+            return Integer.toString(getInt(target));
+        }
+
+        @Override
+        void setString(Object target, String value) {
+            setInt(target, Integer.parseInt(value));
+        }
+    }
+
+    private static final class LongAccessor extends FieldAccessor {
+        private final MethodHandle getter;
+        private final MethodHandle setter;
+
+        LongAccessor(MethodHandle getter, MethodHandle setter) {
+            this.getter = getter.asType(MethodType.methodType(long.class, Object.class));
+            this.setter = setter.asType(MethodType.methodType(void.class, Object.class, long.class));
+        }
+
+        long getLong(Object target) {
+            try {
+                return (long) getter.invokeExact(target);
+            } catch (Throwable t) {
+                throw rethrow(t);
+            }
+        }
+
+        void setLong(Object target, long value) {
+            try {
+                setter.invokeExact(target, value);
+            } catch (Throwable t) {
+                throw rethrow(t);
+            }
+        }
+
+        @Override
+        Object get(Object target) {
+            return getLong(target);
+        }
+
+        @Override
+        void set(Object target, Object value) {
+            setLong(target, (Long) value);
+        }
+
+        @Override
+        boolean isPrimitive() {
+            return true;
+        }
+
+        @Override
+        String getString(Object target) {
+            return Long.toString(getLong(target));
+        }
+
+        @Override
+        void setString(Object target, String value) {
+            setLong(target, Long.parseLong(value));
+        }
+    }
+
+    private static final class DoubleAccessor extends FieldAccessor {
+        private final MethodHandle getter;
+        private final MethodHandle setter;
+
+        DoubleAccessor(MethodHandle getter, MethodHandle setter) {
+            this.getter = getter.asType(MethodType.methodType(double.class, Object.class));
+            this.setter = setter.asType(MethodType.methodType(void.class, Object.class, double.class));
+        }
+
+        double getDouble(Object target) {
+            try {
+                return (double) getter.invokeExact(target);
+            } catch (Throwable t) {
+                throw rethrow(t);
+            }
+        }
+
+        void setDouble(Object target, double value) {
+            try {
+                setter.invokeExact(target, value);
+            } catch (Throwable t) {
+                throw rethrow(t);
+            }
+        }
+
+        @Override
+        Object get(Object target) {
+            return getDouble(target);
+        }
+
+        @Override
+        void set(Object target, Object value) {
+            setDouble(target, (Double) value);
+        }
+
+        @Override
+        boolean isPrimitive() {
+            return true;
+        }
+
+        @Override
+        String getString(Object target) {
+            return Double.toString(getDouble(target));
+        }
+
+        @Override
+        void setString(Object target, String value) {
+            setDouble(target, Double.parseDouble(value));
+        }
+    }
+
+    private static final class BooleanAccessor extends FieldAccessor {
+        private final MethodHandle getter;
+        private final MethodHandle setter;
+
+        BooleanAccessor(MethodHandle getter, MethodHandle setter) {
+            this.getter = getter.asType(MethodType.methodType(boolean.class, Object.class));
+            this.setter = setter.asType(MethodType.methodType(void.class, Object.class, boolean.class));
+        }
+
+        boolean getBoolean(Object target) {
+            try {
+                return (boolean) getter.invokeExact(target);
+            } catch (Throwable t) {
+                throw rethrow(t);
+            }
+        }
+
+        void setBoolean(Object target, boolean value) {
+            try {
+                setter.invokeExact(target, value);
+            } catch (Throwable t) {
+                throw rethrow(t);
+            }
+        }
+
+        @Override
+        Object get(Object target) {
+            return getBoolean(target);
+        }
+
+        @Override
+        void set(Object target, Object value) {
+            setBoolean(target, (Boolean) value);
+        }
+
+        @Override
+        boolean isPrimitive() {
+            return true;
+        }
+
+        @Override
+        String getString(Object target) {
+            return Boolean.toString(getBoolean(target));
+        }
+
+        @Override
+        void setString(Object target, String value) {
+            setBoolean(target, Boolean.parseBoolean(value));
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package com.ecs160.persistence;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+// a condition on the stored fields of a @PersistableObject class, for RedisDB.count, sum and filter.
+// fields are named by their java name. numbers and dates can be ordered, strings, booleans and
+// nested objects only compared for equality. a field without a value never equals, precedes or
+// follows anything, so only ne and isEmpty hold for it
+public final class Filter {
+    enum Op {
+        EQ,
+        NE,
+        LT,
+        LE,
+        GT,
+        GE,
+        EMPTY,
+        AND,
+        OR,
+        NOT
+    }
+
+    private final Op op;
+    private final String field;
+    private final Object value;
+    private final List<Filter> operands;
+
+    private Filter(Op op, String field, Object value, List<Filter> operands) {
+        this.op = op;
+        this.field = field;
+        this.value = value;
+        this.operands = operands;
+    }
+
+    // true for every stored object
+    public static Filter all() {
+        return and();
+    }
+
+    public static Filter eq(String field, Object value) {
+        return value == null ? isEmpty(field) : compare(Op.EQ, field, value);
+    }
+
+    public static Filter ne(String field, Object value) {
+        return value == null ? not(isEmpty(field)) : compare(Op.NE, field, value);
+    }
+
+    public static Filter lt(String field, Object value) {
+        return compare(Op.LT, field, value);
+    }
+
+    public static Filter le(String field, Object value) {
+        return compare(Op.LE, field, value);
+    }
+
+    public static Filter gt(String field, Object value) {
+        return compare(Op.GT, field, value);
+    }
+
+    public static Filter ge(String field, Object value) {
+        return compare(Op.GE, field, value);
+    }
+
+    // null, an empty string or an empty list
+    public static Filter isEmpty(String field) {
+        return new Filter(Op.EMPTY, field, null, Collections.emptyList());
+    }
+
+    public static Filter and(Filter... filters) {
+        return new Filter(Op.AND, null, null, Collections.unmodifiableList(Arrays.asList(filters.clone())));
+    }
+
+    public static Filter or(Filter... filters) {
+        return new Filter(Op.OR, null, null, Collections.unmodifiableList(Arrays.asList(filters.clone())));
+    }
+
+    public static Filter not(Filter filter) {
+        return new Filter(Op.NOT, null, null, Collections.singletonList(filter));
+    }
+
+    private static Filter compare(Op op, String field, Object value) {
+        if (value == null) {
+            throw new RuntimeException("Cannot compare field " + field + " with null");
+        }
+        return new Filter(op, field, value, Collections.emptyList());
+    }
+
+    Op op() {
+        return op;
+    }
+
+    String field() {
+        return field;
+    }
+
+    Object value() {
+        return value;
+    }
+
+    List<Filter> operands() {
+        return operands;
+    }
+}
@@ -0,0 +1,251 @@
+package com.ecs160.persistence;
+
+import com.ecs160.persistence.LocalValues.HashValue;
+import com.ecs160.persistence.LocalValues.ListValue;
+import com.ecs160.persistence.LocalValues.SetValue;
+import com.ecs160.persistence.LocalValues.SortedSetValue;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.regex.Pattern;
+
+// in-process storage with redis semantics for local runs and benchmarks, nothing leaves the heap.
+// keys are spread over striped maps; each value is guarded by its own monitor, and atomic batches
+// exclude every other call while they apply
+public final class InMemoryBackend implements StorageBackend {
+    private static final int DEFAULT_STRIPES = 16;
+
+    private final List<ConcurrentHashMap<String, Object>> stripes;
+    private final ReadWriteLock batchLock = new ReentrantReadWriteLock();
+
+    public InMemoryBackend() {
+        this(DEFAULT_STRIPES);
+    }
+
+    public InMemoryBackend(int stripeCount) {
+        // a power of two, so a stripe is picked with a mask
+        int size = Integer.highestOneBit(Math.max(1, stripeCount - 1)) << 1;
+        this.stripes = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            stripes.add(new ConcurrentHashMap<>());
+        }
+    }
+
+    @Override
+    public void read(ReadBatch batch) {
+        batchLock.readLock().lock();
+        try {
+            for (ReadBatch.Read<?> read : batch.reads()) {
+                read.complete(execute(read));
+            }
+        } finally {
+            batchLock.readLock().unlock();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private Object execute(ReadBatch.Read<?> read) {
+        Object value = stripe(read.key()).get(read.key());
+        switch (read.kind()) {
+            case HASH: {
+                Map<String, String> hash = LocalValues.typed(value, HashValue.class, read.key());
+                if (hash == null) {
+                    return new HashMap<String, String>();
+                }
+                synchronized (hash) {
+                    return new HashMap<>(hash);
+                }
+            }
+            case HASH_FIELDS: {
+                Map<String, String> hash = LocalValues.typed(value, HashValue.class, read.key());
+                List<String> values = new ArrayList<>(read.fields().size());
+                for (String field : read.fields()) {
+                    if (hash == null) {
+                        values.add(null);
+                    } else {
+                        synchronized (hash) {
+                            values.add(hash.get(field));
+                        }
+                    }
+                }
+                return values;
+            }
+            case VALUE: {
+                byte[] bytes = LocalValues.typed(value, byte[].class, read.key());
+                return bytes == null ? null : bytes.clone();
+            }
+            case LIST: {
+                List<String> list = LocalValues.typed(value, ListValue.class, read.key());
+                if (list == null) {
+                    return new ArrayList<String>();
+                }
+                synchronized (list) {
+                    return LocalValues.page(list, read.offset(), read.count());
+                }
+            }
+            case SET: {
+                Set<String> set = LocalValues.typed(value, SetValue.class, read.key());
+                if (set == null) {
+                    return new LinkedHashSet<String>();
+                }
+                synchronized (set) {
+                    return new LinkedHashSet<>(set);
+                }
+            }
+            case SORTED_SET_RANGE: {
+                SortedSetValue sortedSet = LocalValues.typed(value, SortedSetValue.class, read.key());
+                if (sortedSet == null) {
+                    return new ArrayList<String>();
+                }
+                synchronized (sortedSet) {
+                    return LocalValues.page(sortedSet.range(read.min(), read.max()), read.offset(), read.count());
+                }
+            }
+            case SORTED_PAGE: {
+                SortedSetValue sortedSet = LocalValues.typed(value, SortedSetValue.class, read.key());
+                if (sortedSet == null) {
+                    return new ArrayList<String>();
+                }
+                synchronized (sortedSet) {
+                    return sortedSet.members(read.offset(), read.count());
+                }
+            }
+            default:
+                throw new RuntimeException("Unsupported read " + read.kind());
+        }
+    }
+
+    @Override
+    public long write(WriteBatch batch, boolean atomic) {
+        if (batch.isEmpty()) {
+            return 0;
+        }
+
+        Lock lock = atomic ? batchLock.writeLock() : batchLock.readLock();
+        lock.lock();
+        try {
+            long unlinked = 0;
+            for (String key : batch.unlinks()) {
+                if (stripe(key).remove(key) != null) {
+                    unlinked++;
+                }
+            }
+            for (Map.Entry<String, Set<String>> entry : batch.hashRemoves().entrySet()) {
+                long[] removed = new long[1];
+                update(entry.getKey(), HashValue.class, HashValue::new, value -> {
+                    for (String field : entry.getValue()) {
+                        if (value.remove(field) != null) {
+                            removed[0]++;
+                        }
+                    }
+                });
+                unlinked += removed[0];
+            }
+            batch.hashes().forEach((key, hash) -> {
+                if (!hash.isEmpty()) {
+                    update(key, HashValue.class, HashValue::new, value -> value.putAll(hash));
+                }
+            });
+            batch.values().forEach((key, value) -> stripe(key).put(key, value.clone()));
+            batch.setAdds().forEach((key, members) ->
+                update(key, SetValue.class, SetValue::new, value -> value.addAll(members)));
+            batch.setRemoves().forEach((key, members) ->
+                update(key, SetValue.class, SetValue::new, value -> value.removeAll(members)));
+            batch.listRemoves().forEach((key, elements) ->
+                update(key, ListValue.class, ListValue::new, value -> value.removeAll(elements)));
+            batch.listAppends().forEach((key, elements) ->
+                update(key, ListValue.class, ListValue::new, value -> value.addAll(elements)));
+            batch.sortedSetAdds().forEach((key, members) ->
+                update(key, SortedSetValue.class, SortedSetValue::new, value -> members.forEach(value::add)));
+            batch.sortedSetRemoves().forEach((key, members) ->
+                update(key, SortedSetValue.class, SortedSetValue::new, value -> members.forEach(value::remove)));
+            return unlinked;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // changes the value at key in place, creating it when missing and dropping it once empty like redis does
+    private <V> void update(String key, Class<V> type, Supplier<V> create, Consumer<V> change) {
+        stripe(key).compute(key, (k, existing) -> {
+            V value = existing == null ? create.get() : LocalValues.typed(existing, type, key);
+            synchronized (value) {
+                change.accept(value);
+                return LocalValues.isEmpty(value) ? null : value;
+            }
+        });
+    }
+
+    // walks one stripe per call, the cursor is the index of the next stripe
+    @Override
+    public ScanPage scan(String cursor, String pattern, int count) {
+        batchLock.readLock().lock();
+        try {
+            int index = Integer.parseInt(cursor);
+            Pattern regex = LocalValues.globToRegex(pattern);
+            List<String> keys = new ArrayList<>();
+            for (String key : stripes.get(index).keySet()) {
+                if (regex.matcher(key).matches()) {
+                    keys.add(key);
+                }
+            }
+            int next = index + 1;
+            return new ScanPage(next == stripes.size() ? ScanPage.START : Integer.toString(next), keys);
+        } finally {
+            batchLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public ScanPage scanSet(String key, String cursor, int count) {
+        ReadBatch batch = new ReadBatch();
+        ReadBatch.Read<Set<String>> members = batch.set(key);
+        read(batch);
+        return new ScanPage(ScanPage.START, new ArrayList<>(members.get()));
+    }
+
+    @Override
+    public long delete(Collection<String> keys) {
+        batchLock.readLock().lock();
+        try {
+            long deleted = 0;
+            for (String key : keys) {
+                if (stripe(key).remove(key) != null) {
+                    deleted++;
+                }
+            }
+            return deleted;
+        } finally {
+            batchLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public int parallelism() {
+        return Runtime.getRuntime().availableProcessors();
+    }
+
+    @Override
+    public void close() {
+        for (Map<String, Object> stripe : stripes) {
+            stripe.clear();
+        }
+    }
+
+    private ConcurrentHashMap<String, Object> stripe(String key) {
+        int hash = key.hashCode();
+        // spread the high bits, as the maps themselves use the low ones
+        return stripes.get((hash ^ (hash >>> 16)) & (stripes.size() - 1));
+    }
+}
@@ -0,0 +1,104 @@
+package com.ecs160.persistence;
+
+import com.ecs160.persistence.ClassDescriptor.FieldDescriptor;
+import com.ecs160.persistence.annotations.LazyLoad;
+import javassist.util.proxy.MethodHandler;
+import javassist.util.proxy.Proxy;
+import javassist.util.proxy.ProxyFactory;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Method;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+// handler for javassist subclass proxies that load @LazyLoad fields on first access
+final class LazyLoader implements MethodHandler {
+    private static final ClassValue<Class<?>> PROXY_CLASSES = new ClassValue<>() {
+        @Override
+        protected Class<?> computeValue(Class<?> type) {
+            ProxyFactory factory = new ProxyFactory();
+            factory.setSuperclass(type);
+            factory.setFilter(method -> method.isAnnotationPresent(LazyLoad.class));
+            try {
+                // define the proxy next to the model so package-private classes work too
+                return factory.createClass(MethodHandles.privateLookupIn(type, MethodHandles.lookup()));
+            } catch (IllegalAccessException e) {
+                throw new RuntimeException("Cannot create lazy load proxy for " + type.getName(), e);
+            }
+        }
+    };
+
+    private final RedisDB redisDB;
+    private final ClassDescriptor descriptor;
+    private final String objectKey;
+    private final Set<String> loadedFields = new HashSet<>();
+    // lazy field -> what the constructor left in it, held until the field is loaded or assigned
+    private final Map<String, Object> initialValues = new HashMap<>();
+
+    private LazyLoader(RedisDB redisDB, ClassDescriptor descriptor, String objectKey) {
+        this.redisDB = redisDB;
+        this.descriptor = descriptor;
+        this.objectKey = objectKey;
+    }
+
+    static Object newInstance(RedisDB redisDB, ClassDescriptor descriptor, String objectKey) throws Exception {
+        Object proxy = PROXY_CLASSES.get(descriptor.type()).getDeclaredConstructor().newInstance();
+        LazyLoader loader = new LazyLoader(redisDB, descriptor, objectKey);
+        for (FieldDescriptor field : descriptor.fields()) {
+            if (field.isLazy()) {
+                loader.initialValues.put(field.name(), field.accessor().get(proxy));
+            }
+        }
+        ((Proxy) proxy).setHandler(loader);
+        return proxy;
+    }
+
+    static boolean isProxyClass(Class<?> type) {
+        return ProxyFactory.isProxyClass(type);
+    }
+
+    // false only for a lazy field of a loaded proxy that was neither read nor assigned
+    static boolean isLoaded(Object o, FieldDescriptor field) {
+        if (!(o instanceof Proxy)) {
+            return true;
+        }
+        MethodHandler handler = ProxyFactory.getHandler((Proxy) o);
+        if (!(handler instanceof LazyLoader)) {
+            return true;
+        }
+        return ((LazyLoader) handler).isLoadedOrAssigned(o, field);
+    }
+
+    private synchronized boolean isLoadedOrAssigned(Object self, FieldDescriptor field) {
+        return loadedFields.contains(field.name()) || isAssigned(self, field);
+    }
+
+    // primitives read back boxed and compare by value, objects by identity so an
+    // initializer's own list still counts as unassigned
+    private boolean isAssigned(Object self, FieldDescriptor field) {
+        Object initial = initialValues.get(field.name());
+        Object current = field.accessor().get(self);
+        return field.accessor().isPrimitive() ? !Objects.equals(initial, current) : initial != current;
+    }
+
+    @Override
+    public Object invoke(Object self, Method thisMethod, Method proceed, Object[] args) throws Throwable {
+        String fieldName = thisMethod.getAnnotation(LazyLoad.class).field();
+
+        synchronized (this) {
+            if (!loadedFields.contains(fieldName)) {
+                FieldDescriptor field = descriptor.field(fieldName);
+                // keep a value the caller assigned before the first read
+                if (field != null && !isAssigned(self, field)) {
+                    redisDB.loadLazyField(self, objectKey, field);
+                }
+                loadedFields.add(fieldName);
+            }
+        }
+
+        return proceed.invoke(self, args);
+    }
+}
@@ -0,0 +1,199 @@
+package com.ecs160.persistence;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.TreeSet;
+import java.util.regex.Pattern;
+
+// value types and helpers shared by the local backends, with redis semantics
+final class LocalValues {
+    private LocalValues() {
+    }
+
+    static final class HashValue extends LinkedHashMap<String, String> {
+        private static final long serialVersionUID = 1L;
+    }
+
+    static final class ListValue extends ArrayList<String> {
+        private static final long serialVersionUID = 1L;
+    }
+
+    static final class SetValue extends LinkedHashSet<String> {
+        private static final long serialVersionUID = 1L;
+    }
+
+    // members ordered by score, then lexicographically like redis
+    static final class SortedSetValue {
+        private final Map<String, Double> scores = new HashMap<>();
+        private final TreeSet<Scored> ordered = new TreeSet<>();
+
+        void add(String member, double score) {
+            remove(member);
+            scores.put(member, score);
+            ordered.add(new Scored(score, member));
+        }
+
+        void remove(String member) {
+            Double score = scores.remove(member);
+            if (score != null) {
+                ordered.remove(new Scored(score, member));
+            }
+        }
+
+        boolean contains(String member) {
+            return scores.containsKey(member);
+        }
+
+        Double score(String member) {
+            return scores.get(member);
+        }
+
+        boolean isEmpty() {
+            return scores.isEmpty();
+        }
+
+        int size() {
+            return scores.size();
+        }
+
+        // members with min <= score <= max, found from the lowest match on
+        List<String> range(double min, double max) {
+            List<String> members = new ArrayList<>();
+            // the empty string sorts before every member of the same score
+            NavigableSet<Scored> from = ordered.tailSet(new Scored(min, ""), true);
+            for (Scored scored : from) {
+                if (scored.score > max) {
+                    break;
+                }
+                members.add(scored.member);
+            }
+            return members;
+        }
+
+        // members in score order from rank offset on, a negative count reads to the end
+        List<String> members(long offset, long count) {
+            List<String> members = new ArrayList<>();
+            long rank = 0;
+            for (Scored scored : ordered) {
+                if (count >= 0 && members.size() >= count) {
+                    break;
+                }
+                if (rank++ >= offset) {
+                    members.add(scored.member);
+                }
+            }
+            return members;
+        }
+
+        // member -> score in score order
+        Map<String, Double> entries() {
+            Map<String, Double> entries = new LinkedHashMap<>();
+            for (Scored scored : ordered) {
+                entries.put(scored.member, scored.score);
+            }
+            return entries;
+        }
+    }
+
+    private static final class Scored implements Comparable<Scored> {
+        private final double score;
+        private final String member;
+
+        Scored(double score, String member) {
+            this.score = score;
+            this.member = member;
+        }
+
+        @Override
+        public int compareTo(Scored other) {
+            int byScore = Double.compare(score, other.score);
+            return byScore != 0 ? byScore : member.compareTo(other.member);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Scored && compareTo((Scored) o) == 0;
+        }
+
+        @Override
+        public int hashCode() {
+            return Double.hashCode(score) * 31 + member.hashCode();
+        }
+    }
+
+    static boolean isEmpty(Object value) {
+        if (value instanceof Map) {
+            return ((Map<?, ?>) value).isEmpty();
+        }
+        if (value instanceof Collection) {
+            return ((Collection<?>) value).isEmpty();
+        }
+        return value instanceof SortedSetValue && ((SortedSetValue) value).isEmpty();
+    }
+
+    static <V> V typed(Object value, Class<V> type, String key) {
+        if (value == null) {
+            return null;
+        }
+        if (!type.isInstance(value)) {
+            throw wrongType(key);
+        }
+        return type.cast(value);
+    }
+
+    static RuntimeException wrongType(String key) {
+        return new RuntimeException("WRONGTYPE Operation against key " + key + " holding the wrong kind of value");
+    }
+
+    static <T> List<T> page(List<T> elements, long offset, long count) {
+        if (offset >= elements.size()) {
+            return new ArrayList<>();
+        }
+        long end = count < 0 ? elements.size() : Math.min(elements.size(), offset + count);
+        return new ArrayList<>(elements.subList((int) offset, (int) end));
+    }
+
+    // redis glob syntax: * ? [...] and backslash escapes
+    static Pattern globToRegex(String glob) {
+        StringBuilder regex = new StringBuilder();
+        for (int i = 0; i < glob.length(); i++) {
+            char c = glob.charAt(i);
+            switch (c) {
+                case '*':
+                    regex.append(".*");
+                    break;
+                case '?':
+                    regex.append('.');
+                    break;
+                case '[': {
+                    int close = glob.indexOf(']', i + 1);
+                    if (close < 0) {
+                        regex.append("\\[");
+                        break;
+                    }
+                    // ranges and a leading ^ mean the same in both syntaxes
+                    String body = glob.substring(i + 1, close)
+                        .replace("\\", "\\\\").replace("[", "\\[").replace("&", "\\&");
+                    regex.append('[').append(body).append(']');
+                    i = close;
+                    break;
+                }
+                case '\\':
+                    if (i + 1 < glob.length()) {
+                        regex.append(Pattern.quote(String.valueOf(glob.charAt(++i))));
+                    }
+                    break;
+                default:
+                    regex.append(Pattern.quote(String.valueOf(c)));
+                    break;
+            }
+        }
+        return Pattern.compile(regex.toString(), Pattern.DOTALL);
+    }
+}
@@ -0,0 +1,128 @@
+package com.ecs160.persistence;
+
+import java.util.Collection;
+import java.util.List;
+
+// wraps the storage of a RedisDB to count round trips and time spent waiting on it, charged to the
+// call running on the current thread. without such a call it only delegates
+final class MeteredBackend implements StorageBackend {
+    private final StorageBackend delegate;
+    private final ThreadLocal<Call> current = new ThreadLocal<>();
+
+    MeteredBackend(StorageBackend delegate) {
+        this.delegate = delegate;
+    }
+
+    // starts measuring a call on this thread, nested calls also count toward the ones around them
+    Call begin() {
+        Call call = new Call(current.get());
+        current.set(call);
+        return call;
+    }
+
+    void end(Call call, PersistenceMetrics metrics, PersistenceMetrics.Operation operation) {
+        long nanos = System.nanoTime() - call.start;
+        if (call.parent == null) {
+            current.remove();
+        } else {
+            current.set(call.parent);
+            call.parent.roundTrips += call.roundTrips;
+            call.parent.storageNanos += call.storageNanos;
+        }
+        metrics.recordCall(operation, nanos, call.storageNanos, call.roundTrips);
+    }
+
+    @Override
+    public void read(ReadBatch batch) {
+        Call call = current.get();
+        long start = call == null ? 0 : System.nanoTime();
+        try {
+            delegate.read(batch);
+        } finally {
+            charge(call, start);
+        }
+    }
+
+    @Override
+    public long write(WriteBatch batch, boolean atomic) {
+        Call call = current.get();
+        long start = call == null ? 0 : System.nanoTime();
+        try {
+            return delegate.write(batch, atomic);
+        } finally {
+            charge(call, start);
+        }
+    }
+
+    @Override
+    public ScanPage scan(String cursor, String pattern, int count) {
+        Call call = current.get();
+        long start = call == null ? 0 : System.nanoTime();
+        try {
+            return delegate.scan(cursor, pattern, count);
+        } finally {
+            charge(call, start);
+        }
+    }
+
+    @Override
+    public ScanPage scanSet(String key, String cursor, int count) {
+        Call call = current.get();
+        long start = call == null ? 0 : System.nanoTime();
+        try {
+            return delegate.scanSet(key, cursor, count);
+        } finally {
+            charge(call, start);
+        }
+    }
+
+    @Override
+    public long delete(Collection<String> keys) {
+        Call call = current.get();
+        long start = call == null ? 0 : System.nanoTime();
+        try {
+            return delegate.delete(keys);
+        } finally {
+            charge(call, start);
+        }
+    }
+
+    @Override
+    public List<ScriptRun> evalScript(String script, List<String> keys, List<String> args) {
+        Call call = current.get();
+        long start = call == null ? 0 : System.nanoTime();
+        try {
+            return delegate.evalScript(script, keys, args);
+        } finally {
+            charge(call, start);
+        }
+    }
+
+    @Override
+    public int parallelism() {
+        return delegate.parallelism();
+    }
+
+    @Override
+    public void close() {
+        delegate.close();
+    }
+
+    private static void charge(Call call, long start) {
+        if (call != null) {
+            call.roundTrips++;
+            call.storageNanos += System.nanoTime() - start;
+        }
+    }
+
+    static final class Call {
+        private final Call parent;
+        private final long start = System.nanoTime();
+        private int roundTrips;
+        private long storageNanos;
+
+        private Call(Call parent) {
+            this.parent = parent;
+        }
+    }
+}
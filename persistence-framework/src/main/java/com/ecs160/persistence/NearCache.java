@@ -0,0 +1,180 @@
+package com.ecs160.persistence;
+
+import java.time.Duration;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+// bounded in-process LRU cache of fetched object hashes, with per-class time to live.
+// entries are split into independently locked stripes by key, each its own LRU, so concurrent
+// loads of different objects rarely wait on each other
+public final class NearCache {
+    private static final int STRIPES = 16;
+    // below this many entries per stripe the cache keeps fewer stripes, so small bounds stay exact
+    private static final int MIN_STRIPE_ENTRIES = 64;
+
+    private final Duration defaultTtl;
+    private final Map<Class<?>, Duration> classTtls = new ConcurrentHashMap<>();
+    private final Stripe[] stripes;
+    // every class ever cached, invalidation by key drops the entry of each
+    private final Set<Class<?>> cachedClasses = ConcurrentHashMap.newKeySet();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    // bumped on every invalidation so fetches that raced with a write are not cached
+    private final AtomicLong generation = new AtomicLong();
+
+    NearCache(int maxEntries, Duration defaultTtl) {
+        this.defaultTtl = defaultTtl;
+        int count = Math.max(1, Math.min(STRIPES, maxEntries / MIN_STRIPE_ENTRIES));
+        this.stripes = new Stripe[count];
+        for (int i = 0; i < count; i++) {
+            // the remainder goes to the first stripes, so the bounds add up to maxEntries
+            stripes[i] = new Stripe(maxEntries / count + (i < maxEntries % count ? 1 : 0));
+        }
+    }
+
+    // a zero or negative ttl keeps objects of that class out of the cache
+    public void setTtl(Class<?> clazz, Duration ttl) {
+        classTtls.put(clazz, ttl);
+    }
+
+    public long hitCount() {
+        return hits.sum();
+    }
+
+    public long missCount() {
+        return misses.sum();
+    }
+
+    public int size() {
+        int size = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                size += stripe.size();
+            }
+        }
+        return size;
+    }
+
+    public void invalidateAll() {
+        generation.incrementAndGet();
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                stripe.clear();
+            }
+        }
+    }
+
+    Map<String, String> get(Class<?> clazz, String key) {
+        CacheKey cacheKey = new CacheKey(clazz, key);
+        Stripe stripe = stripeOf(key);
+        Entry entry;
+        synchronized (stripe) {
+            entry = stripe.get(cacheKey);
+            if (entry != null && entry.expiresAt < System.nanoTime()) {
+                stripe.remove(cacheKey);
+                entry = null;
+            }
+        }
+
+        if (entry == null) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        return entry.hash;
+    }
+
+    // taken before fetching, so put can tell whether a write happened meanwhile
+    long stamp() {
+        return generation.get();
+    }
+
+    void put(Class<?> clazz, String key, Map<String, String> hash, long stamp) {
+        Duration ttl = classTtls.getOrDefault(clazz, defaultTtl);
+        if (ttl == null || ttl.isZero() || ttl.isNegative()) {
+            return;
+        }
+
+        long expiresAt = System.nanoTime() + ttl.toNanos();
+        cachedClasses.add(clazz);
+        Stripe stripe = stripeOf(key);
+        synchronized (stripe) {
+            if (generation.get() == stamp) {
+                stripe.put(new CacheKey(clazz, key), new Entry(hash, expiresAt));
+            }
+        }
+    }
+
+    // a write to a key changes what every class reads from it
+    void invalidate(Collection<String> keys) {
+        generation.incrementAndGet();
+        for (String key : keys) {
+            Stripe stripe = stripeOf(key);
+            synchronized (stripe) {
+                for (Class<?> clazz : cachedClasses) {
+                    stripe.remove(new CacheKey(clazz, key));
+                }
+            }
+        }
+    }
+
+    private Stripe stripeOf(String key) {
+        return stripes[(key.hashCode() & Integer.MAX_VALUE) % stripes.length];
+    }
+
+    // access order makes the eldest entry the least recently used one
+    private static final class Stripe extends LinkedHashMap<CacheKey, Entry> {
+        private static final long serialVersionUID = 1L;
+
+        private final int maxEntries;
+
+        Stripe(int maxEntries) {
+            super(16, 0.75f, true);
+            this.maxEntries = maxEntries;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<CacheKey, Entry> eldest) {
+            return size() > maxEntries;
+        }
+    }
+
+    private static final class CacheKey {
+        private final Class<?> type;
+        private final String key;
+
+        CacheKey(Class<?> type, String key) {
+            this.type = type;
+            this.key = key;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof CacheKey)) {
+                return false;
+            }
+            CacheKey other = (CacheKey) o;
+            return type == other.type && key.equals(other.key);
+        }
+
+        @Override
+        public int hashCode() {
+            return type.hashCode() * 31 + key.hashCode();
+        }
+    }
+
+    private static final class Entry {
+        private final Map<String, String> hash;
+        private final long expiresAt;
+
+        Entry(Map<String, String> hash, long expiresAt) {
+            this.hash = hash;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
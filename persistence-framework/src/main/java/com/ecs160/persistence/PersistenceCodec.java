@@ -0,0 +1,22 @@
+package com.ecs160.persistence;
+
+// field access for one model class without reflection. PersistenceCodecProcessor generates an
+// implementation named <Model>_PersistenceCodec next to every @PersistableObject class it compiles,
+// and RedisDB picks it up by that name. fields left out of fields() are accessed reflectively
+public interface PersistenceCodec<T> {
+    String SUFFIX = "_PersistenceCodec";
+
+    // names of the fields the codec handles, a field's index is its position here
+    String[] fields();
+
+    T newInstance();
+
+    Object get(T instance, int field);
+
+    void set(T instance, int field, Object value);
+
+    // text form of an int, long, double or boolean field, without boxing
+    String getString(T instance, int field);
+
+    void setString(T instance, int field, String value);
+}
@@ -0,0 +1,44 @@
+package com.ecs160.persistence;
+
+// receives what RedisDB measures; PersistenceStats keeps counters and histograms and shows them over jmx,
+// other implementations can forward to any metrics system. calls come from every thread using RedisDB
+public interface PersistenceMetrics {
+    PersistenceMetrics NONE = new PersistenceMetrics() {
+        @Override
+        public void recordCall(Operation operation, long nanos, long storageNanos, int roundTrips) {
+        }
+
+        @Override
+        public void recordBytesWritten(Class<?> type, long bytes) {
+        }
+
+        @Override
+        public void recordBytesRead(Class<?> type, long bytes) {
+        }
+    };
+
+    enum Operation {
+        // persist and persistAll, the whole object graph
+        PERSIST,
+        // load and loadAll, nested levels included
+        LOAD,
+        LOAD_LIST,
+        // one level of nested objects fetched while loading, also part of the enclosing load
+        NESTED_LOAD,
+        // a @LazyLoad field read on first access
+        LAZY_LOAD,
+        LIST_KEYS,
+        DELETE_KEY,
+        // count, sum and filter, on the server or by a sweep over the stored objects
+        QUERY
+    }
+
+    // one finished call: its total time, the part spent waiting on the storage, and its storage round trips.
+    // the rest of the time went to mapping, i.e. reflection, encoding and decoding
+    void recordCall(Operation operation, long nanos, long storageNanos, int roundTrips);
+
+    // utf-8 size of the keys and values written for one object of type
+    void recordBytesWritten(Class<?> type, long bytes);
+
+    void recordBytesRead(Class<?> type, long bytes);
+}
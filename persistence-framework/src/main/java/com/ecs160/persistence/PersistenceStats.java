@@ -0,0 +1,202 @@
+package com.ecs160.persistence;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.ToLongFunction;
+
+// in-process metrics: per operation a latency histogram, call and round trip counters and the split
+// between storage and mapping time, plus bytes moved per class. a high round trips per call, or many
+// small loads where one loadAll would do, is how N+1 access shows up here
+public final class PersistenceStats implements PersistenceMetrics, PersistenceStatsMXBean {
+    private final Map<Operation, OperationStats> operations = new EnumMap<>(Operation.class);
+    private final ConcurrentHashMap<String, LongAdder> bytesWritten = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, LongAdder> bytesRead = new ConcurrentHashMap<>();
+    private ObjectName registeredName;
+
+    public PersistenceStats() {
+        for (Operation operation : Operation.values()) {
+            operations.put(operation, new OperationStats());
+        }
+    }
+
+    // shows these stats as com.ecs160.persistence:type=PersistenceStats,name=<name> on the platform server
+    public synchronized void register(String name) {
+        try {
+            ObjectName objectName = new ObjectName("com.ecs160.persistence", "type", "PersistenceStats");
+            objectName = new ObjectName(objectName.getCanonicalName() + ",name=" + ObjectName.quote(name));
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            if (server.isRegistered(objectName)) {
+                server.unregisterMBean(objectName);
+            }
+            server.registerMBean(this, objectName);
+            registeredName = objectName;
+        } catch (JMException e) {
+            throw new RuntimeException("Cannot register persistence stats " + name, e);
+        }
+    }
+
+    public synchronized void unregister() {
+        if (registeredName == null) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(registeredName);
+        } catch (JMException e) {
+            // already gone
+        }
+        registeredName = null;
+    }
+
+    @Override
+    public void recordCall(Operation operation, long nanos, long storageNanos, int roundTrips) {
+        OperationStats stats = operations.get(operation);
+        stats.latency.record(nanos);
+        stats.calls.increment();
+        stats.roundTrips.add(roundTrips);
+        stats.totalNanos.add(nanos);
+        stats.storageNanos.add(storageNanos);
+    }
+
+    @Override
+    public void recordBytesWritten(Class<?> type, long bytes) {
+        bytesWritten.computeIfAbsent(type.getName(), k -> new LongAdder()).add(bytes);
+    }
+
+    @Override
+    public void recordBytesRead(Class<?> type, long bytes) {
+        bytesRead.computeIfAbsent(type.getName(), k -> new LongAdder()).add(bytes);
+    }
+
+    // latencies in nanoseconds
+    public LatencyHistogram latency(Operation operation) {
+        return operations.get(operation).latency;
+    }
+
+    public long calls(Operation operation) {
+        return operations.get(operation).calls.sum();
+    }
+
+    public long roundTrips(Operation operation) {
+        return operations.get(operation).roundTrips.sum();
+    }
+
+    public long storageNanos(Operation operation) {
+        return operations.get(operation).storageNanos.sum();
+    }
+
+    public long mappingNanos(Operation operation) {
+        OperationStats stats = operations.get(operation);
+        return stats.totalNanos.sum() - stats.storageNanos.sum();
+    }
+
+    public long bytesWritten(Class<?> type) {
+        LongAdder bytes = bytesWritten.get(type.getName());
+        return bytes == null ? 0 : bytes.sum();
+    }
+
+    public long bytesRead(Class<?> type) {
+        LongAdder bytes = bytesRead.get(type.getName());
+        return bytes == null ? 0 : bytes.sum();
+    }
+
+    @Override
+    public Map<String, Long> getCalls() {
+        return perOperation(stats -> stats.calls.sum());
+    }
+
+    @Override
+    public Map<String, Double> getRoundTripsPerCall() {
+        Map<String, Double> result = new TreeMap<>();
+        operations.forEach((operation, stats) -> {
+            long calls = stats.calls.sum();
+            result.put(operation.name(), calls == 0 ? 0 : (double) stats.roundTrips.sum() / calls);
+        });
+        return result;
+    }
+
+    @Override
+    public Map<String, Long> getLatencyMeanMicros() {
+        return perOperation(stats -> TimeUnit.NANOSECONDS.toMicros((long) stats.latency.mean()));
+    }
+
+    @Override
+    public Map<String, Long> getLatencyP50Micros() {
+        return perOperation(stats -> TimeUnit.NANOSECONDS.toMicros(stats.latency.percentile(50)));
+    }
+
+    @Override
+    public Map<String, Long> getLatencyP99Micros() {
+        return perOperation(stats -> TimeUnit.NANOSECONDS.toMicros(stats.latency.percentile(99)));
+    }
+
+    @Override
+    public Map<String, Long> getLatencyP999Micros() {
+        return perOperation(stats -> TimeUnit.NANOSECONDS.toMicros(stats.latency.percentile(99.9)));
+    }
+
+    @Override
+    public Map<String, Long> getLatencyMaxMicros() {
+        return perOperation(stats -> TimeUnit.NANOSECONDS.toMicros(stats.latency.max()));
+    }
+
+    @Override
+    public Map<String, Long> getStorageTimeMillis() {
+        return perOperation(stats -> TimeUnit.NANOSECONDS.toMillis(stats.storageNanos.sum()));
+    }
+
+    @Override
+    public Map<String, Long> getMappingTimeMillis() {
+        return perOperation(stats -> TimeUnit.NANOSECONDS.toMillis(stats.totalNanos.sum() - stats.storageNanos.sum()));
+    }
+
+    @Override
+    public Map<String, Long> getBytesWrittenByClass() {
+        return perClass(bytesWritten);
+    }
+
+    @Override
+    public Map<String, Long> getBytesReadByClass() {
+        return perClass(bytesRead);
+    }
+
+    @Override
+    public void reset() {
+        for (OperationStats stats : operations.values()) {
+            stats.latency.reset();
+            stats.calls.reset();
+            stats.roundTrips.reset();
+            stats.totalNanos.reset();
+            stats.storageNanos.reset();
+        }
+        bytesWritten.clear();
+        bytesRead.clear();
+    }
+
+    private Map<String, Long> perOperation(ToLongFunction<OperationStats> value) {
+        Map<String, Long> result = new TreeMap<>();
+        operations.forEach((operation, stats) -> result.put(operation.name(), value.applyAsLong(stats)));
+        return result;
+    }
+
+    private static Map<String, Long> perClass(Map<String, LongAdder> bytes) {
+        Map<String, Long> result = new TreeMap<>();
+        bytes.forEach((type, adder) -> result.put(type, adder.sum()));
+        return result;
+    }
+
+    private static final class OperationStats {
+        private final LatencyHistogram latency = new LatencyHistogram();
+        private final LongAdder calls = new LongAdder();
+        private final LongAdder roundTrips = new LongAdder();
+        private final LongAdder totalNanos = new LongAdder();
+        private final LongAdder storageNanos = new LongAdder();
+    }
+}
@@ -0,0 +1,31 @@
+package com.ecs160.persistence;
+
+import java.util.Map;
+
+// jmx view of PersistenceStats, maps are keyed by operation or class name
+public interface PersistenceStatsMXBean {
+    Map<String, Long> getCalls();
+
+    Map<String, Double> getRoundTripsPerCall();
+
+    Map<String, Long> getLatencyMeanMicros();
+
+    Map<String, Long> getLatencyP50Micros();
+
+    Map<String, Long> getLatencyP99Micros();
+
+    Map<String, Long> getLatencyP999Micros();
+
+    Map<String, Long> getLatencyMaxMicros();
+
+    // time waiting on the storage versus time spent mapping objects, per operation
+    Map<String, Long> getStorageTimeMillis();
+
+    Map<String, Long> getMappingTimeMillis();
+
+    Map<String, Long> getBytesWrittenByClass();
+
+    Map<String, Long> getBytesReadByClass();
+
+    void reset();
+}
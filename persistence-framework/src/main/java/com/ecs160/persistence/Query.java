@@ -0,0 +1,449 @@
+package com.ecs160.persistence;
+
+import com.ecs160.persistence.ClassDescriptor.Converter;
+import com.ecs160.persistence.ClassDescriptor.FieldDescriptor;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+// a count, sum or id listing over the stored objects of one class. it compiles to a lua script
+// that runs where the data lives over one chunk of object keys or buckets at a time, and the
+// chunks' partial results are folded here; backends without scripts evaluate the same conditions
+// on the client. values are passed as script arguments, so one script serves every query of the
+// same shape and the backend's script cache stays small
+final class Query {
+    enum Result {
+        COUNT,
+        SUM,
+        IDS
+    }
+
+    // integer sums come back from scripts in parts of this many, see addInteger
+    private static final long PART = 10_000_000L;
+
+    // shared by every script: field lookup, comparisons that treat a missing value as
+    // incomparable, exact integer sums and the split of packed bucket fields
+    private static final String PRELUDE = String.join("\n",
+        "local function pick(values, from, to)",
+        "  for i = from, to do",
+        "    if values[i] and values[i] ~= '' then return values[i] end",
+        "  end",
+        "  return ''",
+        "end",
+        "local function holds(c, op)",
+        "  if c == nil then return op == 'ne' end",
+        "  if op == 'eq' then return c == 0 end",
+        "  if op == 'ne' then return c ~= 0 end",
+        "  if op == 'lt' then return c < 0 end",
+        "  if op == 'le' then return c <= 0 end",
+        "  if op == 'gt' then return c > 0 end",
+        "  return c >= 0",
+        "end",
+        "local function number(v, arg)",
+        "  local a, b = tonumber(v), tonumber(arg)",
+        "  if a == nil or b == nil or a ~= a or b ~= b then return nil end",
+        "  if a < b then return -1 elseif a > b then return 1 end",
+        "  return 0",
+        "end",
+        "local function date(v, arg)",
+        "  if #v < 10 then return nil end",
+        "  local d = string.sub(v, 1, 10)",
+        "  if d < arg then return -1 elseif d > arg then return 1 end",
+        "  return 0",
+        "end",
+        "local function text(v, arg)",
+        "  if v == '' then return nil end",
+        "  if v == arg then return 0 end",
+        "  return 1",
+        "end",
+        // lua numbers are doubles, so integers are summed in parts of seven digits that stay exact
+        "local function addInteger(parts, v)",
+        "  local sign, digits = string.match(v, '^(%-?)(%d+)$')",
+        "  if digits == nil then return end",
+        "  local s, n = sign == '-' and -1 or 1, #digits",
+        "  parts[1] = parts[1] + s * tonumber(string.sub(digits, math.max(1, n - 6)))",
+        "  if n > 7 then parts[2] = parts[2] + s * tonumber(string.sub(digits, math.max(1, n - 13), n - 7)) end",
+        "  if n > 14 then parts[3] = parts[3] + s * tonumber(string.sub(digits, 1, n - 14)) end",
+        "end",
+        "local function split(packed)",
+        "  local values, current, start = {}, '', 1",
+        "  while true do",
+        "    local i = string.find(packed, '[\\27\\31]', start)",
+        "    if i == nil then",
+        "      values[#values + 1] = current .. string.sub(packed, start)",
+        "      return values",
+        "    end",
+        "    current = current .. string.sub(packed, start, i - 1)",
+        "    if string.sub(packed, i, i) == '\\31' then",
+        "      values[#values + 1] = current",
+        "      current = ''",
+        "      start = i + 1",
+        "    elseif i < #packed then",
+        "      current = current .. string.sub(packed, i + 1, i + 1)",
+        "      start = i + 2",
+        "    else",
+        "      current = current .. '\\27'",
+        "      start = i + 1",
+        "    end",
+        "  end",
+        "end",
+        "local count, total, parts, ids = 0, 0, {0, 0, 0}, {}",
+        "");
+
+    private final ClassDescriptor descriptor;
+    private final Result result;
+    private final Filter filter;
+    private final FieldDescriptor sumField;
+    private final boolean integerSum;
+    // every field the query reads, numbered in the order the script reads them
+    private final Map<FieldDescriptor, Integer> fields = new LinkedHashMap<>();
+    // the stored form of each compared value, by the comparison it belongs to
+    private final Map<Filter, String> values = new IdentityHashMap<>();
+    private final List<String> arguments = new ArrayList<>();
+    private final int hashFieldCount;
+    private final String condition;
+    // what the chunks add up to so far
+    private long count;
+    private long integerTotal;
+    private double total;
+    private final List<String> ids = new ArrayList<>();
+
+    // format turns a compared value into its stored form
+    Query(ClassDescriptor descriptor, Result result, Filter filter, String sumFieldName,
+          Function<Object, String> format) {
+        if (!descriptor.isPersistable()) {
+            throw new RuntimeException("Class " + descriptor.type().getName() + " is not a @PersistableObject");
+        }
+        if (descriptor.isBinary()) {
+            throw new RuntimeException("Binary encoded class " + descriptor.type().getName() +
+                " cannot be queried, its fields are not stored separately");
+        }
+        this.descriptor = descriptor;
+        this.result = result;
+        this.filter = filter;
+        if (result == Result.SUM) {
+            this.sumField = field(sumFieldName);
+            if (sumField.kind() != ClassDescriptor.Kind.VALUE || !isNumber(sumField.converter())) {
+                throw new RuntimeException("Field " + sumFieldName + " of class " + descriptor.type().getName() +
+                    " is not numeric and cannot be summed");
+            }
+            variable(sumField);
+        } else {
+            this.sumField = null;
+        }
+        this.integerSum = sumField != null &&
+            (sumField.converter() == Converter.INT || sumField.converter() == Converter.LONG);
+        // fields are numbered first, the compared values follow the hash field names in ARGV
+        numberFields(filter);
+        if (!descriptor.isBucketed()) {
+            arguments.add("_class");
+            for (FieldDescriptor field : fields.keySet()) {
+                arguments.addAll(field.readNames());
+            }
+        }
+        this.hashFieldCount = arguments.size();
+        this.condition = compile(filter, format);
+    }
+
+    private void numberFields(Filter filter) {
+        if (filter.field() != null) {
+            variable(field(filter.field()));
+        }
+        filter.operands().forEach(this::numberFields);
+    }
+
+    // the lua condition for filter, checking it against the class on the way
+    private String compile(Filter filter, Function<Object, String> format) {
+        switch (filter.op()) {
+            case AND:
+            case OR: {
+                if (filter.operands().isEmpty()) {
+                    return filter.op() == Filter.Op.AND ? "true" : "false";
+                }
+                List<String> operands = new ArrayList<>();
+                for (Filter operand : filter.operands()) {
+                    operands.add(compile(operand, format));
+                }
+                return "(" + String.join(filter.op() == Filter.Op.AND ? " and " : " or ", operands) + ")";
+            }
+            case NOT:
+                return "not " + compile(filter.operands().get(0), format);
+            case EMPTY:
+                return "(" + variable(field(filter.field())) + " == '')";
+            default: {
+                FieldDescriptor field = field(filter.field());
+                String comparison = comparison(field, filter.op());
+                String value = format.apply(comparable(field, filter.value()));
+                values.put(filter, value);
+                arguments.add(value);
+                return "holds(" + comparison + "(" + variable(field) + ", ARGV[" + arguments.size() + "]), '" +
+                    filter.op().name().toLowerCase() + "')";
+            }
+        }
+    }
+
+    private FieldDescriptor field(String name) {
+        FieldDescriptor field = descriptor.field(name);
+        if (field == null) {
+            throw new RuntimeException("Class " + descriptor.type().getName() + " has no persisted field " + name);
+        }
+        if (field.isNativeCollection()) {
+            throw new RuntimeException("Field " + name + " of class " + descriptor.type().getName() +
+                " is kept in its own " + field.listStorage() + " and cannot be queried");
+        }
+        return field;
+    }
+
+    private String variable(FieldDescriptor field) {
+        return "f" + fields.computeIfAbsent(field, f -> fields.size() + 1);
+    }
+
+    // the lua function ordering the stored value against an argument
+    private String comparison(FieldDescriptor field, Filter.Op op) {
+        boolean equality = op == Filter.Op.EQ || op == Filter.Op.NE;
+        String problem = null;
+        if (field.kind() == ClassDescriptor.Kind.LIST) {
+            problem = "is a List";
+        } else if (field.compressAbove() > 0) {
+            problem = "may be stored compressed";
+        } else if (!equality && (field.kind() == ClassDescriptor.Kind.NESTED || !isOrdered(field.converter()))) {
+            problem = "has no order";
+        }
+        if (problem != null) {
+            throw new RuntimeException("Field " + field.name() + " of class " + descriptor.type().getName() + " " +
+                problem + " and cannot be compared with " + op.name().toLowerCase());
+        }
+        if (field.kind() == ClassDescriptor.Kind.NESTED) {
+            return "text";
+        }
+        return isNumber(field.converter()) ? "number" : field.converter() == Converter.DATE ? "date" : "text";
+    }
+
+    // nested objects are compared by id, numbers and dates only with values of their own kind
+    private static Object comparable(FieldDescriptor field, Object value) {
+        if (field.kind() == ClassDescriptor.Kind.NESTED) {
+            ClassDescriptor nested = ClassDescriptor.of(value.getClass());
+            return nested.isPersistable() ? nested.idOf(value).toString() : value.toString();
+        }
+        boolean fits = isNumber(field.converter()) ? value instanceof Number
+            : field.converter() != Converter.DATE || value instanceof Date;
+        if (!fits) {
+            throw new RuntimeException("Cannot compare field " + field.name() + " with " + value);
+        }
+        return value;
+    }
+
+    private static boolean isNumber(Converter converter) {
+        return converter == Converter.INT || converter == Converter.LONG ||
+            converter == Converter.DOUBLE || converter == Converter.FLOAT;
+    }
+
+    private static boolean isOrdered(Converter converter) {
+        return isNumber(converter) || converter == Converter.DATE;
+    }
+
+    // _class and every name a read field may be stored under unless the class is bucketed,
+    // then the compared values
+    List<String> args() {
+        return Collections.unmodifiableList(arguments);
+    }
+
+    // KEYS are bucket keys of bucketed classes and object keys otherwise. ids come back as
+    // themselves from buckets and as positions in KEYS from object hashes
+    String script() {
+        StringBuilder script = new StringBuilder(PRELUDE);
+        if (descriptor.isBucketed()) {
+            script.append("for _, key in ipairs(KEYS) do\n")
+                .append("  local bucket = redis.call('HGETALL', key)\n")
+                .append("  for i = 1, #bucket, 2 do\n")
+                .append(fields.isEmpty() ? "    local id = bucket[i]\n" : "    local id, values = bucket[i], split(bucket[i + 1])\n");
+            for (Map.Entry<FieldDescriptor, Integer> field : fields.entrySet()) {
+                script.append("    local f" + field.getValue() + " = values[" +
+                    (descriptor.fields().indexOf(field.getKey()) + 1) + "] or ''\n");
+            }
+        } else {
+            script.append("for id, key in ipairs(KEYS) do\n")
+                .append("  local values = redis.call('HMGET', key, unpack(ARGV, 1, ").append(hashFieldCount)
+                .append("))\n")
+                .append("  if values[1] then\n");
+            int from = 2;
+            for (Map.Entry<FieldDescriptor, Integer> field : fields.entrySet()) {
+                int to = from + field.getKey().readNames().size() - 1;
+                script.append("    local f" + field.getValue() + " = pick(values, " + from + ", " + to + ")\n");
+                from = to + 1;
+            }
+        }
+
+        script.append("    if ").append(condition).append(" then\n");
+        switch (result) {
+            case COUNT:
+                script.append("      count = count + 1\n");
+                break;
+            case SUM:
+                if (integerSum) {
+                    script.append("      addInteger(parts, f").append(fields.get(sumField)).append(")\n");
+                    break;
+                }
+                script.append("      local n = tonumber(f").append(fields.get(sumField)).append(")\n")
+                    .append("      if n and n == n then total = total + n end\n");
+                break;
+            default:
+                script.append("      ids[#ids + 1] = id\n");
+                break;
+        }
+        script.append("    end\n  end\nend\n");
+        switch (result) {
+            case COUNT:
+                return script.append("return {string.format('%d', count)}\n").toString();
+            case SUM:
+                if (integerSum) {
+                    return script.append("return {string.format('%.0f', parts[3]), string.format('%.0f', parts[2]), ")
+                        .append("string.format('%.0f', parts[1])}\n").toString();
+                }
+                // %.17g keeps every digit of a double, tostring rounds to 14
+                return script.append("return {string.format('%.17g', total)}\n").toString();
+            default:
+                return script.append("return ids\n").toString();
+        }
+    }
+
+    // folds one script run's partial result in
+    void add(StorageBackend.ScriptRun run) {
+        List<String> reply = run.reply();
+        switch (result) {
+            case COUNT:
+                count += Long.parseLong(reply.get(0));
+                break;
+            case SUM:
+                if (integerSum) {
+                    long high = Math.multiplyExact(Math.multiplyExact(Long.parseLong(reply.get(0)), PART), PART);
+                    long middle = Math.multiplyExact(Long.parseLong(reply.get(1)), PART);
+                    integerTotal = Math.addExact(integerTotal,
+                        Math.addExact(high, Math.addExact(middle, Long.parseLong(reply.get(2)))));
+                } else {
+                    total += Double.parseDouble(reply.get(0));
+                }
+                break;
+            default:
+                for (String id : reply) {
+                    ids.add(descriptor.isBucketed() ? id : run.keys().get(Integer.parseInt(id) - 1));
+                }
+                break;
+        }
+    }
+
+    // the same condition evaluated on the client, against a stored hash or unpacked bucket field
+    void add(String id, Map<String, String> stored) {
+        if (!matches(filter, stored)) {
+            return;
+        }
+        count++;
+        if (result == Result.IDS) {
+            ids.add(id);
+        } else if (result == Result.SUM) {
+            String value = storedValue(stored, sumField);
+            if (integerSum && value.matches("-?\\d+")) {
+                integerTotal = Math.addExact(integerTotal, Long.parseLong(value));
+            } else if (!integerSum && number(value) != null) {
+                total += number(value);
+            }
+        }
+    }
+
+    long count() {
+        return count;
+    }
+
+    // a Long for int and long fields, a Double otherwise
+    Number sum() {
+        return integerSum ? (Number) integerTotal : (Number) total;
+    }
+
+    List<String> ids() {
+        return ids;
+    }
+
+    private boolean matches(Filter filter, Map<String, String> stored) {
+        switch (filter.op()) {
+            case AND:
+                for (Filter operand : filter.operands()) {
+                    if (!matches(operand, stored)) {
+                        return false;
+                    }
+                }
+                return true;
+            case OR:
+                for (Filter operand : filter.operands()) {
+                    if (matches(operand, stored)) {
+                        return true;
+                    }
+                }
+                return false;
+            case NOT:
+                return !matches(filter.operands().get(0), stored);
+            case EMPTY:
+                return storedValue(stored, descriptor.field(filter.field())).isEmpty();
+            default: {
+                FieldDescriptor field = descriptor.field(filter.field());
+                return holds(compare(field, storedValue(stored, field), values.get(filter)), filter.op());
+            }
+        }
+    }
+
+    private static String storedValue(Map<String, String> stored, FieldDescriptor field) {
+        for (String name : field.readNames()) {
+            String value = stored.get(name);
+            if (value != null && !value.isEmpty()) {
+                return value;
+            }
+        }
+        return "";
+    }
+
+    private static Integer compare(FieldDescriptor field, String value, String arg) {
+        if (field.kind() != ClassDescriptor.Kind.NESTED && isNumber(field.converter())) {
+            Double a = number(value);
+            Double b = number(arg);
+            return a == null || b == null ? null : Integer.signum(Double.compare(a, b));
+        }
+        if (field.kind() != ClassDescriptor.Kind.NESTED && field.converter() == Converter.DATE) {
+            return value.length() < 10 ? null : Integer.signum(value.substring(0, 10).compareTo(arg));
+        }
+        return value.isEmpty() ? null : value.equals(arg) ? 0 : 1;
+    }
+
+    private static Double number(String value) {
+        try {
+            double number = Double.parseDouble(value);
+            return Double.isNaN(number) ? null : number;
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static boolean holds(Integer comparison, Filter.Op op) {
+        if (comparison == null) {
+            return op == Filter.Op.NE;
+        }
+        switch (op) {
+            case EQ:
+                return comparison == 0;
+            case NE:
+                return comparison != 0;
+            case LT:
+                return comparison < 0;
+            case LE:
+                return comparison <= 0;
+            case GT:
+                return comparison > 0;
+            default:
+                return comparison >= 0;
+        }
+    }
+}
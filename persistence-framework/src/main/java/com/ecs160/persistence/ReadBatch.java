@@ -0,0 +1,137 @@
+package com.ecs160.persistence;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// reads queued for one round trip; each returns a handle that holds its result once the backend ran the batch
+public final class ReadBatch {
+    public enum Kind {
+        // whole hash, empty when missing
+        HASH,
+        // listed fields of a hash, null for missing ones
+        HASH_FIELDS,
+        // plain binary value, null when missing
+        VALUE,
+        // range of a list, empty when missing
+        LIST,
+        // members of a set, empty when missing
+        SET,
+        // members of a sorted set scored within [min, max], lowest score first
+        SORTED_SET_RANGE,
+        // members of a sorted set in score order, a page of them by rank
+        SORTED_PAGE
+    }
+
+    public static final class Read<T> {
+        private final Kind kind;
+        private final String key;
+        private final List<String> fields;
+        private final double min;
+        private final double max;
+        private final long offset;
+        private final long count;
+        private Object result;
+        private boolean done;
+
+        private Read(Kind kind, String key, List<String> fields, double min, double max, long offset, long count) {
+            this.kind = kind;
+            this.key = key;
+            this.fields = fields;
+            this.min = min;
+            this.max = max;
+            this.offset = offset;
+            this.count = count;
+        }
+
+        public Kind kind() {
+            return kind;
+        }
+
+        public String key() {
+            return key;
+        }
+
+        public List<String> fields() {
+            return fields;
+        }
+
+        public double min() {
+            return min;
+        }
+
+        public double max() {
+            return max;
+        }
+
+        public long offset() {
+            return offset;
+        }
+
+        // a negative count reads to the end
+        public long count() {
+            return count;
+        }
+
+        // called by the backend with a Map, List<String>, Set<String> or byte[] as the kind requires
+        public void complete(Object result) {
+            this.result = result;
+            this.done = true;
+        }
+
+        @SuppressWarnings("unchecked")
+        public T get() {
+            if (!done) {
+                throw new RuntimeException("Read of " + key + " has not been executed");
+            }
+            return (T) result;
+        }
+    }
+
+    private final List<Read<?>> reads = new ArrayList<>();
+
+    public List<Read<?>> reads() {
+        return Collections.unmodifiableList(reads);
+    }
+
+    public boolean isEmpty() {
+        return reads.isEmpty();
+    }
+
+    Read<Map<String, String>> hash(String key) {
+        return add(new Read<>(Kind.HASH, key, null, 0, 0, 0, -1));
+    }
+
+    Read<List<String>> hashFields(String key, String... fields) {
+        return add(new Read<>(Kind.HASH_FIELDS, key, Arrays.asList(fields), 0, 0, 0, -1));
+    }
+
+    Read<byte[]> value(String key) {
+        return add(new Read<>(Kind.VALUE, key, null, 0, 0, 0, -1));
+    }
+
+    Read<List<String>> list(String key, long offset, long count) {
+        return add(new Read<>(Kind.LIST, key, null, 0, 0, offset, count));
+    }
+
+    Read<Set<String>> set(String key) {
+        return add(new Read<>(Kind.SET, key, null, 0, 0, 0, -1));
+    }
+
+    Read<List<String>> sortedSetRange(String key, double min, double max, long offset, long count) {
+        return add(new Read<>(Kind.SORTED_SET_RANGE, key, null, min, max, offset, count));
+    }
+
+    Read<List<String>> sortedPage(String key, long offset, long count) {
+        return add(new Read<>(Kind.SORTED_PAGE, key, null, 0, 0, offset, count));
+    }
+
+    // also takes reads queued on another batch, which is how a batch is split between backends
+    <T> Read<T> add(Read<T> read) {
+        reads.add(read);
+        return read;
+    }
+}
@@ -0,0 +1,310 @@
+package com.ecs160.persistence;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.JedisPoolConfig;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Protocol;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.Transaction;
+import redis.clients.jedis.commands.PipelineBinaryCommands;
+import redis.clients.jedis.commands.PipelineCommands;
+import redis.clients.jedis.exceptions.JedisNoScriptException;
+import redis.clients.jedis.params.ScanParams;
+import redis.clients.jedis.resps.ScanResult;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+// storage on a redis server, over one shared connection or a connection pool.
+// data sets are kept apart by a numbered database or, where those are not available (redis cluster,
+// sharded setups), by a namespace put in front of every key as "namespace:"
+public final class RedisBackend implements StorageBackend {
+    private final Jedis jedis;
+    private final JedisPool pool;
+    private final int poolSize;
+    private final String keyPrefix;
+    // script source -> sha1 digest, the name EVALSHA runs it by
+    private final Map<String, String> scriptDigests = new ConcurrentHashMap<>();
+
+    public RedisBackend(String host, int port, int database) {
+        this.jedis = new Jedis(host, port);
+        this.jedis.select(database);
+        this.pool = null;
+        this.poolSize = 1;
+        this.keyPrefix = "";
+    }
+
+    // pooled mode, safe to share between threads; each call borrows a connection for its database
+    public RedisBackend(String host, int port, int database, int poolSize) {
+        this(host, port, database, "", poolSize);
+    }
+
+    // pooled mode on database 0, with every key in the given namespace
+    public RedisBackend(String host, int port, String namespace, int poolSize) {
+        this(host, port, 0, namespace.isEmpty() ? "" : namespace + ":", poolSize);
+    }
+
+    private RedisBackend(String host, int port, int database, String keyPrefix, int poolSize) {
+        JedisPoolConfig poolConfig = new JedisPoolConfig();
+        poolConfig.setMaxTotal(poolSize);
+        poolConfig.setMaxIdle(poolSize);
+        this.pool = new JedisPool(poolConfig, host, port, Protocol.DEFAULT_TIMEOUT, null, database);
+        this.jedis = null;
+        this.poolSize = poolSize;
+        this.keyPrefix = keyPrefix;
+    }
+
+    @Override
+    public void read(ReadBatch batch) {
+        if (batch.isEmpty()) {
+            return;
+        }
+
+        List<Response<?>> responses = new ArrayList<>(batch.reads().size());
+        withJedis(connection -> {
+            try (Pipeline pipeline = connection.pipelined()) {
+                for (ReadBatch.Read<?> read : batch.reads()) {
+                    responses.add(queue(pipeline, read));
+                }
+                pipeline.sync();
+            }
+            return null;
+        });
+
+        for (int i = 0; i < responses.size(); i++) {
+            batch.reads().get(i).complete(responses.get(i).get());
+        }
+    }
+
+    private Response<?> queue(Pipeline pipeline, ReadBatch.Read<?> read) {
+        String key = key(read.key());
+        long stop = read.count() < 0 ? -1 : read.offset() + read.count() - 1;
+        switch (read.kind()) {
+            case HASH:
+                return pipeline.hgetAll(key);
+            case HASH_FIELDS:
+                return pipeline.hmget(key, read.fields().toArray(new String[0]));
+            case VALUE:
+                return pipeline.get(key.getBytes(StandardCharsets.UTF_8));
+            case LIST:
+                return pipeline.lrange(key, read.offset(), stop);
+            case SET:
+                return pipeline.smembers(key);
+            case SORTED_SET_RANGE:
+                return read.offset() == 0 && read.count() < 0
+                    ? pipeline.zrangeByScore(key, read.min(), read.max())
+                    : pipeline.zrangeByScore(key, read.min(), read.max(), (int) read.offset(), (int) read.count());
+            case SORTED_PAGE:
+                // by rank, so a page costs a skiplist descent however deep it starts
+                return pipeline.zrange(key, read.offset(), stop);
+            default:
+                throw new RuntimeException("Unsupported read " + read.kind());
+        }
+    }
+
+    @Override
+    public long write(WriteBatch batch, boolean atomic) {
+        if (batch.isEmpty()) {
+            return 0;
+        }
+
+        // one multi-field HSET per key plus index updates, all sent in a single round trip
+        return withJedis(connection -> {
+            if (atomic) {
+                try (Transaction transaction = connection.multi()) {
+                    List<Response<Long>> removed = writeTo(transaction, batch);
+                    // a null reply means redis discarded the whole transaction
+                    if (transaction.exec() == null) {
+                        throw new RuntimeException("Transaction was aborted, nothing was written");
+                    }
+                    return sum(removed);
+                }
+            }
+            try (Pipeline pipeline = connection.pipelined()) {
+                List<Response<Long>> removed = writeTo(pipeline, batch);
+                pipeline.sync();
+                return sum(removed);
+            }
+        });
+    }
+
+    // queues every write on a pipeline or transaction, returning the counts of removed keys and hash fields
+    private <C extends PipelineCommands & PipelineBinaryCommands> List<Response<Long>> writeTo(C commands,
+                                                                                                WriteBatch batch) {
+        List<Response<Long>> removed = new ArrayList<>();
+        if (!batch.unlinks().isEmpty()) {
+            removed.add(commands.unlink(keys(batch.unlinks())));
+        }
+        batch.hashRemoves().forEach((key, fields) -> removed.add(commands.hdel(key(key), fields.toArray(new String[0]))));
+        batch.hashes().forEach((key, hash) -> {
+            if (!hash.isEmpty()) {
+                commands.hset(key(key), hash);
+            }
+        });
+        batch.values().forEach((key, value) -> commands.set(key(key).getBytes(StandardCharsets.UTF_8), value));
+        batch.setAdds().forEach((key, members) -> commands.sadd(key(key), members.toArray(new String[0])));
+        batch.setRemoves().forEach((key, members) -> commands.srem(key(key), members.toArray(new String[0])));
+        batch.listRemoves().forEach((key, elements) -> {
+            for (String element : elements) {
+                commands.lrem(key(key), 0, element);
+            }
+        });
+        batch.listAppends().forEach((key, elements) -> {
+            if (!elements.isEmpty()) {
+                commands.rpush(key(key), elements.toArray(new String[0]));
+            }
+        });
+        batch.sortedSetAdds().forEach((key, members) -> {
+            if (!members.isEmpty()) {
+                commands.zadd(key(key), members);
+            }
+        });
+        batch.sortedSetRemoves().forEach((key, members) -> {
+            if (!members.isEmpty()) {
+                commands.zrem(key(key), members.toArray(new String[0]));
+            }
+        });
+        return removed;
+    }
+
+    private static long sum(List<Response<Long>> counts) {
+        long total = 0;
+        for (Response<Long> count : counts) {
+            total += count.get();
+        }
+        return total;
+    }
+
+    @Override
+    public ScanPage scan(String cursor, String pattern, int count) {
+        ScanParams params = new ScanParams().match(escapeGlob(keyPrefix) + pattern).count(count);
+        ScanResult<String> result = withJedis(connection -> connection.scan(cursor, params));
+        if (keyPrefix.isEmpty()) {
+            return page(result);
+        }
+        List<String> keys = new ArrayList<>(result.getResult().size());
+        for (String key : result.getResult()) {
+            keys.add(key.substring(keyPrefix.length()));
+        }
+        return new ScanPage(result.getCursor(), keys);
+    }
+
+    @Override
+    public ScanPage scanSet(String key, String cursor, int count) {
+        ScanParams params = new ScanParams().count(count);
+        return page(withJedis(connection -> connection.sscan(key(key), cursor, params)));
+    }
+
+    private static ScanPage page(ScanResult<String> result) {
+        return new ScanPage(result.getCursor(), result.getResult());
+    }
+
+    private String key(String key) {
+        return keyPrefix.isEmpty() ? key : keyPrefix + key;
+    }
+
+    private String[] keys(Collection<String> keys) {
+        String[] prefixed = new String[keys.size()];
+        int i = 0;
+        for (String key : keys) {
+            prefixed[i++] = key(key);
+        }
+        return prefixed;
+    }
+
+    // the namespace matches itself only, whatever characters it holds
+    private static String escapeGlob(String text) {
+        StringBuilder escaped = new StringBuilder(text.length());
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '*' || c == '?' || c == '[' || c == ']' || c == '\\') {
+                escaped.append('\\');
+            }
+            escaped.append(c);
+        }
+        return escaped.toString();
+    }
+
+    @Override
+    public long delete(Collection<String> keys) {
+        if (keys.isEmpty()) {
+            return 0;
+        }
+        // UNLINK frees the memory in the background, so large values do not block the server
+        String[] toUnlink = keys(keys);
+        return withJedis(connection -> connection.unlink(toUnlink));
+    }
+
+    // sends only the digest of scripts the server already has, so each script is transferred once
+    @Override
+    public List<ScriptRun> evalScript(String script, List<String> keys, List<String> args) {
+        String digest = scriptDigests.computeIfAbsent(script, RedisBackend::sha1);
+        List<String> prefixed = new ArrayList<>(keys.size());
+        for (String key : keys) {
+            prefixed.add(key(key));
+        }
+        Object reply = withJedis(connection -> {
+            try {
+                return connection.evalsha(digest, prefixed, args);
+            } catch (JedisNoScriptException e) {
+                // first run on this server or after SCRIPT FLUSH, EVAL caches it there again
+                return connection.eval(script, prefixed, args);
+            }
+        });
+
+        List<String> result = new ArrayList<>();
+        for (Object item : (List<?>) reply) {
+            result.add(item == null ? null : item.toString());
+        }
+        return Collections.singletonList(new ScriptRun(keys, result));
+    }
+
+    private static String sha1(String script) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(script.getBytes(StandardCharsets.UTF_8));
+            StringBuilder hex = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException("SHA-1 is not available", e);
+        }
+    }
+
+    @Override
+    public int parallelism() {
+        return poolSize;
+    }
+
+    @Override
+    public void close() {
+        if (pool != null) {
+            pool.close();
+        }
+        if (jedis != null) {
+            jedis.close();
+        }
+    }
+
+    // runs op on a pooled connection, or on the single connection one caller at a time
+    private <T> T withJedis(Function<Jedis, T> op) {
+        if (pool != null) {
+            try (Jedis connection = pool.getResource()) {
+                return op.apply(connection);
+            }
+        }
+        synchronized (jedis) {
+            return op.apply(jedis);
+        }
+    }
+}
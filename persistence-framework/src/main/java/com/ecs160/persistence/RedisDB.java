@@ -1,169 +1,678 @@
 package com.ecs160.persistence;
 
-import com.ecs160.persistence.annotations.Id;
-import com.ecs160.persistence.annotations.LazyLoad;
-import com.ecs160.persistence.annotations.PersistableField;
-import com.ecs160.persistence.annotations.PersistableObject;
-import redis.clients.jedis.Jedis;
-
-import java.lang.reflect.Field;
-import java.lang.reflect.Method;
-import java.lang.reflect.ParameterizedType;
-import java.text.SimpleDateFormat;
+import com.ecs160.persistence.ClassDescriptor.Converter;
+import com.ecs160.persistence.ClassDescriptor.FieldDescriptor;
+import com.ecs160.persistence.PersistenceMetrics.Operation;
+import com.ecs160.persistence.StorageBackend.ScanPage;
+import com.ecs160.persistence.annotations.ListStorage;
+
+import java.nio.charset.StandardCharsets;
+import java.text.ParsePosition;
+import java.time.Duration;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 public class RedisDB {
-    private Jedis jedis;
-    private int defaultDatabase;
-    private SimpleDateFormat dateFormat;
+    // immutable, so one formatter is safe to share between threads
+    private static final DateTimeFormatter DATE_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd");
+    private static final char PACK_SEPARATOR = '\u001F';
+    private static final char PACK_ESCAPE = '\u001B';
+    private static final int DEFAULT_SCAN_BATCH = 500;
+    // buckets read by one query script, each holds about a hundred objects
+    private static final int BUCKETS_PER_QUERY = 5;
+    private static final int ASYNC_SHUTDOWN_SECONDS = 2;
+
+    private final MeteredBackend backend;
+    private volatile boolean transactional;
+    private volatile NearCache nearCache;
+    private volatile boolean dirtyTracking = true;
+    private final SnapshotRegistry snapshots = new SnapshotRegistry();
+    private volatile WriteBehindQueue writeBehind;
+    private ExecutorService asyncExecutor;
+    private volatile PersistenceMetrics metrics = PersistenceMetrics.NONE;
+    private PersistenceStats registeredStats;
 
     public RedisDB() {
         this("localhost", 6379, 0);
     }
 
     public RedisDB(String host, int port, int database) {
-        this.jedis = new Jedis(host, port);
-        this.defaultDatabase = database;
-        this.jedis.select(database);
-        this.dateFormat = new SimpleDateFormat("yyyy-MM-dd");
+        this(new RedisBackend(host, port, database));
+    }
+
+    // pooled mode, safe to share between threads; each call borrows a connection for its database
+    public RedisDB(String host, int port, int database, int poolSize) {
+        this(new RedisBackend(host, port, database, poolSize));
+    }
+
+    // maps objects onto any storage, e.g. an InMemoryBackend for runs without a redis server
+    public RedisDB(StorageBackend backend) {
+        this.backend = new MeteredBackend(backend);
     }
 
     public boolean persist(Object o) {
         if (o == null) {
             return false;
         }
+        return persistAll(Collections.singletonList(o));
+    }
+
+    public boolean persistAll(Collection<?> objects) {
+        if (objects == null || objects.isEmpty()) {
+            return false;
+        }
 
+        MeteredBackend.Call call = beginCall();
         try {
-            Class<?> clazz = o.getClass();
-            
-            // check if class is annotated with @PersistableObject
-            if (!clazz.isAnnotationPresent(PersistableObject.class)) {
-                return false;
+            // encode the whole object graph first, then flush it in one round trip
+            WriteBatch batch = new WriteBatch();
+            Set<Object> visited = Collections.newSetFromMap(new IdentityHashMap<>());
+            boolean allPersisted = true;
+
+            for (Object o : objects) {
+                // check if class is annotated with @PersistableObject
+                if (o == null || !ClassDescriptor.of(o.getClass()).isPersistable()) {
+                    allPersisted = false;
+                    continue;
+                }
+                encode(o, batch, visited);
             }
 
-            // find @Id field
-            Field idField = findIdField(clazz);
-            if (idField == null) {
-                throw new RuntimeException("Class " + clazz.getName() + " must have a field annotated with @Id");
+            flush(batch);
+            if (dirtyTracking) {
+                batch.forEachEncoded(snapshots);
             }
+            return allPersisted;
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            System.err.println("Error persisting object: " + e.getMessage());
+            e.printStackTrace();
+            return false;
+        } finally {
+            endCall(call, Operation.PERSIST);
+        }
+    }
+
+    public void setTransactional(boolean transactional) {
+        this.transactional = transactional;
+    }
 
-            idField.setAccessible(true);
-            Object idValue = idField.get(o);
-            if (idValue == null) {
-                throw new RuntimeException("Id field cannot be null for class " + clazz.getName());
+    // on by default: objects loaded here remember their stored fields, and persisting them again
+    // only writes what changed. objects that were only persisted are always written in full
+    public void setDirtyTracking(boolean dirtyTracking) {
+        this.dirtyTracking = dirtyTracking;
+        if (!dirtyTracking) {
+            snapshots.clear();
+        }
+    }
+
+    // hands every measurement to metrics, PersistenceMetrics.NONE turns measuring off again
+    public void setMetrics(PersistenceMetrics metrics) {
+        this.metrics = metrics == null ? PersistenceMetrics.NONE : metrics;
+    }
+
+    public PersistenceMetrics getMetrics() {
+        return metrics;
+    }
+
+    // collects metrics in process and shows them over jmx under name until close
+    public synchronized PersistenceStats enableMetrics(String name) {
+        if (registeredStats != null) {
+            registeredStats.unregister();
+        }
+        PersistenceStats stats = new PersistenceStats();
+        stats.register(name);
+        registeredStats = stats;
+        setMetrics(stats);
+        return stats;
+    }
+
+    // caches fetched objects in process; writes and deletes through this instance invalidate it
+    public NearCache enableNearCache(int maxEntries, Duration defaultTtl) {
+        NearCache cache = new NearCache(maxEntries, defaultTtl);
+        this.nearCache = cache;
+        return cache;
+    }
+
+    public NearCache getNearCache() {
+        return nearCache;
+    }
+
+    // persistAsync then queues writes and returns at once; repeats of one object within window are
+    // written once, in pipelined batches of up to batchSize, and callers block while maxQueued are pending.
+    // objects are encoded when their batch is written, so later changes made meanwhile are included
+    public void enableWriteBehind(Duration window, int maxQueued, int batchSize) {
+        WriteBehindQueue previous;
+        synchronized (this) {
+            previous = writeBehind;
+            writeBehind = new WriteBehindQueue(this, window, maxQueued, batchSize);
+        }
+        closeWriteBehind(previous);
+    }
+
+    public CompletableFuture<Boolean> persistAsync(Object o) {
+        WriteBehindQueue queue = writeBehind;
+        if (queue != null && o != null && ClassDescriptor.of(o.getClass()).isPersistable()) {
+            try {
+                return queue.submit(o.getClass(), ClassDescriptor.of(o.getClass()).idOf(o).toString(), o);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return CompletableFuture.failedFuture(e);
+            } catch (RuntimeException e) {
+                return CompletableFuture.failedFuture(e);
             }
+        }
+        return CompletableFuture.supplyAsync(() -> persist(o), asyncExecutor());
+    }
 
-            String objectKey = idValue.toString();
-            String className = clazz.getName();
+    public CompletableFuture<Object> loadAsync(Object o) {
+        return CompletableFuture.supplyAsync(() -> load(o), asyncExecutor());
+    }
 
-            // persist object's fields
-            Field[] fields = clazz.getDeclaredFields();
-            for (Field field : fields) {
-                if (field.isAnnotationPresent(PersistableField.class)) {
-                    field.setAccessible(true);
-                    Object fieldValue = field.get(o);
+    public <T> CompletableFuture<List<T>> loadAllAsync(Class<T> clazz, Collection<?> ids) {
+        return CompletableFuture.supplyAsync(() -> loadAll(clazz, ids), asyncExecutor());
+    }
 
-                    if (fieldValue == null) {
-                        jedis.hset(objectKey, field.getName(), "");
-                        continue;
-                    }
+    // waits until every write queued by persistAsync has reached redis
+    public void flush() {
+        WriteBehindQueue queue = writeBehind;
+        if (queue == null) {
+            return;
+        }
+        try {
+            queue.flush();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
 
-                    Class<?> fieldType = field.getType();
+    // one worker per pooled connection, a single connection serves one call at a time anyway
+    private synchronized ExecutorService asyncExecutor() {
+        if (asyncExecutor == null) {
+            int threads = Math.max(1, backend.parallelism());
+            asyncExecutor = Executors.newFixedThreadPool(threads, runnable -> {
+                Thread thread = new Thread(runnable, "redisdb-async");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return asyncExecutor;
+    }
 
-                    // handle list collections
-                    if (List.class.isAssignableFrom(fieldType)) {
-                        String redisKey = mapFieldNameToRedis(field.getName());
-                        persistList(objectKey, redisKey, (List<?>) fieldValue);
-                    }
-                    // handle nested objects
-                    else if (fieldType.isAnnotationPresent(PersistableObject.class)) {
-                        String redisKey = mapFieldNameToRedis(field.getName());
-                        persist(objectKey, redisKey, fieldValue);
-                    }
-                    // handle primitive types and strings
-                    else {
-                        String valueStr = convertToString(fieldValue);
-                        String redisKey = mapFieldNameToRedis(field.getName());
-                        jedis.hset(objectKey, redisKey, valueStr);
-                    }
+    private static void closeWriteBehind(WriteBehindQueue queue) {
+        if (queue == null) {
+            return;
+        }
+        try {
+            queue.close();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private String encode(Object o, WriteBatch batch, Set<Object> visited) {
+        ClassDescriptor descriptor = ClassDescriptor.of(o.getClass());
+        String objectKey = descriptor.idOf(o).toString();
+
+        // already encoded in this graph, also breaks reference cycles
+        if (!visited.add(o)) {
+            return objectKey;
+        }
+
+        // binary classes are written whole, as one value
+        if (descriptor.isBinary()) {
+            byte[] value = BinaryCodec.encode(descriptor, o, nested -> encode(nested, batch, visited));
+            batch.setValue(objectKey, value);
+            if (metrics != PersistenceMetrics.NONE) {
+                metrics.recordBytesWritten(descriptor.type(), utf8Length(objectKey) + value.length);
+            }
+            updateMembership(descriptor, o, objectKey, batch, null);
+            return objectKey;
+        }
+
+        Map<String, String> hash = new LinkedHashMap<>();
+        Map<FieldDescriptor, List<String>> collections = new LinkedHashMap<>();
+
+        // encode object's fields
+        for (FieldDescriptor field : descriptor.fields()) {
+            FieldAccessor accessor = field.accessor();
+
+            // a lazy field that was never read or assigned still holds its stored value in redis
+            if (field.isLazy() && !LazyLoader.isLoaded(o, field)) {
+                continue;
+            }
+
+            // primitives are formatted straight from the field, without boxing
+            if (accessor.isPrimitive()) {
+                hash.put(field.redisName(), accessor.getString(o));
+                continue;
+            }
+
+            Object fieldValue = accessor.get(o);
+
+            // native lists and sets live in their own key, a null list is stored empty
+            if (field.isNativeCollection()) {
+                collections.put(field, fieldValue == null
+                    ? Collections.emptyList()
+                    : encodeListItems((List<?>) fieldValue, batch, visited));
+                continue;
+            }
+
+            if (fieldValue == null) {
+                hash.put(field.redisName(), "");
+                continue;
+            }
+
+            switch (field.kind()) {
+                // handle list collections
+                case LIST:
+                    hash.put(field.redisName(), encodeList((List<?>) fieldValue, batch, visited));
+                    break;
+                // handle nested objects, stored as a reference to their id
+                case NESTED:
+                    hash.put(field.redisName(), encode(fieldValue, batch, visited));
+                    break;
+                // handle primitive types and strings
+                default:
+                    hash.put(field.redisName(), convertToString(fieldValue, field.compressAbove()));
+                    break;
+            }
+        }
+
+        // store class name for later loading
+        hash.put("_class", descriptor.type().getName());
+
+        // snapshots see native collections folded in, like loaded hashes do
+        Map<String, String> recorded = hash;
+        if (!collections.isEmpty()) {
+            recorded = new LinkedHashMap<>(hash);
+            for (Map.Entry<FieldDescriptor, List<String>> entry : collections.entrySet()) {
+                recorded.put(entry.getKey().redisName(), joinCollection(entry.getValue()));
+            }
+        }
+        batch.recordEncoded(o, objectKey, recorded);
+
+        // an object loaded before only writes the fields that changed since
+        Map<String, String> snapshot = dirtyTracking ? snapshots.get(o, objectKey) : null;
+        Map<String, String> changed = snapshot == null ? hash : diff(hash, snapshot);
+        boolean collectionsChanged = false;
+        for (Map.Entry<FieldDescriptor, List<String>> entry : collections.entrySet()) {
+            String previous = snapshot == null ? null : snapshot.get(entry.getKey().redisName());
+            collectionsChanged |= writeCollection(batch, objectKey, entry.getKey(), previous, entry.getValue());
+        }
+        if (changed.isEmpty() && !collectionsChanged) {
+            return objectKey;
+        }
+        if (metrics != PersistenceMetrics.NONE) {
+            long bytes = utf8Length(objectKey) + sizeOf(changed);
+            for (List<String> elements : collections.values()) {
+                for (String element : elements) {
+                    bytes += utf8Length(element);
                 }
             }
+            metrics.recordBytesWritten(descriptor.type(), bytes);
+        }
+        if (descriptor.isBucketed()) {
+            // a bucket field only holds the whole object, so any change rewrites all of it
+            String packed = pack(descriptor, hash);
+            int size = packed.getBytes(StandardCharsets.UTF_8).length;
+            if (size > ClassDescriptor.LISTPACK_VALUE_LIMIT && descriptor.firstOversizedBucketValue()) {
+                System.err.println("Bucketed object " + objectKey + " of " + descriptor.type().getName() + " packs to " +
+                    size + " bytes, over the " + ClassDescriptor.LISTPACK_VALUE_LIMIT +
+                    " redis keeps in a listpack, so its bucket is stored as a regular hash");
+            }
+            batch.putInBucket(descriptor.bucketKey(objectKey), objectKey, packed, objectKey);
+        } else {
+            // registers the key even without hash changes, so cached copies are dropped
+            batch.hash(objectKey).putAll(changed);
+        }
+        updateMembership(descriptor, o, objectKey, batch, changed);
 
-            // store class name for later loading
-            jedis.hset(objectKey, "_class", className);
+        return objectKey;
+    }
 
-            return true;
-        } catch (RuntimeException e) {
-            throw e;
-        } catch (Exception e) {
-            System.err.println("Error persisting object: " + e.getMessage());
-            e.printStackTrace();
+    // keeps class membership and field indexes in step with the object,
+    // touching only the indexes of changed fields when those are known
+    private void updateMembership(ClassDescriptor descriptor, Object o, String objectKey, WriteBatch batch,
+                                  Map<String, String> changed) {
+        batch.addToSet(descriptor.membersKey(), objectKey);
+        for (FieldDescriptor field : descriptor.indexedFields()) {
+            if (changed != null && !changed.containsKey(field.redisName())) {
+                continue;
+            }
+            Object fieldValue = field.accessor().get(o);
+            if (fieldValue == null) {
+                batch.removeFromSortedSet(field.indexKey(), objectKey);
+            } else {
+                batch.addToSortedSet(field.indexKey(), objectKey, indexScore(fieldValue));
+            }
+        }
+    }
+
+    private static Map<String, String> diff(Map<String, String> fields, Map<String, String> snapshot) {
+        Map<String, String> changed = new LinkedHashMap<>();
+        for (Map.Entry<String, String> entry : fields.entrySet()) {
+            if (!snapshot.containsKey(entry.getKey()) || !Objects.equals(entry.getValue(), snapshot.get(entry.getKey()))) {
+                changed.put(entry.getKey(), entry.getValue());
+            }
+        }
+        return changed;
+    }
+
+    // queues the writes that turn the stored collection (previous, null if unknown) into items,
+    // returning false when nothing changed
+    private static boolean writeCollection(WriteBatch batch, String objectKey, FieldDescriptor field,
+                                           String previous, List<String> items) {
+        if (previous != null && previous.equals(joinCollection(items))) {
             return false;
         }
+
+        String key = field.collectionKey(objectKey);
+        List<String> before = previous == null ? null : splitCollection(previous);
+        if (field.listStorage() == ListStorage.SET) {
+            if (before == null) {
+                batch.unlink(key);
+            }
+            Set<String> now = new LinkedHashSet<>(items);
+            Set<String> old = before == null ? Collections.emptySet() : new HashSet<>(before);
+            for (String item : now) {
+                if (!old.contains(item)) {
+                    batch.addToSortedSet(key, item, 0);
+                }
+            }
+            for (String item : old) {
+                if (!now.contains(item)) {
+                    batch.removeFromSortedSet(key, item);
+                }
+            }
+            return true;
+        }
+
+        // appending pushes only the new tail
+        if (before != null && items.size() >= before.size() && items.subList(0, before.size()).equals(before)) {
+            batch.appendToList(key, items.subList(before.size(), items.size()));
+            return true;
+        }
+
+        // dropping some values entirely removes just those
+        if (before != null) {
+            Set<String> removed = new LinkedHashSet<>(before);
+            removed.removeAll(items);
+            List<String> remaining = new ArrayList<>(before);
+            remaining.removeAll(removed);
+            if (remaining.equals(items)) {
+                for (String item : removed) {
+                    batch.removeFromList(key, item);
+                }
+                return true;
+            }
+        }
+
+        // any other change rewrites the list
+        batch.unlink(key);
+        batch.appendToList(key, items);
+        return true;
     }
 
-    private void persist(String parentKey, String fieldName, Object nestedObject) {
-        if (nestedObject == null) {
-            jedis.hset(parentKey, fieldName, "");
-            return;
+    // in-memory form of a native collection inside hashes and snapshots, NUL never occurs in ids
+    private static String joinCollection(Collection<String> items) {
+        return String.join("\0", items);
+    }
+
+    private static List<String> splitCollection(String joined) {
+        List<String> items = new ArrayList<>();
+        if (!joined.isEmpty()) {
+            Collections.addAll(items, joined.split("\0", -1));
         }
+        return items;
+    }
 
-        persist(nestedObject);
-        
-        // store reference to nested object using id
-        Field idField = findIdField(nestedObject.getClass());
-        if (idField != null) {
-            idField.setAccessible(true);
-            try {
-                Object nestedId = idField.get(nestedObject);
-                jedis.hset(parentKey, fieldName, nestedId.toString());
-            } catch (IllegalAccessException e) {
-                e.printStackTrace();
+    // a bucketed object as one string, its field values in declaration order separated by
+    // the unit separator, with separators and escapes inside values escaped
+    private static String pack(ClassDescriptor descriptor, Map<String, String> hash) {
+        StringBuilder packed = new StringBuilder();
+        List<FieldDescriptor> fields = descriptor.fields();
+        for (int f = 0; f < fields.size(); f++) {
+            if (f > 0) {
+                packed.append(PACK_SEPARATOR);
+            }
+            String value = hash.getOrDefault(fields.get(f).redisName(), "");
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                if (c == PACK_SEPARATOR || c == PACK_ESCAPE) {
+                    packed.append(PACK_ESCAPE);
+                }
+                packed.append(c);
             }
         }
+        return packed.toString();
     }
 
-    private void persistList(String parentKey, String fieldName, List<?> list) {
-        if (list == null || list.isEmpty()) {
-            jedis.hset(parentKey, fieldName, "");
-            return;
+    // the hash a bucketed object would have had, empty when it is not stored; values of
+    // fields added after the object was written are missing
+    private static Map<String, String> unpack(ClassDescriptor descriptor, String packed) {
+        Map<String, String> hash = new HashMap<>();
+        if (packed == null) {
+            return hash;
+        }
+        List<FieldDescriptor> fields = descriptor.fields();
+        StringBuilder value = new StringBuilder();
+        int index = 0;
+        for (int i = 0; i <= packed.length() && index < fields.size(); i++) {
+            char c = i < packed.length() ? packed.charAt(i) : PACK_SEPARATOR;
+            if (c == PACK_ESCAPE && i + 1 < packed.length()) {
+                value.append(packed.charAt(++i));
+            } else if (c == PACK_SEPARATOR) {
+                hash.put(fields.get(index++).redisName(), value.toString());
+                value.setLength(0);
+            } else {
+                value.append(c);
+            }
         }
+        hash.put("_class", descriptor.type().getName());
+        return hash;
+    }
 
+    private String encodeList(List<?> list, WriteBatch batch, Set<Object> visited) {
+        // store comma-separated list of ids or values
+        return String.join(",", encodeListItems(list, batch, visited));
+    }
+
+    private List<String> encodeListItems(List<?> list, WriteBatch batch, Set<Object> visited) {
         List<String> itemIds = new ArrayList<>();
-        
+
         for (Object item : list) {
             if (item == null) {
                 continue;
             }
 
-            // if item is @PersistableObject, persist and store id
-            if (item.getClass().isAnnotationPresent(PersistableObject.class)) {
-                persist(item);
-                
-                Field idField = findIdField(item.getClass());
-                if (idField != null) {
-                    idField.setAccessible(true);
-                    try {
-                        Object itemId = idField.get(item);
-                        if (itemId != null) {
-                            itemIds.add(itemId.toString());
-                        }
-                    } catch (IllegalAccessException e) {
-                        e.printStackTrace();
-                    }
-                }
+            // if item is @PersistableObject, encode it and store its id
+            if (ClassDescriptor.of(item.getClass()).isPersistable()) {
+                itemIds.add(encode(item, batch, visited));
             } else {
                 // for primitive types in lists, store them directly
                 itemIds.add(convertToString(item));
             }
         }
+        return itemIds;
+    }
 
-        // store comma-separated list of ids or values
-        String listValue = String.join(",", itemIds);
-        jedis.hset(parentKey, fieldName, listValue);
+    private void flush(WriteBatch batch) {
+        if (batch.isEmpty()) {
+            return;
+        }
+
+        backend.write(batch, transactional);
+        invalidateCached(batch.objectKeys());
+    }
+
+    // deletes o together with its class membership and index entries
+    public boolean delete(Object o) {
+        if (o == null) {
+            return false;
+        }
+
+        ClassDescriptor descriptor = ClassDescriptor.of(o.getClass());
+        if (!descriptor.isPersistable()) {
+            return false;
+        }
+
+        String objectKey = descriptor.idOf(o).toString();
+        WriteBatch batch = new WriteBatch();
+        if (descriptor.isBucketed()) {
+            batch.removeFromHash(descriptor.bucketKey(objectKey), objectKey);
+        } else {
+            batch.unlink(objectKey);
+        }
+        batch.removeFromSet(descriptor.membersKey(), objectKey);
+        for (FieldDescriptor field : descriptor.indexedFields()) {
+            batch.removeFromSortedSet(field.indexKey(), objectKey);
+        }
+        for (FieldDescriptor field : descriptor.nativeCollections()) {
+            batch.unlink(field.collectionKey(objectKey));
+        }
+        long deleted = backend.write(batch, false);
+        invalidateCached(Collections.singletonList(objectKey));
+        snapshots.remove(o);
+        return deleted > 0;
+    }
+
+    // streams the ids of every persisted object of clazz from its membership set
+    public Stream<String> scanIds(Class<?> clazz, int batchSize) {
+        ClassDescriptor descriptor = ClassDescriptor.of(clazz);
+        return scan(cursor -> backend.scanSet(descriptor.membersKey(), cursor, batchSize));
+    }
+
+    // loads objects whose indexed field lies in [from, to], ordered by that field;
+    // a null bound is open-ended and a limit of zero or less means no limit
+    public <T> List<T> findRange(Class<T> clazz, String fieldName, Object from, Object to, int limit) {
+        ClassDescriptor descriptor = ClassDescriptor.of(clazz);
+        FieldDescriptor field = descriptor.field(fieldName);
+        if (field == null || !field.isIndexed()) {
+            throw new RuntimeException("Field " + fieldName + " of class " + clazz.getName() + " is not indexed");
+        }
+
+        double min = from == null ? Double.NEGATIVE_INFINITY : indexScore(from);
+        double max = to == null ? Double.POSITIVE_INFINITY : indexScore(to);
+        ReadBatch batch = new ReadBatch();
+        ReadBatch.Read<List<String>> ids = batch.sortedSetRange(field.indexKey(), min, max, 0, limit > 0 ? limit : -1);
+        backend.read(batch);
+        return loadAll(clazz, ids.get());
+    }
+
+    // how many stored objects of clazz match filter
+    public long count(Class<?> clazz, Filter filter) {
+        return query(clazz, Query.Result.COUNT, filter, null).count();
+    }
+
+    // the sum of a numeric field over the objects matching filter, those without a value add nothing.
+    // int and long fields sum exactly to a Long, throwing ArithmeticException past its range, others to a Double
+    public Number sum(Class<?> clazz, String fieldName, Filter filter) {
+        return query(clazz, Query.Result.SUM, filter, fieldName).sum();
+    }
+
+    // ids of the stored objects of clazz matching filter, in no particular order
+    public List<String> filterIds(Class<?> clazz, Filter filter) {
+        return query(clazz, Query.Result.IDS, filter, null).ids();
+    }
+
+    public <T> List<T> filter(Class<T> clazz, Filter filter) {
+        return loadAll(clazz, filterIds(clazz, filter));
+    }
+
+    // runs next to the data, so only ids or partial aggregates travel back;
+    // backends without scripts get a sweep over the class on the client instead
+    private Query query(Class<?> clazz, Query.Result result, Filter filter, String sumField) {
+        MeteredBackend.Call call = beginCall();
+        try {
+            ClassDescriptor descriptor = ClassDescriptor.of(clazz);
+            Query query = new Query(descriptor, result, filter, sumField, this::convertToString);
+            if (!runScript(descriptor, query)) {
+                sweep(descriptor, query);
+            }
+            return query;
+        } finally {
+            endCall(call, Operation.QUERY);
+        }
+    }
+
+    // one script per scanned page of member ids or group of buckets, each declaring the keys it reads.
+    // a backend runs either every script or none, so only the first call can find it unsupported
+    private boolean runScript(ClassDescriptor descriptor, Query query) {
+        String script = query.script();
+        Iterator<String> keys = descriptor.isBucketed()
+            ? descriptor.bucketKeys().iterator()
+            : scanIds(descriptor.type(), DEFAULT_SCAN_BATCH).iterator();
+        int perRun = descriptor.isBucketed() ? BUCKETS_PER_QUERY : DEFAULT_SCAN_BATCH;
+        while (keys.hasNext()) {
+            List<String> chunk = new ArrayList<>(perRun);
+            while (keys.hasNext() && chunk.size() < perRun) {
+                chunk.add(keys.next());
+            }
+            List<StorageBackend.ScriptRun> runs = backend.evalScript(script, chunk, query.args());
+            if (runs == null) {
+                return false;
+            }
+            runs.forEach(query::add);
+        }
+        return true;
+    }
+
+    private void sweep(ClassDescriptor descriptor, Query query) {
+        Iterator<String> members = scanIds(descriptor.type(), DEFAULT_SCAN_BATCH).iterator();
+        while (members.hasNext()) {
+            List<String> keys = new ArrayList<>(DEFAULT_SCAN_BATCH);
+            while (members.hasNext() && keys.size() < DEFAULT_SCAN_BATCH) {
+                keys.add(members.next());
+            }
+            List<Object> stored = fetchStored(Collections.nCopies(keys.size(), descriptor), keys);
+            for (int i = 0; i < keys.size(); i++) {
+                @SuppressWarnings("unchecked")
+                Map<String, String> hash = (Map<String, String>) stored.get(i);
+                if (hash != null && !hash.isEmpty()) {
+                    query.add(keys.get(i), hash);
+                }
+            }
+        }
+    }
+
+    // dates are scored at the day they are stored with, numbers by their value
+    private double indexScore(Object value) {
+        if (value instanceof Date) {
+            LocalDate date = ((Date) value).toInstant().atZone(ZoneId.systemDefault()).toLocalDate();
+            return date.atStartOfDay(ZoneId.systemDefault()).toInstant().toEpochMilli();
+        }
+        if (value instanceof Number) {
+            return ((Number) value).doubleValue();
+        }
+        throw new RuntimeException("Cannot use " + value + " as an index value, only Date and numbers can");
     }
 
     public Object load(Object o) {
@@ -171,282 +680,772 @@ public class RedisDB {
             return null;
         }
 
+        MeteredBackend.Call call = beginCall();
         try {
-            Class<?> clazz = o.getClass();
-            
+            ClassDescriptor descriptor = ClassDescriptor.of(o.getClass());
+
             // check if class is annotated with @PersistableObject
-            if (!clazz.isAnnotationPresent(PersistableObject.class)) {
+            if (!descriptor.isPersistable()) {
                 return null;
             }
 
-            // find @Id field
-            Field idField = findIdField(clazz);
-            if (idField == null) {
+            String objectKey = descriptor.idOf(o).toString();
+            return loadBatch(descriptor, Collections.singletonList(objectKey)).get(0);
+        } catch (Exception e) {
+            System.err.println("Error loading object: " + e.getMessage());
+            e.printStackTrace();
+            return null;
+        } finally {
+            endCall(call, Operation.LOAD);
+        }
+    }
+
+    public <T> List<T> loadAll(Class<T> clazz, Collection<?> ids) {
+        List<T> results = new ArrayList<>();
+        if (clazz == null || ids == null || ids.isEmpty()) {
+            return results;
+        }
+
+        MeteredBackend.Call call = beginCall();
+        try {
+            ClassDescriptor descriptor = ClassDescriptor.of(clazz);
+
+            // check if class is annotated with @PersistableObject
+            if (!descriptor.isPersistable()) {
+                return results;
+            }
+            if (descriptor.idAccessor() == null) {
                 throw new RuntimeException("Class " + clazz.getName() + " must have a field annotated with @Id");
             }
 
-            idField.setAccessible(true);
-            Object idValue = idField.get(o);
-            if (idValue == null) {
-                throw new RuntimeException("Id field cannot be null for class " + clazz.getName());
+            List<String> keys = new ArrayList<>(ids.size());
+            for (Object id : ids) {
+                if (id != null) {
+                    keys.add(id.toString());
+                }
             }
 
-            String objectKey = idValue.toString();
-
-            // check if object exists in redis
-            if (!jedis.exists(objectKey)) {
-                return null;
+            // keep request order, dropping ids that are not stored
+            for (Object loaded : loadBatch(descriptor, keys)) {
+                if (loaded != null) {
+                    results.add(clazz.cast(loaded));
+                }
             }
+            return results;
+        } catch (Exception e) {
+            System.err.println("Error loading objects: " + e.getMessage());
+            e.printStackTrace();
+            return new ArrayList<>();
+        } finally {
+            endCall(call, Operation.LOAD);
+        }
+    }
 
-            // create new instance
-            Object instance = clazz.getDeclaredConstructor().newInstance();
+    // reads count elements of a List field starting at offset, without loading the owner or the rest
+    public List<Object> loadListPage(Object owner, String fieldName, long offset, int count) {
+        List<Object> page = new ArrayList<>();
+        if (owner == null || fieldName == null || offset < 0 || count <= 0) {
+            return page;
+        }
 
-            // load all fields
-            Field[] fields = clazz.getDeclaredFields();
-            for (Field field : fields) {
-                if (field.isAnnotationPresent(PersistableField.class)) {
-                    field.setAccessible(true);
-                    
-                    // check if field is lazy loaded
-                    if (isLazyLoaded(clazz, field.getName())) {
-                        // don't load lazy fields immediately
-                        continue;
-                    }
+        MeteredBackend.Call call = beginCall();
+        try {
+            ClassDescriptor descriptor = ClassDescriptor.of(owner.getClass());
+            if (!descriptor.isPersistable()) {
+                return page;
+            }
+            FieldDescriptor field = descriptor.field(fieldName);
+            if (field == null || field.kind() != ClassDescriptor.Kind.LIST) {
+                throw new RuntimeException("Class " + descriptor.type().getName() + " has no List field " + fieldName);
+            }
 
-                    String redisKey = mapFieldNameToRedis(field.getName());
-                    String fieldValueStr = jedis.hget(objectKey, redisKey);
-                    if (fieldValueStr == null || fieldValueStr.isEmpty()) {
-                        // try w original field name as fallback
-                        fieldValueStr = jedis.hget(objectKey, field.getName());
-                    }
-                    // try common variations for url field or search all fields
-                    if ((fieldValueStr == null || fieldValueStr.isEmpty()) && "url".equalsIgnoreCase(field.getName())) {
-                        // try common case variations
-                        fieldValueStr = jedis.hget(objectKey, "Url");
-                        if (fieldValueStr == null || fieldValueStr.isEmpty()) {
-                            fieldValueStr = jedis.hget(objectKey, "URL");
-                        }
-                        // if still not found, search all hash fields for url-like keys
-                        if ((fieldValueStr == null || fieldValueStr.isEmpty())) {
-                            Map<String, String> allFields = jedis.hgetAll(objectKey);
-                            for (Map.Entry<String, String> entry : allFields.entrySet()) {
-                                String key = entry.getKey();
-                                if (key != null && (key.equalsIgnoreCase("url") || 
-                                    key.equalsIgnoreCase("htmlUrl") ||
-                                    key.toLowerCase().contains("url"))) {
-                                    fieldValueStr = entry.getValue();
-                                    break;
-                                }
-                            }
-                        }
+            String objectKey = descriptor.idOf(owner).toString();
+            List<String> items = fetchListPage(descriptor, objectKey, field, offset, count);
+            ClassDescriptor itemType = ClassDescriptor.of(field.elementType());
+            if (itemType.isPersistable()) {
+                for (Object item : loadBatch(itemType, items)) {
+                    if (item != null) {
+                        page.add(item);
                     }
+                }
+            } else {
+                for (String item : items) {
+                    page.add(convertFromString(item, field.elementConverter()));
+                }
+            }
+            return page;
+        } catch (Exception e) {
+            System.err.println("Error loading list page: " + e.getMessage());
+            e.printStackTrace();
+            return new ArrayList<>();
+        } finally {
+            endCall(call, Operation.LOAD_LIST);
+        }
+    }
 
-                    Class<?> fieldType = field.getType();
+    private List<String> fetchListPage(ClassDescriptor descriptor, String objectKey, FieldDescriptor field,
+                                       long offset, int count) throws Exception {
+        String key = field.collectionKey(objectKey);
+        ReadBatch batch = new ReadBatch();
+        switch (field.listStorage()) {
+            case LIST: {
+                ReadBatch.Read<List<String>> page = batch.list(key, offset, count);
+                backend.read(batch);
+                return page.get();
+            }
+            case SET: {
+                // members all score 0, so the sorted set keeps them in byte order and pages by rank
+                ReadBatch.Read<List<String>> page = batch.sortedPage(key, offset, count);
+                backend.read(batch);
+                return page.get();
+            }
+            default:
+                break;
+        }
 
-                    // handle list collections
-                    if (List.class.isAssignableFrom(fieldType)) {
-                        List<?> loadedList = loadList(objectKey, redisKey, field);
-                        field.set(instance, loadedList);
-                    }
-                    // skip if field value is empty and not list
-                    else if (fieldValueStr == null || fieldValueStr.isEmpty()) {
-                        continue;
-                    }
-                    // handle nested objects
-                    else if (fieldType.isAnnotationPresent(PersistableObject.class)) {
-                        Object nestedObject = loadNested(fieldType, fieldValueStr);
-                        field.set(instance, nestedObject);
-                    }
-                    // handle primitive types and strings
-                    else {
-                        Object convertedValue = convertFromString(fieldValueStr, fieldType);
-                        field.set(instance, convertedValue);
+        // inline lists only exist whole, so the page is cut from the stored value
+        List<String> items = new ArrayList<>();
+        if (descriptor.isBinary() || descriptor.isBucketed()) {
+            Object owner = loadBatch(descriptor, Collections.singletonList(objectKey)).get(0);
+            List<?> list = owner == null ? null : (List<?>) field.accessor().get(owner);
+            if (list != null) {
+                for (Object item : list) {
+                    ClassDescriptor itemType = ClassDescriptor.of(field.elementType());
+                    items.add(itemType.isPersistable() ? itemType.idOf(item).toString() : convertToString(item));
+                }
+            }
+        } else {
+            String value = fieldValues(descriptor, readHashFields(objectKey, field)).get(field);
+            if (value != null && !value.isEmpty()) {
+                for (String item : value.split(",")) {
+                    if (!item.isEmpty()) {
+                        items.add(item);
                     }
                 }
             }
+        }
+        if (offset >= items.size()) {
+            return Collections.emptyList();
+        }
+        return items.subList((int) offset, (int) Math.min(items.size(), offset + count));
+    }
 
-            // set id field
-            idField.set(instance, idValue);
+    // loads objects of one class by key, one round trip per level of the object graph
+    private List<Object> loadBatch(ClassDescriptor descriptor, List<String> keys) throws Exception {
+        LoadSession session = new LoadSession();
+        List<PendingReference> pending = new ArrayList<>();
 
-            return instance;
-        } catch (Exception e) {
-            System.err.println("Error loading object: " + e.getMessage());
-            e.printStackTrace();
-            return null;
+        List<ClassDescriptor> types = Collections.nCopies(keys.size(), descriptor);
+        fetchUnseen(session, types, keys, pending);
+        resolveReferences(session, pending);
+
+        List<Object> results = new ArrayList<>(keys.size());
+        for (String key : keys) {
+            results.add(session.get(descriptor, key));
         }
+        return results;
     }
 
-    private boolean isLazyLoaded(Class<?> clazz, String fieldName) {
-        Method[] methods = clazz.getDeclaredMethods();
-        for (Method method : methods) {
-            if (method.isAnnotationPresent(LazyLoad.class)) {
-                LazyLoad annotation = method.getAnnotation(LazyLoad.class);
-                if (annotation.field().equals(fieldName)) {
-                    return true;
+    private void resolveReferences(LoadSession session, List<PendingReference> pending) throws Exception {
+        if (pending.isEmpty()) {
+            return;
+        }
+
+        // gather every object referenced from this level
+        List<ClassDescriptor> types = new ArrayList<>();
+        List<String> keys = new ArrayList<>();
+        for (PendingReference reference : pending) {
+            for (String key : reference.keys) {
+                types.add(reference.type);
+                keys.add(key);
+            }
+        }
+
+        // fetch what this load has not seen in one round trip, then resolve the next level
+        List<PendingReference> next = new ArrayList<>();
+        MeteredBackend.Call call = beginCall();
+        try {
+            fetchUnseen(session, types, keys, next);
+        } finally {
+            endCall(call, Operation.NESTED_LOAD);
+        }
+        resolveReferences(session, next);
+
+        for (PendingReference reference : pending) {
+            if (reference.field.kind() == ClassDescriptor.Kind.NESTED) {
+                reference.field.accessor().set(reference.owner, session.get(reference.type, reference.keys.get(0)));
+            } else {
+                // list items that are not stored are skipped
+                List<Object> list = new ArrayList<>();
+                for (String key : reference.keys) {
+                    Object item = session.get(reference.type, key);
+                    if (item != null) {
+                        list.add(item);
+                    }
                 }
+                reference.field.accessor().set(reference.owner, list);
             }
         }
-        return false;
     }
 
-    private List<?> loadList(String parentKey, String fieldName, Field field) {
-        String listValueStr = jedis.hget(parentKey, fieldName);
-        if (listValueStr == null || listValueStr.isEmpty()) {
-            return new ArrayList<>();
+    // fetches and decodes the objects the session does not have yet, each exactly once
+    private void fetchUnseen(LoadSession session, List<ClassDescriptor> types, List<String> keys,
+                             List<PendingReference> pending) throws Exception {
+        List<ClassDescriptor> fetchTypes = new ArrayList<>();
+        List<String> fetchKeys = new ArrayList<>();
+        for (int i = 0; i < keys.size(); i++) {
+            if (session.markSeen(types.get(i), keys.get(i))) {
+                fetchTypes.add(types.get(i));
+                fetchKeys.add(keys.get(i));
+            }
         }
 
-        String[] itemIds = listValueStr.split(",");
-        List<Object> list = new ArrayList<>();
+        List<Object> stored = fetchStored(fetchTypes, fetchKeys);
+        PersistenceMetrics metrics = this.metrics;
+        for (int i = 0; i < fetchKeys.size(); i++) {
+            ClassDescriptor type = fetchTypes.get(i);
+            Object value = stored.get(i);
+            if (metrics != PersistenceMetrics.NONE) {
+                recordBytesRead(metrics, type, value);
+            }
+            if (value instanceof byte[]) {
+                session.put(type, fetchKeys.get(i), decodeBinary(type, fetchKeys.get(i), (byte[]) value, pending));
+            }
+            // missing keys come back as empty hashes, or null for binary classes
+            else if (value instanceof Map && !((Map<?, ?>) value).isEmpty()) {
+                @SuppressWarnings("unchecked")
+                Map<String, String> hash = (Map<String, String>) value;
+                session.put(type, fetchKeys.get(i), decode(type, fetchKeys.get(i), hash, pending));
+            }
+        }
+    }
 
-        // get generic type of List
-        ParameterizedType listType = (ParameterizedType) field.getGenericType();
-        Class<?> itemType = (Class<?>) listType.getActualTypeArguments()[0];
+    // serves what it can from the near cache and fetches the rest in one round trip,
+    // returning a hash per hash encoded object and the raw value per binary one
+    private List<Object> fetchStored(List<ClassDescriptor> types, List<String> keys) {
+        NearCache cache = nearCache;
+        if (cache == null) {
+            return fetchStoredUncached(types, keys);
+        }
 
-        for (String itemId : itemIds) {
-            if (itemId == null || itemId.isEmpty()) {
-                continue;
+        List<Object> stored = new ArrayList<>(keys.size());
+        List<Integer> missed = new ArrayList<>();
+        List<ClassDescriptor> missedTypes = new ArrayList<>();
+        List<String> missedKeys = new ArrayList<>();
+        for (int i = 0; i < keys.size(); i++) {
+            // binary values are already compact and cheap to decode, so they are not cached
+            Map<String, String> cached = types.get(i).isBinary() ? null : cache.get(types.get(i).type(), keys.get(i));
+            stored.add(cached);
+            if (cached == null) {
+                missed.add(i);
+                missedTypes.add(types.get(i));
+                missedKeys.add(keys.get(i));
             }
+        }
 
-            // if the item type is a @PersistableObject, load it
-            if (itemType.isAnnotationPresent(PersistableObject.class)) {
-                try {
-                    Object item = itemType.getDeclaredConstructor().newInstance();
-                    Field idField = findIdField(itemType);
-                    if (idField != null) {
-                        idField.setAccessible(true);
-                        // try to parse as id field type
-                        Object idValue = convertFromString(itemId, idField.getType());
-                        idField.set(item, idValue);
-                        Object loadedItem = load(item);
-                        if (loadedItem != null) {
-                            list.add(loadedItem);
-                        }
-                    }
-                } catch (Exception e) {
-                    e.printStackTrace();
-                }
+        long stamp = cache.stamp();
+        List<Object> fetched = fetchStoredUncached(missedTypes, missedKeys);
+        for (int j = 0; j < missed.size(); j++) {
+            int i = missed.get(j);
+            Object value = fetched.get(j);
+            stored.set(i, value);
+            if (value instanceof Map && !((Map<?, ?>) value).isEmpty()) {
+                @SuppressWarnings("unchecked")
+                Map<String, String> hash = (Map<String, String>) value;
+                cache.put(types.get(i).type(), keys.get(i), hash, stamp);
+            }
+        }
+        return stored;
+    }
+
+    private List<Object> fetchStoredUncached(List<ClassDescriptor> types, List<String> keys) {
+        if (keys.isEmpty()) {
+            return Collections.emptyList();
+        }
+        // native lists and sets of eagerly loaded fields ride along in the same round trip
+        ReadBatch batch = new ReadBatch();
+        List<ReadBatch.Read<?>> reads = new ArrayList<>(keys.size());
+        List<Map<FieldDescriptor, ReadBatch.Read<? extends Collection<String>>>> collections = new ArrayList<>(keys.size());
+        for (int i = 0; i < keys.size(); i++) {
+            String key = keys.get(i);
+            ClassDescriptor type = types.get(i);
+            if (type.isBinary()) {
+                reads.add(batch.value(key));
+            } else if (type.isBucketed()) {
+                reads.add(batch.hashFields(type.bucketKey(key), key));
             } else {
-                // for primitive types, convert directly
-                Object convertedValue = convertFromString(itemId, itemType);
-                list.add(convertedValue);
+                reads.add(batch.hash(key));
+            }
+
+            Map<FieldDescriptor, ReadBatch.Read<? extends Collection<String>>> fieldReads = new LinkedHashMap<>();
+            for (FieldDescriptor field : types.get(i).nativeCollections()) {
+                if (!field.isLazy()) {
+                    fieldReads.put(field, readCollection(batch, key, field));
+                }
+            }
+            collections.add(fieldReads);
+        }
+        backend.read(batch);
+
+        List<Object> stored = new ArrayList<>(reads.size());
+        for (int i = 0; i < reads.size(); i++) {
+            Object value = reads.get(i).get();
+            if (types.get(i).isBucketed()) {
+                value = unpack(types.get(i), (String) ((List<?>) value).get(0));
+            }
+            if (!collections.get(i).isEmpty() && value instanceof Map && !((Map<?, ?>) value).isEmpty()) {
+                // fold collections into the hash, where decode and snapshots expect them
+                @SuppressWarnings("unchecked")
+                Map<String, String> hash = new HashMap<>((Map<String, String>) value);
+                collections.get(i).forEach((field, read) ->
+                    hash.put(field.redisName(), joinCollection(read.get())));
+                value = hash;
+            }
+            stored.add(value);
+        }
+        return stored;
+    }
+
+    private static ReadBatch.Read<? extends Collection<String>> readCollection(ReadBatch batch, String objectKey,
+                                                                               FieldDescriptor field) {
+        String key = field.collectionKey(objectKey);
+        return field.listStorage() == ListStorage.SET ? batch.sortedPage(key, 0, -1) : batch.list(key, 0, -1);
+    }
+
+    // every name the field may be stored under, in one HMGET; missing ones are left out
+    private Map<String, String> readHashFields(String objectKey, FieldDescriptor field) {
+        ReadBatch batch = new ReadBatch();
+        List<String> names = field.readNames();
+        ReadBatch.Read<List<String>> values = batch.hashFields(objectKey, names.toArray(new String[0]));
+        backend.read(batch);
+        Map<String, String> hash = new HashMap<>();
+        for (int i = 0; i < names.size(); i++) {
+            if (values.get().get(i) != null) {
+                hash.put(names.get(i), values.get().get(i));
+            }
+        }
+        return hash;
+    }
+
+    // builds an instance from its hash, queueing nested objects for the next level
+    private Object decode(ClassDescriptor descriptor, String objectKey, Map<String, String> hash,
+                          List<PendingReference> pending) throws Exception {
+        // create new instance, proxied when some fields are loaded lazily
+        Object instance = descriptor.hasLazyFields()
+            ? LazyLoader.newInstance(this, descriptor, objectKey)
+            : descriptor.newInstance();
+
+        // load all fields
+        Map<FieldDescriptor, String> values = fieldValues(descriptor, hash);
+        for (FieldDescriptor field : descriptor.fields()) {
+            // don't load lazy fields immediately
+            if (!field.isLazy()) {
+                decodeField(instance, field, values.get(field), pending);
+            }
+        }
+
+        // set id field
+        descriptor.idAccessor().set(instance, convertFromString(objectKey, descriptor.idConverter()));
+
+        if (dirtyTracking) {
+            snapshots.put(instance, objectKey, snapshotOf(descriptor, hash));
+        }
+
+        return instance;
+    }
+
+    // builds an instance of a binary encoded class from its value
+    private Object decodeBinary(ClassDescriptor descriptor, String objectKey, byte[] value,
+                                List<PendingReference> pending) throws Exception {
+        Object instance = descriptor.newInstance();
+        BinaryCodec.decode(descriptor, instance, value, (field, keys) -> {
+            Class<?> type = field.kind() == ClassDescriptor.Kind.NESTED ? field.type() : field.elementType();
+            pending.add(new PendingReference(instance, field, ClassDescriptor.of(type), keys));
+        });
+        descriptor.idAccessor().set(instance, convertFromString(objectKey, descriptor.idConverter()));
+        return instance;
+    }
+
+    // the stored value under each name persist would write, lazy fields excluded until loaded
+    private static Map<String, String> snapshotOf(ClassDescriptor descriptor, Map<String, String> hash) {
+        Map<String, String> snapshot = new HashMap<>();
+        for (FieldDescriptor field : descriptor.fields()) {
+            if (!field.isLazy()) {
+                snapshot.put(field.redisName(), hash.get(field.redisName()));
             }
         }
+        snapshot.put("_class", hash.get("_class"));
+        return snapshot;
+    }
 
-        return list;
+    private void decodeField(Object instance, FieldDescriptor field, String fieldValueStr,
+                             List<PendingReference> pending) {
+        // handle list collections
+        if (field.kind() == ClassDescriptor.Kind.LIST) {
+            decodeList(instance, fieldValueStr, field, pending);
+        }
+        // skip if field value is empty and not list
+        else if (fieldValueStr == null || fieldValueStr.isEmpty()) {
+            return;
+        }
+        // handle nested objects, loaded with the next level
+        else if (field.kind() == ClassDescriptor.Kind.NESTED) {
+            ClassDescriptor nestedType = ClassDescriptor.of(field.type());
+            pending.add(new PendingReference(instance, field, nestedType,
+                Collections.singletonList(fieldValueStr)));
+        }
+        // handle primitive types, parsed straight into the field
+        else if (field.accessor().isPrimitive()) {
+            field.accessor().setString(instance, fieldValueStr);
+        }
+        // handle boxed types and strings
+        else {
+            Object convertedValue = convertFromString(fieldValueStr, field.converter());
+            field.accessor().set(instance, convertedValue);
+        }
     }
 
-    private Object loadNested(Class<?> nestedType, String nestedId) {
+    // called by a lazy load proxy the first time a @LazyLoad getter runs
+    void loadLazyField(Object instance, String objectKey, FieldDescriptor field) throws Exception {
+        MeteredBackend.Call call = beginCall();
         try {
-            Object nestedInstance = nestedType.getDeclaredConstructor().newInstance();
-            Field idField = findIdField(nestedType);
-            if (idField != null) {
-                idField.setAccessible(true);
-                // try to parse as id field type
-                Object idValue = convertFromString(nestedId, idField.getType());
-                idField.set(nestedInstance, idValue);
-                return load(nestedInstance);
+            loadLazyFieldMeasured(instance, objectKey, field);
+        } finally {
+            endCall(call, Operation.LAZY_LOAD);
+        }
+    }
+
+    private void loadLazyFieldMeasured(Object instance, String objectKey, FieldDescriptor field) throws Exception {
+        if (field.isNativeCollection()) {
+            ReadBatch batch = new ReadBatch();
+            ReadBatch.Read<? extends Collection<String>> items = readCollection(batch, objectKey, field);
+            backend.read(batch);
+            String joined = joinCollection(items.get());
+            List<PendingReference> pending = new ArrayList<>();
+            decodeList(instance, joined, field, pending);
+            resolveReferences(new LoadSession(), pending);
+            if (dirtyTracking) {
+                snapshots.putField(instance, field.redisName(), joined);
+            }
+            return;
+        }
+
+        Map<String, String> hash = readHashFields(objectKey, field);
+
+        List<PendingReference> pending = new ArrayList<>();
+        decodeField(instance, field, fieldValues(ClassDescriptor.of(instance.getClass()), hash).get(field), pending);
+        resolveReferences(new LoadSession(), pending);
+        if (dirtyTracking) {
+            snapshots.putField(instance, field.redisName(), hash.get(field.redisName()));
+        }
+    }
+
+    // hands each hash field to the field it is stored for; of several names of one field the
+    // first non-empty in read order wins, so the written name beats aliases and the java name
+    private static Map<FieldDescriptor, String> fieldValues(ClassDescriptor descriptor, Map<String, String> hash) {
+        Map<FieldDescriptor, String> values = new HashMap<>();
+        Map<FieldDescriptor, Integer> ranks = new HashMap<>();
+        for (Map.Entry<String, String> entry : hash.entrySet()) {
+            FieldDescriptor field = descriptor.fieldForStoredName(entry.getKey());
+            if (field == null || entry.getValue() == null) {
+                continue;
+            }
+            List<String> names = field.readNames();
+            // empty values only count when no name holds anything else
+            int rank = names.indexOf(entry.getKey()) + (entry.getValue().isEmpty() ? names.size() : 0);
+            Integer best = ranks.get(field);
+            if (best == null || rank < best) {
+                ranks.put(field, rank);
+                values.put(field, entry.getValue());
             }
-        } catch (Exception e) {
-            e.printStackTrace();
         }
-        return null;
+        return values;
     }
 
-    private Field findIdField(Class<?> clazz) {
-        Field[] fields = clazz.getDeclaredFields();
-        for (Field field : fields) {
-            if (field.isAnnotationPresent(Id.class)) {
-                return field;
+    private void decodeList(Object instance, String listValueStr, FieldDescriptor field,
+                            List<PendingReference> pending) {
+        List<String> itemIds = new ArrayList<>();
+        if (field.isNativeCollection()) {
+            itemIds = listValueStr == null ? itemIds : splitCollection(listValueStr);
+        } else if (listValueStr != null && !listValueStr.isEmpty()) {
+            for (String itemId : listValueStr.split(",")) {
+                if (!itemId.isEmpty()) {
+                    itemIds.add(itemId);
+                }
             }
         }
-        return null;
+
+        // if the item type is a @PersistableObject, load items with the next level
+        ClassDescriptor itemType = ClassDescriptor.of(field.elementType());
+        if (itemType.isPersistable() && !itemIds.isEmpty()) {
+            pending.add(new PendingReference(instance, field, itemType, itemIds));
+            return;
+        }
+
+        List<Object> list = new ArrayList<>();
+        for (String itemId : itemIds) {
+            // for primitive types, convert directly
+            list.add(convertFromString(itemId, field.elementConverter()));
+        }
+        field.accessor().set(instance, list);
     }
 
     private String convertToString(Object value) {
+        return convertToString(value, 0);
+    }
+
+    // strings of at least compressAbove characters are stored compressed
+    private String convertToString(Object value, int compressAbove) {
         if (value == null) {
             return "";
         }
         
         if (value instanceof Date) {
-            return dateFormat.format((Date) value);
+            return ((Date) value).toInstant().atZone(ZoneId.systemDefault()).toLocalDate().format(DATE_FORMAT);
+        }
+
+        if (value instanceof String) {
+            return StringCompression.encode((String) value, compressAbove);
         }
         
         return value.toString();
     }
 
-    private Object convertFromString(String str, Class<?> targetType) {
+    private Object convertFromString(String str, Converter converter) {
         if (str == null || str.isEmpty()) {
             return null;
         }
 
-        if (targetType == String.class) {
-            return str;
-        } else if (targetType == int.class || targetType == Integer.class) {
-            return Integer.parseInt(str);
-        } else if (targetType == long.class || targetType == Long.class) {
-            return Long.parseLong(str);
-        } else if (targetType == double.class || targetType == Double.class) {
-            return Double.parseDouble(str);
-        } else if (targetType == float.class || targetType == Float.class) {
-            return Float.parseFloat(str);
-        } else if (targetType == boolean.class || targetType == Boolean.class) {
-            return Boolean.parseBoolean(str);
-        } else if (targetType == Date.class) {
-            try {
-                return dateFormat.parse(str);
-            } catch (Exception e) {
-                e.printStackTrace();
-                return null;
+        switch (converter) {
+            case INT:
+                return Integer.parseInt(str);
+            case LONG:
+                return Long.parseLong(str);
+            case DOUBLE:
+                return Double.parseDouble(str);
+            case FLOAT:
+                return Float.parseFloat(str);
+            case BOOLEAN:
+                return Boolean.parseBoolean(str);
+            case DATE:
+                try {
+                    // like SimpleDateFormat, ignore anything after the date (e.g. a time part)
+                    LocalDate date = LocalDate.from(DATE_FORMAT.parse(str, new ParsePosition(0)));
+                    return Date.from(date.atStartOfDay(ZoneId.systemDefault()).toInstant());
+                } catch (Exception e) {
+                    e.printStackTrace();
+                    return null;
+                }
+            default:
+                // compressed or escaped on the way in, whatever the current settings are
+                return StringCompression.decode(str);
+        }
+    }
+
+    public java.util.Set<String> listKeys(String pattern) {
+        // collected from SCAN so the server is never blocked by KEYS
+        MeteredBackend.Call call = beginCall();
+        try {
+            return scanKeys(pattern, DEFAULT_SCAN_BATCH).collect(Collectors.toSet());
+        } finally {
+            endCall(call, Operation.LIST_KEYS);
+        }
+    }
+
+    // streams matching keys with SCAN, fetching one batch at a time as the stream is consumed;
+    // SCAN may report a key more than once while the keyspace is changing
+    public Stream<String> scanKeys(String pattern, int batchSize) {
+        return scan(cursor -> backend.scan(cursor, pattern, batchSize));
+    }
+
+    // turns a SCAN-style cursor walk into a lazy stream, one batch per round trip
+    private Stream<String> scan(Function<String, ScanPage> nextBatch) {
+        Iterator<String> keys = new Iterator<String>() {
+            private String cursor = ScanPage.START;
+            private Iterator<String> batch = Collections.emptyIterator();
+            private boolean finished;
+
+            @Override
+            public boolean hasNext() {
+                // a batch can come back empty while the cursor is not done yet
+                while (!batch.hasNext() && !finished) {
+                    ScanPage page = nextBatch.apply(cursor);
+                    cursor = page.cursor();
+                    finished = page.isLast();
+                    batch = page.items().iterator();
+                }
+                return batch.hasNext();
+            }
+
+            @Override
+            public String next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return batch.next();
+            }
+        };
+
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(keys, Spliterator.NONNULL), false);
+    }
+
+    // removes every key matching pattern with batched, non-blocking UNLINKs
+    public long deleteMatching(String pattern) {
+        long deleted = 0;
+        List<String> batch = new ArrayList<>(DEFAULT_SCAN_BATCH);
+        Iterator<String> keys = scanKeys(pattern, DEFAULT_SCAN_BATCH).iterator();
+        while (keys.hasNext()) {
+            batch.add(keys.next());
+            if (batch.size() == DEFAULT_SCAN_BATCH || !keys.hasNext()) {
+                deleted += backend.delete(batch);
+                invalidateCached(batch);
+                // objects stored under the removed keys must be written in full again
+                snapshots.removeStoredKeys(batch);
+                batch.clear();
             }
         }
+        return deleted;
+    }
 
-        return str;
+    public boolean deleteKey(String key) {
+        if (key == null) {
+            return false;
+        }
+        MeteredBackend.Call call = beginCall();
+        try {
+            boolean deleted = backend.delete(Collections.singletonList(key)) > 0;
+            invalidateCached(Collections.singletonList(key));
+            snapshots.removeStoredKeys(Collections.singletonList(key));
+            return deleted;
+        } finally {
+            endCall(call, Operation.DELETE_KEY);
+        }
     }
 
-    private String mapFieldNameToRedis(String javaFieldName) {
-        // handle special mappings
-        if ("authorName".equals(javaFieldName)) {
-            return "Author Name";
+    public void close() {
+        // queued writes still go out before the connections close
+        WriteBehindQueue queue;
+        ExecutorService executor;
+        synchronized (this) {
+            queue = writeBehind;
+            writeBehind = null;
+            executor = asyncExecutor;
+            asyncExecutor = null;
+        }
+        closeWriteBehind(queue);
+        if (executor != null) {
+            executor.shutdown();
+            try {
+                executor.awaitTermination(ASYNC_SHUTDOWN_SECONDS, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        backend.close();
+        synchronized (this) {
+            if (registeredStats != null) {
+                registeredStats.unregister();
+                registeredStats = null;
+            }
         }
-        // handle camel case to title case mapping for date
-        if ("date".equalsIgnoreCase(javaFieldName)) {
-            return "Date";
+    }
+
+    // near cache hits count too, as the bytes a call had to decode
+    @SuppressWarnings("unchecked")
+    private static void recordBytesRead(PersistenceMetrics metrics, ClassDescriptor type, Object value) {
+        if (value instanceof byte[]) {
+            metrics.recordBytesRead(type.type(), ((byte[]) value).length);
+        } else if (value instanceof Map && !((Map<?, ?>) value).isEmpty()) {
+            metrics.recordBytesRead(type.type(), sizeOf((Map<String, String>) value));
         }
-        if ("description".equalsIgnoreCase(javaFieldName)) {
-            return "Description";
+    }
+
+    private static long sizeOf(Map<String, String> hash) {
+        long bytes = 0;
+        for (Map.Entry<String, String> entry : hash.entrySet()) {
+            bytes += utf8Length(entry.getKey()) + utf8Length(entry.getValue());
         }
-        // add other mappings as needed
-        return javaFieldName;
+        return bytes;
     }
 
-    private String mapRedisToFieldName(String redisFieldName) {
-        if ("Author Name".equals(redisFieldName)) {
-            return "authorName";
+    // utf-8 size of text, counted without encoding it
+    private static long utf8Length(String text) {
+        if (text == null) {
+            return 0;
         }
-        if ("Date".equals(redisFieldName)) {
-            return "date";
+        long bytes = 0;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c < 0x80) {
+                bytes++;
+            } else if (c < 0x800) {
+                bytes += 2;
+            } else if (Character.isHighSurrogate(c)) {
+                bytes += 4;
+                i++;
+            } else {
+                bytes += 3;
+            }
         }
-        return redisFieldName;
+        return bytes;
     }
 
-    public java.util.Set<String> listKeys(String pattern) {
-        if (jedis == null) {
-            return new java.util.HashSet<>();
+    // null while metrics are off, so an unmeasured call costs one volatile read
+    private MeteredBackend.Call beginCall() {
+        return metrics == PersistenceMetrics.NONE ? null : backend.begin();
+    }
+
+    private void endCall(MeteredBackend.Call call, Operation operation) {
+        if (call != null) {
+            backend.end(call, metrics, operation);
         }
-        return jedis.keys(pattern);
     }
 
-    public boolean deleteKey(String key) {
-        if (jedis == null || key == null) {
-            return false;
+    private void invalidateCached(Collection<String> keys) {
+        NearCache cache = nearCache;
+        if (cache != null) {
+            cache.invalidate(keys);
         }
-        return jedis.del(key) > 0;
     }
 
-    public void close() {
-        if (jedis != null) {
-            jedis.close();
+    // a nested object or list field waiting for its referenced objects to load
+    private static final class PendingReference {
+        private final Object owner;
+        private final FieldDescriptor field;
+        private final ClassDescriptor type;
+        private final List<String> keys;
+
+        PendingReference(Object owner, FieldDescriptor field, ClassDescriptor type, List<String> keys) {
+            this.owner = owner;
+            this.field = field;
+            this.type = type;
+            this.keys = keys;
         }
     }
-}
 
+    // identity map for one load call, so each object is fetched and built once and cycles end
+    private static final class LoadSession {
+        private final Map<ClassDescriptor, Map<String, Object>> objects = new HashMap<>();
+
+        // false if this load already fetched, or is fetching, the object
+        boolean markSeen(ClassDescriptor type, String key) {
+            Map<String, Object> byKey = objects.computeIfAbsent(type, t -> new HashMap<>());
+            if (byKey.containsKey(key)) {
+                return false;
+            }
+            byKey.put(key, null);
+            return true;
+        }
+
+        void put(ClassDescriptor type, String key, Object instance) {
+            objects.get(type).put(key, instance);
+        }
+
+        // null when the object is not stored
+        Object get(ClassDescriptor type, String key) {
+            Map<String, Object> byKey = objects.get(type);
+            return byKey != null ? byKey.get(key) : null;
+        }
+    }
+}
@@ -0,0 +1,1305 @@
+package com.ecs160.persistence;
+
+import com.ecs160.persistence.LocalValues.SortedSetValue;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Supplier;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+// local storage in memory-mapped, append-only segment files for offline batch work.
+// writes append redis-like operations (HSET, SADD, RPUSH, DEL ...) as records, so adding a member
+// to a large set costs one small record. an in-memory index maps every hash field, list element,
+// member and value to its bytes in the mapped segments, and reads decode straight from there.
+// close and compaction save the index to a checkpoint file, and open loads it and replays only the
+// records written after it. a background task rewrites the live items of mostly dead segments into
+// the active one, and drops removals once no surviving older segment needs them
+public final class SegmentBackend implements StorageBackend {
+    private static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+    private static final Duration DEFAULT_COMPACTION_INTERVAL = Duration.ofMinutes(1);
+    // sealed segments with less live data than this share are compacted
+    private static final double COMPACTION_THRESHOLD = 0.5;
+    // items per record when compaction rewrites a whole key
+    private static final int REWRITE_CHUNK = 4096;
+    // first int of every segment file, records start after it
+    private static final int SEGMENT_MAGIC = 0x53454732;
+    // first and last int of the index checkpoint
+    private static final int CHECKPOINT_MAGIC = 0x53454943;
+    private static final String CHECKPOINT = "index.checkpoint";
+
+    // record operations; the *REPLACE ones clear the key before adding their items
+    private static final byte DEL = 0;
+    private static final byte HSET = 1;
+    private static final byte HREPLACE = 2;
+    private static final byte HDEL = 3;
+    private static final byte SET_VALUE = 4;
+    private static final byte RPUSH = 5;
+    private static final byte LREPLACE = 6;
+    private static final byte LREM = 7;
+    private static final byte SADD = 8;
+    private static final byte SREPLACE = 9;
+    private static final byte SREM = 10;
+    private static final byte ZADD = 11;
+    private static final byte ZREPLACE = 12;
+    private static final byte ZREM = 13;
+
+    // record header: total length, operation, key length; the key, an item count and the items follow
+    private static final int HEADER = Integer.BYTES + 1 + Integer.BYTES;
+
+    private final Path directory;
+    private final int segmentSize;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final ConcurrentSkipListMap<String, Entry> index = new ConcurrentSkipListMap<>();
+    // removed keys whose records older segments may still hold
+    private final Map<String, Tombstone> tombstones = new HashMap<>();
+    private final TreeMap<Integer, Segment> segments = new TreeMap<>();
+    private final ScheduledExecutorService compactor;
+    private Segment active;
+
+    public SegmentBackend(Path directory) {
+        this(directory, DEFAULT_SEGMENT_SIZE, DEFAULT_COMPACTION_INTERVAL);
+    }
+
+    public SegmentBackend(Path directory, int segmentSize, Duration compactionInterval) {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        try {
+            Files.createDirectories(directory);
+            open();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot open segment store in " + directory, e);
+        }
+
+        this.compactor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "segment-compaction");
+            thread.setDaemon(true);
+            return thread;
+        });
+        // a zero interval leaves compaction to explicit compact() calls
+        long period = compactionInterval.toMillis();
+        if (period > 0) {
+            compactor.scheduleWithFixedDelay(this::compactQuietly, period, period, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @Override
+    public void read(ReadBatch batch) {
+        lock.readLock().lock();
+        try {
+            for (ReadBatch.Read<?> read : batch.reads()) {
+                read.complete(execute(read));
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private Object execute(ReadBatch.Read<?> read) {
+        String key = read.key();
+        Entry entry = index.get(key);
+        switch (read.kind()) {
+            case HASH: {
+                HashEntry hash = LocalValues.typed(entry, HashEntry.class, key);
+                Map<String, String> values = new HashMap<>();
+                if (hash != null) {
+                    hash.fields.forEach((field, location) -> values.put(field, readString(location)));
+                }
+                return values;
+            }
+            case HASH_FIELDS: {
+                HashEntry hash = LocalValues.typed(entry, HashEntry.class, key);
+                List<String> values = new ArrayList<>(read.fields().size());
+                for (String field : read.fields()) {
+                    Long location = hash == null ? null : hash.fields.get(field);
+                    values.add(location == null ? null : readString(location));
+                }
+                return values;
+            }
+            case VALUE: {
+                ValueEntry value = LocalValues.typed(entry, ValueEntry.class, key);
+                return value == null ? null : readBytes(value.location);
+            }
+            case LIST: {
+                ListEntry list = LocalValues.typed(entry, ListEntry.class, key);
+                return list == null
+                    ? new ArrayList<String>()
+                    : readStrings(LocalValues.page(list.elements, read.offset(), read.count()));
+            }
+            case SET: {
+                SetEntry set = LocalValues.typed(entry, SetEntry.class, key);
+                return set == null ? new LinkedHashSet<String>() : new LinkedHashSet<>(set.members.keySet());
+            }
+            case SORTED_SET_RANGE: {
+                SortedSetEntry sortedSet = LocalValues.typed(entry, SortedSetEntry.class, key);
+                return sortedSet == null
+                    ? new ArrayList<String>()
+                    : LocalValues.page(sortedSet.scores.range(read.min(), read.max()), read.offset(), read.count());
+            }
+            case SORTED_PAGE: {
+                SortedSetEntry sortedSet = LocalValues.typed(entry, SortedSetEntry.class, key);
+                return sortedSet == null
+                    ? new ArrayList<String>()
+                    : sortedSet.scores.members(read.offset(), read.count());
+            }
+            default:
+                throw new RuntimeException("Unsupported read " + read.kind());
+        }
+    }
+
+    // every change becomes a record of the matching operation, left out when it would change nothing
+    @Override
+    public long write(WriteBatch batch, boolean atomic) {
+        if (batch.isEmpty()) {
+            return 0;
+        }
+
+        lock.writeLock().lock();
+        try {
+            checkTypes(batch);
+            long removed = 0;
+            for (String key : batch.unlinks()) {
+                if (index.containsKey(key)) {
+                    appendDelete(key);
+                    removed++;
+                }
+            }
+
+            for (Map.Entry<String, Set<String>> entry : batch.hashRemoves().entrySet()) {
+                HashEntry hash = as(index.get(entry.getKey()), HashEntry.class);
+                List<String> fields = new ArrayList<>();
+                for (String field : entry.getValue()) {
+                    if (hash != null && hash.fields.containsKey(field)) {
+                        fields.add(field);
+                    }
+                }
+                appendStrings(HDEL, entry.getKey(), fields);
+                removed += fields.size();
+            }
+            batch.hashes().forEach((key, hash) -> appendHash(HSET, key, hash));
+            batch.values().forEach(this::appendValue);
+            batch.setAdds().forEach((key, members) -> {
+                SetEntry set = as(index.get(key), SetEntry.class);
+                List<String> added = new ArrayList<>();
+                for (String member : members) {
+                    if (set == null || !set.members.containsKey(member)) {
+                        added.add(member);
+                    }
+                }
+                appendStrings(SADD, key, added);
+            });
+            batch.setRemoves().forEach((key, members) -> {
+                Entry set = as(index.get(key), SetEntry.class);
+                appendStrings(SREM, key, held(set, members));
+            });
+            batch.listRemoves().forEach((key, elements) -> {
+                if (as(index.get(key), ListEntry.class) != null) {
+                    appendStrings(LREM, key, elements);
+                }
+            });
+            batch.listAppends().forEach((key, elements) -> appendStrings(RPUSH, key, elements));
+            batch.sortedSetAdds().forEach((key, members) -> {
+                SortedSetEntry sortedSet = as(index.get(key), SortedSetEntry.class);
+                Map<String, Double> changed = new LinkedHashMap<>();
+                members.forEach((member, score) -> {
+                    if (sortedSet == null || !score.equals(sortedSet.scores.score(member))) {
+                        changed.put(member, score);
+                    }
+                });
+                appendScores(ZADD, key, changed);
+            });
+            batch.sortedSetRemoves().forEach((key, members) -> {
+                Entry sortedSet = as(index.get(key), SortedSetEntry.class);
+                appendStrings(ZREM, key, held(sortedSet, members));
+            });
+            return removed;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // refuses a batch that treats a key as the wrong type before any of its records is written
+    private void checkTypes(WriteBatch batch) {
+        Map<String, Class<?>> claimed = new HashMap<>();
+        claim(claimed, batch, batch.hashRemoves().keySet(), HashEntry.class);
+        claim(claimed, batch, batch.hashes().keySet(), HashEntry.class);
+        claim(claimed, batch, batch.setAdds().keySet(), SetEntry.class);
+        claim(claimed, batch, batch.setRemoves().keySet(), SetEntry.class);
+        claim(claimed, batch, batch.listRemoves().keySet(), ListEntry.class);
+        claim(claimed, batch, batch.listAppends().keySet(), ListEntry.class);
+        claim(claimed, batch, batch.sortedSetAdds().keySet(), SortedSetEntry.class);
+        claim(claimed, batch, batch.sortedSetRemoves().keySet(), SortedSetEntry.class);
+    }
+
+    private void claim(Map<String, Class<?>> claimed, WriteBatch batch, Set<String> keys, Class<?> type) {
+        for (String key : keys) {
+            Class<?> previous = claimed.putIfAbsent(key, type);
+            Entry entry = index.get(key);
+            boolean cleared = batch.unlinks().contains(key) || batch.values().containsKey(key);
+            if ((previous != null && previous != type) || (entry != null && !cleared && !type.isInstance(entry))) {
+                throw LocalValues.wrongType(key);
+            }
+        }
+    }
+
+    private static List<String> held(Entry entry, Collection<String> items) {
+        List<String> held = new ArrayList<>();
+        for (String item : items) {
+            if (entry != null && entry.holds(item)) {
+                held.add(item);
+            }
+        }
+        return held;
+    }
+
+    @Override
+    public ScanPage scan(String cursor, String pattern, int count) {
+        Pattern regex = LocalValues.globToRegex(pattern);
+        NavigableMap<String, Entry> rest = ScanPage.START.equals(cursor)
+            ? index
+            : index.tailMap(cursor.substring(1), false);
+
+        // the cursor is the last key examined, prefixed so it never reads as START
+        List<String> keys = new ArrayList<>();
+        String last = null;
+        int examined = 0;
+        for (String key : rest.keySet()) {
+            if (examined++ == count) {
+                break;
+            }
+            last = key;
+            if (regex.matcher(key).matches()) {
+                keys.add(key);
+            }
+        }
+        boolean done = last == null || index.higherKey(last) == null;
+        return new ScanPage(done ? ScanPage.START : "k" + last, keys);
+    }
+
+    @Override
+    public ScanPage scanSet(String key, String cursor, int count) {
+        ReadBatch batch = new ReadBatch();
+        ReadBatch.Read<Set<String>> members = batch.set(key);
+        read(batch);
+        return new ScanPage(ScanPage.START, new ArrayList<>(members.get()));
+    }
+
+    @Override
+    public long delete(Collection<String> keys) {
+        WriteBatch batch = new WriteBatch();
+        keys.forEach(batch::unlink);
+        return write(batch, false);
+    }
+
+    @Override
+    public int parallelism() {
+        return Runtime.getRuntime().availableProcessors();
+    }
+
+    @Override
+    public void close() {
+        compactor.shutdownNow();
+        lock.writeLock().lock();
+        try {
+            writeCheckpoint();
+            segments.clear();
+            index.clear();
+            tombstones.clear();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // rewrites the live items of mostly dead sealed segments into the active one, then drops them.
+    // a removal is rewritten only while a surviving older segment may still hold what it removed
+    public void compact() throws IOException {
+        lock.writeLock().lock();
+        try {
+            List<Segment> candidates = new ArrayList<>();
+            Set<Integer> dropped = new HashSet<>();
+            for (Segment segment : segments.values()) {
+                if (segment != active && segment.live < segment.used * COMPACTION_THRESHOLD) {
+                    candidates.add(segment);
+                    dropped.add(segment.id);
+                }
+            }
+            if (candidates.isEmpty()) {
+                return;
+            }
+
+            Set<String> rewritten = new HashSet<>();
+            for (Segment segment : candidates) {
+                for (int i = 0; i < segment.recordCount; i++) {
+                    compactRecord(segment, segment.records[i], dropped, rewritten);
+                }
+            }
+
+            // the rewritten items must be on disk before the segments that held them go away
+            for (Segment segment : segments.values()) {
+                if (!dropped.contains(segment.id)) {
+                    segment.buffer.force();
+                }
+            }
+            for (Segment segment : candidates) {
+                segments.remove(segment.id);
+                Files.deleteIfExists(segmentFile(segment.id));
+            }
+            writeCheckpoint();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void compactQuietly() {
+        try {
+            compact();
+        } catch (Exception e) {
+            System.err.println("Error compacting segments: " + e.getMessage());
+        }
+    }
+
+    private void compactRecord(Segment segment, int offset, Set<Integer> dropped, Set<String> rewritten) {
+        ByteBuffer buffer = segment.buffer;
+        byte op = buffer.get(offset + Integer.BYTES);
+        int keyLength = buffer.getInt(offset + Integer.BYTES + 1);
+        String key = readString(buffer, offset + HEADER, keyLength);
+        int position = offset + HEADER + keyLength;
+        int count = buffer.getInt(position);
+        position += Integer.BYTES;
+        Entry entry = index.get(key);
+        boolean shadows = olderRecordsRemain(key, entry, segment.id, dropped);
+
+        switch (op) {
+            case HSET: {
+                HashEntry hash = as(entry, HashEntry.class);
+                Map<String, String> live = new LinkedHashMap<>();
+                for (int i = 0; i < count; i++) {
+                    String field = readString(buffer, position);
+                    position = skip(buffer, position);
+                    long location = location(segment.id, position);
+                    if (hash != null && Long.valueOf(location).equals(hash.fields.get(field))) {
+                        live.put(field, readString(location));
+                    }
+                    position = skip(buffer, position);
+                }
+                appendHash(HSET, key, live);
+                break;
+            }
+            case SADD: {
+                SetEntry set = as(entry, SetEntry.class);
+                List<String> live = new ArrayList<>();
+                for (int i = 0; i < count; i++) {
+                    long location = location(segment.id, position);
+                    String member = readString(buffer, position);
+                    position = skip(buffer, position);
+                    if (set != null && Long.valueOf(location).equals(set.members.get(member))) {
+                        live.add(member);
+                    }
+                }
+                appendStrings(SADD, key, live);
+                break;
+            }
+            case ZADD: {
+                SortedSetEntry sortedSet = as(entry, SortedSetEntry.class);
+                Map<String, Double> live = new LinkedHashMap<>();
+                for (int i = 0; i < count; i++) {
+                    long location = location(segment.id, position);
+                    String member = readString(buffer, position);
+                    position = skip(buffer, position);
+                    double score = buffer.getDouble(position);
+                    position += Double.BYTES;
+                    if (sortedSet != null && Long.valueOf(location).equals(sortedSet.members.get(member))) {
+                        live.put(member, score);
+                    }
+                }
+                appendScores(ZADD, key, live);
+                break;
+            }
+            case SET_VALUE: {
+                ValueEntry value = as(entry, ValueEntry.class);
+                if (value != null && value.location == location(segment.id, position)) {
+                    appendValue(key, readBytes(value.location));
+                }
+                break;
+            }
+            case RPUSH:
+                // moving some elements to the end would reorder the list
+                if (entry != null && hasItemsIn(entry, segment.id)) {
+                    rewrite(key, entry, rewritten);
+                }
+                break;
+            case DEL:
+            case HREPLACE:
+            case SREPLACE:
+            case ZREPLACE:
+            case LREPLACE:
+                if (entry != null && (shadows || hasItemsIn(entry, segment.id))) {
+                    rewrite(key, entry, rewritten);
+                } else if (entry == null && op == DEL) {
+                    retire(key, segment, shadows, rewritten);
+                }
+                break;
+            case LREM:
+                if (entry == null) {
+                    retire(key, segment, shadows, rewritten);
+                } else if (shadows) {
+                    rewrite(key, entry, rewritten);
+                }
+                break;
+            default: {
+                // HDEL, SREM and ZREM keep the items that are still gone
+                if (entry == null) {
+                    retire(key, segment, shadows, rewritten);
+                    break;
+                }
+                if (!shadows) {
+                    break;
+                }
+                List<String> gone = new ArrayList<>();
+                for (int i = 0; i < count; i++) {
+                    String item = readString(buffer, position);
+                    position = skip(buffer, position);
+                    if (!entry.holds(item)) {
+                        gone.add(item);
+                    }
+                }
+                appendStrings(op, key, gone);
+                break;
+            }
+        }
+    }
+
+    // whether a segment that survives this compaction and is older than segmentId may hold records of key
+    private boolean olderRecordsRemain(String key, Entry entry, int segmentId, Set<Integer> dropped) {
+        int first = entry != null ? entry.firstSegment : Integer.MAX_VALUE;
+        Tombstone tombstone = tombstones.get(key);
+        if (tombstone != null) {
+            first = Math.min(first, tombstone.first);
+        }
+        if (first >= segmentId) {
+            return false;
+        }
+        for (int id : segments.subMap(first, true, segmentId, false).keySet()) {
+            if (!dropped.contains(id)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // a removal of a key that is gone now, dropped with its tombstone once nothing older needs it
+    private void retire(String key, Segment segment, boolean shadows, Set<String> rewritten) {
+        if (shadows) {
+            if (rewritten.add(key)) {
+                appendDelete(key);
+            }
+            return;
+        }
+        Tombstone tombstone = tombstones.get(key);
+        if (tombstone == null) {
+            return;
+        }
+        if (tombstone.last <= segment.id) {
+            tombstones.remove(key);
+        } else {
+            tombstone.first = Math.max(tombstone.first, segment.id + 1);
+        }
+    }
+
+    // writes the key's whole value again, which also replaces whatever older segments hold of it
+    private void rewrite(String key, Entry entry, Set<String> rewritten) {
+        if (!rewritten.add(key)) {
+            return;
+        }
+        if (entry instanceof ValueEntry) {
+            appendValue(key, readBytes(((ValueEntry) entry).location));
+        } else if (entry instanceof HashEntry) {
+            List<String> fields = new ArrayList<>(((HashEntry) entry).fields.keySet());
+            List<Long> locations = new ArrayList<>(((HashEntry) entry).fields.values());
+            for (int from = 0; from < fields.size(); from += REWRITE_CHUNK) {
+                Map<String, String> chunk = new LinkedHashMap<>();
+                for (int i = from; i < Math.min(fields.size(), from + REWRITE_CHUNK); i++) {
+                    chunk.put(fields.get(i), readString(locations.get(i)));
+                }
+                appendHash(from == 0 ? HREPLACE : HSET, key, chunk);
+            }
+        } else if (entry instanceof ListEntry) {
+            List<Long> elements = new ArrayList<>(((ListEntry) entry).elements);
+            for (int from = 0; from < elements.size(); from += REWRITE_CHUNK) {
+                List<Long> chunk = elements.subList(from, Math.min(elements.size(), from + REWRITE_CHUNK));
+                appendStrings(from == 0 ? LREPLACE : RPUSH, key, readStrings(chunk));
+            }
+        } else if (entry instanceof SetEntry) {
+            List<String> members = new ArrayList<>(((SetEntry) entry).members.keySet());
+            for (int from = 0; from < members.size(); from += REWRITE_CHUNK) {
+                List<String> chunk = members.subList(from, Math.min(members.size(), from + REWRITE_CHUNK));
+                appendStrings(from == 0 ? SREPLACE : SADD, key, chunk);
+            }
+        } else {
+            List<Map.Entry<String, Double>> members =
+                new ArrayList<>(((SortedSetEntry) entry).scores.entries().entrySet());
+            for (int from = 0; from < members.size(); from += REWRITE_CHUNK) {
+                Map<String, Double> chunk = new LinkedHashMap<>();
+                for (Map.Entry<String, Double> member : members.subList(from,
+                    Math.min(members.size(), from + REWRITE_CHUNK))) {
+                    chunk.put(member.getKey(), member.getValue());
+                }
+                appendScores(from == 0 ? ZREPLACE : ZADD, key, chunk);
+            }
+        }
+    }
+
+    private static boolean hasItemsIn(Entry entry, int segmentId) {
+        for (long location : entry.locations()) {
+            if (segmentOf(location) == segmentId) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void appendDelete(String key) {
+        append(DEL, key, 0, out -> { });
+    }
+
+    private void appendStrings(byte op, String key, Collection<String> strings) {
+        if (strings.isEmpty()) {
+            return;
+        }
+        append(op, key, strings.size(), out -> {
+            for (String string : strings) {
+                writeString(out, string);
+            }
+        });
+    }
+
+    private void appendHash(byte op, String key, Map<String, String> fields) {
+        if (fields.isEmpty()) {
+            return;
+        }
+        append(op, key, fields.size(), out -> {
+            for (Map.Entry<String, String> field : fields.entrySet()) {
+                writeString(out, field.getKey());
+                writeString(out, field.getValue());
+            }
+        });
+    }
+
+    private void appendScores(byte op, String key, Map<String, Double> members) {
+        if (members.isEmpty()) {
+            return;
+        }
+        append(op, key, members.size(), out -> {
+            for (Map.Entry<String, Double> member : members.entrySet()) {
+                writeString(out, member.getKey());
+                out.writeDouble(member.getValue());
+            }
+        });
+    }
+
+    private void appendValue(String key, byte[] value) {
+        append(SET_VALUE, key, 1, out -> {
+            out.writeInt(value.length);
+            out.write(value);
+        });
+    }
+
+    private void append(byte op, String key, int count, Items items) {
+        ByteBuffer record;
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(0);
+            out.writeByte(op);
+            writeString(out, key);
+            out.writeInt(count);
+            items.write(out);
+            out.flush();
+            record = ByteBuffer.wrap(bytes.toByteArray());
+            record.putInt(0, record.remaining());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+
+        // a zero int after the last record ends replay
+        int length = record.remaining();
+        if (active == null || active.capacity - active.used < length + Integer.BYTES) {
+            active = createSegment(segments.isEmpty() ? 0 : segments.lastKey() + 1, length + 2 * Integer.BYTES);
+        }
+        int offset = active.used;
+        active.buffer.put(offset, record, 0, length);
+        active.used += length;
+        active.addRecord(offset);
+        apply(active, offset);
+    }
+
+    // applies the record at offset to the index, for both new writes and replay
+    private void apply(Segment segment, int offset) {
+        ByteBuffer buffer = segment.buffer;
+        byte op = buffer.get(offset + Integer.BYTES);
+        int keyLength = buffer.getInt(offset + Integer.BYTES + 1);
+        String key = readString(buffer, offset + HEADER, keyLength);
+        int position = offset + HEADER + keyLength;
+        int count = buffer.getInt(position);
+        position += Integer.BYTES;
+        if (op != DEL && op != HDEL && op != LREM && op != SREM && op != ZREM) {
+            // every item starts live, and removals are dead from the start
+            segment.live += buffer.getInt(offset);
+        }
+
+        switch (op) {
+            case DEL:
+                remove(key, segment);
+                break;
+            case HSET:
+            case HREPLACE: {
+                HashEntry hash = writable(key, op == HREPLACE, HashEntry.class, HashEntry::new, segment);
+                for (int i = 0; i < count; i++) {
+                    String field = readString(buffer, position);
+                    position = skip(buffer, position);
+                    kill(hash.fields.put(field, location(segment.id, position)));
+                    position = skip(buffer, position);
+                }
+                break;
+            }
+            case SET_VALUE:
+                writable(key, true, ValueEntry.class, ValueEntry::new, segment).location = location(segment.id, position);
+                break;
+            case RPUSH:
+            case LREPLACE: {
+                ListEntry list = writable(key, op == LREPLACE, ListEntry.class, ListEntry::new, segment);
+                for (int i = 0; i < count; i++) {
+                    list.elements.add(location(segment.id, position));
+                    position = skip(buffer, position);
+                }
+                break;
+            }
+            case LREM: {
+                ListEntry list = as(index.get(key), ListEntry.class);
+                for (int i = 0; i < count && list != null; i++) {
+                    String element = readString(buffer, position);
+                    position = skip(buffer, position);
+                    for (Iterator<Long> elements = list.elements.iterator(); elements.hasNext(); ) {
+                        long location = elements.next();
+                        if (readString(location).equals(element)) {
+                            elements.remove();
+                            kill(location);
+                        }
+                    }
+                }
+                removeIfEmpty(key, list, segment);
+                break;
+            }
+            case SADD:
+            case SREPLACE: {
+                SetEntry set = writable(key, op == SREPLACE, SetEntry.class, SetEntry::new, segment);
+                for (int i = 0; i < count; i++) {
+                    kill(set.members.put(readString(buffer, position), location(segment.id, position)));
+                    position = skip(buffer, position);
+                }
+                break;
+            }
+            case ZADD:
+            case ZREPLACE: {
+                SortedSetEntry sortedSet = writable(key, op == ZREPLACE, SortedSetEntry.class, SortedSetEntry::new,
+                    segment);
+                for (int i = 0; i < count; i++) {
+                    long location = location(segment.id, position);
+                    String member = readString(buffer, position);
+                    position = skip(buffer, position);
+                    sortedSet.scores.add(member, buffer.getDouble(position));
+                    position += Double.BYTES;
+                    kill(sortedSet.members.put(member, location));
+                }
+                break;
+            }
+            default: {
+                // HDEL, SREM and ZREM
+                Entry entry = index.get(key);
+                for (int i = 0; i < count && entry != null; i++) {
+                    String item = readString(buffer, position);
+                    position = skip(buffer, position);
+                    if (op == HDEL && entry instanceof HashEntry) {
+                        kill(((HashEntry) entry).fields.remove(item));
+                    } else if (op == SREM && entry instanceof SetEntry) {
+                        kill(((SetEntry) entry).members.remove(item));
+                    } else if (op == ZREM && entry instanceof SortedSetEntry) {
+                        ((SortedSetEntry) entry).scores.remove(item);
+                        kill(((SortedSetEntry) entry).members.remove(item));
+                    }
+                }
+                removeIfEmpty(key, entry, segment);
+                break;
+            }
+        }
+    }
+
+    // the entry a put record adds to, a new one when the record replaces the key or it held another type
+    private <E extends Entry> E writable(String key, boolean replace, Class<E> type, Supplier<E> create,
+                                         Segment segment) {
+        Entry entry = index.get(key);
+        if (!replace && type.isInstance(entry)) {
+            return type.cast(entry);
+        }
+        E created = create.get();
+        created.firstSegment = segment.id;
+        if (entry != null) {
+            entry.locations().forEach(this::kill);
+            created.firstSegment = entry.firstSegment;
+        }
+        index.put(key, created);
+        return created;
+    }
+
+    private void remove(String key, Segment segment) {
+        Entry entry = index.remove(key);
+        Tombstone tombstone = tombstones.get(key);
+        if (entry != null) {
+            entry.locations().forEach(this::kill);
+            if (tombstone == null) {
+                tombstone = new Tombstone(entry.firstSegment);
+                tombstones.put(key, tombstone);
+            }
+            tombstone.first = Math.min(tombstone.first, entry.firstSegment);
+        }
+        if (tombstone != null) {
+            tombstone.last = segment.id;
+        }
+    }
+
+    private void removeIfEmpty(String key, Entry entry, Segment segment) {
+        if (entry != null && entry.isEmpty()) {
+            remove(key, segment);
+        }
+    }
+
+    // the item at location left the index, so its share of its record no longer counts as live
+    private void kill(Long location) {
+        if (location == null) {
+            return;
+        }
+        Segment segment = segments.get(segmentOf(location));
+        if (segment != null) {
+            segment.live -= segment.weight(offsetOf(location));
+        }
+    }
+
+    private static <E extends Entry> E as(Entry entry, Class<E> type) {
+        return type.isInstance(entry) ? type.cast(entry) : null;
+    }
+
+    private void open() throws IOException {
+        List<Integer> ids = new ArrayList<>();
+        try (Stream<Path> files = Files.list(directory)) {
+            files.map(path -> path.getFileName().toString())
+                .filter(name -> name.startsWith("segment-") && name.endsWith(".dat"))
+                .forEach(name -> ids.add(Integer.parseInt(name.substring(8, name.length() - 4))));
+        }
+        Collections.sort(ids);
+        for (int id : ids) {
+            segments.put(id, mapSegment(id, 0));
+        }
+        if (!loadCheckpoint()) {
+            index.clear();
+            tombstones.clear();
+            for (Segment segment : segments.values()) {
+                segment.used = Integer.BYTES;
+                segment.live = 0;
+                segment.recordCount = 0;
+            }
+        }
+        // segments are replayed in write order from where the checkpoint left them, later records
+        // overriding earlier ones
+        for (Segment segment : segments.values()) {
+            replay(segment);
+        }
+        active = segments.isEmpty() ? null : segments.lastEntry().getValue();
+    }
+
+    // applies the records up to the zero filled tail
+    private void replay(Segment segment) {
+        while (segment.used + HEADER <= segment.capacity) {
+            int length = segment.buffer.getInt(segment.used);
+            if (length <= 0 || segment.used + length > segment.capacity) {
+                break;
+            }
+            int offset = segment.used;
+            segment.addRecord(offset);
+            segment.used += length;
+            apply(segment, offset);
+        }
+    }
+
+    // saves the index with each segment's used and live bytes, once the segments are on disk. the file
+    // is replaced whole, so a crash leaves either the old checkpoint or the new one
+    private void writeCheckpoint() {
+        try {
+            for (Segment segment : segments.values()) {
+                segment.buffer.force();
+            }
+            Path temporary = directory.resolve(CHECKPOINT + ".tmp");
+            try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+                out.writeInt(CHECKPOINT_MAGIC);
+                out.writeInt(segments.size());
+                for (Segment segment : segments.values()) {
+                    out.writeInt(segment.id);
+                    out.writeInt(segment.used);
+                    out.writeDouble(segment.live);
+                    out.writeInt(segment.recordCount);
+                    for (int i = 0; i < segment.recordCount; i++) {
+                        out.writeInt(segment.records[i]);
+                    }
+                }
+                out.writeInt(tombstones.size());
+                for (Map.Entry<String, Tombstone> tombstone : tombstones.entrySet()) {
+                    writeString(out, tombstone.getKey());
+                    out.writeInt(tombstone.getValue().first);
+                    out.writeInt(tombstone.getValue().last);
+                }
+                out.writeInt(index.size());
+                for (Map.Entry<String, Entry> entry : index.entrySet()) {
+                    writeString(out, entry.getKey());
+                    writeEntry(out, entry.getValue());
+                }
+                out.writeInt(CHECKPOINT_MAGIC);
+                out.flush();
+                channel.force(true);
+            }
+            Files.move(temporary, directory.resolve(CHECKPOINT), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            // the next open falls back to replaying the segments
+            System.err.println("Error writing segment index checkpoint: " + e.getMessage());
+        }
+    }
+
+    // entries are tagged with the op of the record that adds to them
+    private static void writeEntry(DataOutputStream out, Entry entry) throws IOException {
+        if (entry instanceof ValueEntry) {
+            out.writeByte(SET_VALUE);
+            out.writeInt(entry.firstSegment);
+            out.writeLong(((ValueEntry) entry).location);
+        } else if (entry instanceof HashEntry) {
+            out.writeByte(HSET);
+            out.writeInt(entry.firstSegment);
+            writeLocations(out, ((HashEntry) entry).fields);
+        } else if (entry instanceof ListEntry) {
+            out.writeByte(RPUSH);
+            out.writeInt(entry.firstSegment);
+            out.writeInt(((ListEntry) entry).elements.size());
+            for (long location : ((ListEntry) entry).elements) {
+                out.writeLong(location);
+            }
+        } else if (entry instanceof SetEntry) {
+            out.writeByte(SADD);
+            out.writeInt(entry.firstSegment);
+            writeLocations(out, ((SetEntry) entry).members);
+        } else {
+            // scores are read back from the segments, right after each member
+            out.writeByte(ZADD);
+            out.writeInt(entry.firstSegment);
+            writeLocations(out, ((SortedSetEntry) entry).members);
+        }
+    }
+
+    private static void writeLocations(DataOutputStream out, Map<String, Long> locations) throws IOException {
+        out.writeInt(locations.size());
+        for (Map.Entry<String, Long> location : locations.entrySet()) {
+            writeString(out, location.getKey());
+            out.writeLong(location.getValue());
+        }
+    }
+
+    // restores the index from the checkpoint; false when it is missing, unreadable or no longer matches
+    // the segment files, as after a crash between dropping compacted segments and saving the index
+    private boolean loadCheckpoint() {
+        Path file = directory.resolve(CHECKPOINT);
+        if (!Files.exists(file)) {
+            return false;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (in.readInt() != CHECKPOINT_MAGIC) {
+                return false;
+            }
+            int segmentCount = in.readInt();
+            int lastId = -1;
+            for (int i = 0; i < segmentCount; i++) {
+                Segment segment = segments.get(in.readInt());
+                int used = in.readInt();
+                if (segment == null || used < Integer.BYTES || used > segment.capacity) {
+                    return false;
+                }
+                segment.used = used;
+                segment.live = in.readDouble();
+                segment.recordCount = in.readInt();
+                segment.records = new int[Math.max(64, segment.recordCount)];
+                for (int r = 0; r < segment.recordCount; r++) {
+                    segment.records[r] = in.readInt();
+                }
+                lastId = segment.id;
+            }
+            // segments the checkpoint does not know must all be newer than it
+            if (segments.headMap(lastId, true).size() != segmentCount) {
+                return false;
+            }
+
+            int tombstoneCount = in.readInt();
+            for (int i = 0; i < tombstoneCount; i++) {
+                String key = readString(in);
+                Tombstone tombstone = new Tombstone(in.readInt());
+                tombstone.last = in.readInt();
+                tombstones.put(key, tombstone);
+            }
+            int entryCount = in.readInt();
+            for (int i = 0; i < entryCount; i++) {
+                String key = readString(in);
+                index.put(key, readEntry(in));
+            }
+            return in.readInt() == CHECKPOINT_MAGIC;
+        } catch (Exception e) {
+            System.err.println("Error reading segment index checkpoint, replaying segments: " + e.getMessage());
+            return false;
+        }
+    }
+
+    private Entry readEntry(DataInputStream in) throws IOException {
+        byte type = in.readByte();
+        int firstSegment = in.readInt();
+        Entry entry;
+        switch (type) {
+            case SET_VALUE: {
+                ValueEntry value = new ValueEntry();
+                value.location = checked(in.readLong());
+                entry = value;
+                break;
+            }
+            case HSET: {
+                HashEntry hash = new HashEntry();
+                readLocations(in, hash.fields);
+                entry = hash;
+                break;
+            }
+            case RPUSH: {
+                ListEntry list = new ListEntry();
+                int count = in.readInt();
+                for (int i = 0; i < count; i++) {
+                    list.elements.add(checked(in.readLong()));
+                }
+                entry = list;
+                break;
+            }
+            case SADD: {
+                SetEntry set = new SetEntry();
+                readLocations(in, set.members);
+                entry = set;
+                break;
+            }
+            case ZADD: {
+                SortedSetEntry sortedSet = new SortedSetEntry();
+                readLocations(in, sortedSet.members);
+                sortedSet.members.forEach((member, location) -> {
+                    ByteBuffer buffer = segments.get(segmentOf(location)).buffer;
+                    sortedSet.scores.add(member, buffer.getDouble(skip(buffer, offsetOf(location))));
+                });
+                entry = sortedSet;
+                break;
+            }
+            default:
+                throw new IOException("unknown entry type " + type);
+        }
+        entry.firstSegment = firstSegment;
+        return entry;
+    }
+
+    private void readLocations(DataInputStream in, Map<String, Long> locations) throws IOException {
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            String item = readString(in);
+            locations.put(item, checked(in.readLong()));
+        }
+    }
+
+    // a location must point into the written part of a known segment
+    private long checked(long location) throws IOException {
+        Segment segment = segments.get(segmentOf(location));
+        if (segment == null || offsetOf(location) >= segment.used) {
+            throw new IOException("location " + location + " is outside the segments");
+        }
+        return location;
+    }
+
+    private Segment createSegment(int id, int minimumSize) {
+        try {
+            Segment segment = mapSegment(id, Math.max(segmentSize, minimumSize));
+            segments.put(id, segment);
+            return segment;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot create segment " + id + " in " + directory, e);
+        }
+    }
+
+    private Segment mapSegment(int id, int size) throws IOException {
+        try (FileChannel channel = FileChannel.open(segmentFile(id),
+            StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long capacity = Math.max(Math.max(size, channel.size()), HEADER);
+            // the mapping outlives the channel, and unwritten space reads as zeros
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+            int magic = buffer.getInt(0);
+            if (magic == 0) {
+                buffer.putInt(0, SEGMENT_MAGIC);
+            } else if (magic != SEGMENT_MAGIC) {
+                throw new IOException(segmentFile(id) + " is not a segment file of this format");
+            }
+            return new Segment(id, buffer);
+        }
+    }
+
+    private Path segmentFile(int id) {
+        return directory.resolve(String.format("segment-%06d.dat", id));
+    }
+
+    private static long location(int segment, int offset) {
+        return ((long) segment << 40) | offset;
+    }
+
+    private static int segmentOf(long location) {
+        return (int) (location >>> 40);
+    }
+
+    private static int offsetOf(long location) {
+        return (int) (location & ((1L << 40) - 1));
+    }
+
+    private String readString(long location) {
+        return new String(readBytes(location), StandardCharsets.UTF_8);
+    }
+
+    // the length-prefixed bytes at location, copied out of the mapped segment
+    private byte[] readBytes(long location) {
+        ByteBuffer buffer = segments.get(segmentOf(location)).buffer;
+        int offset = offsetOf(location);
+        byte[] bytes = new byte[buffer.getInt(offset)];
+        buffer.get(offset + Integer.BYTES, bytes);
+        return bytes;
+    }
+
+    private List<String> readStrings(List<Long> locations) {
+        List<String> strings = new ArrayList<>(locations.size());
+        for (long location : locations) {
+            strings.add(readString(location));
+        }
+        return strings;
+    }
+
+    private static String readString(ByteBuffer buffer, int position) {
+        return readString(buffer, position + Integer.BYTES, buffer.getInt(position));
+    }
+
+    private static String readString(ByteBuffer buffer, int position, int length) {
+        byte[] bytes = new byte[length];
+        buffer.get(position, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // the position after the length-prefixed string at position
+    private static int skip(ByteBuffer buffer, int position) {
+        return position + Integer.BYTES + buffer.getInt(position);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private interface Items {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    private static final class Segment {
+        private final int id;
+        private final MappedByteBuffer buffer;
+        private final int capacity;
+        // records start after the magic
+        private int used = Integer.BYTES;
+        // record bytes still in the index, each record's length split evenly between its items
+        private double live;
+        // record offsets in write order, to find the record an item belongs to
+        private int[] records = new int[64];
+        private int recordCount;
+
+        Segment(int id, MappedByteBuffer buffer) {
+            this.id = id;
+            this.buffer = buffer;
+            this.capacity = buffer.capacity();
+        }
+
+        void addRecord(int offset) {
+            if (recordCount == records.length) {
+                records = Arrays.copyOf(records, recordCount * 2);
+            }
+            records[recordCount++] = offset;
+        }
+
+        // the live bytes the item at offset stands for
+        double weight(int offset) {
+            int found = Arrays.binarySearch(records, 0, recordCount, offset);
+            int record = records[found >= 0 ? found : -found - 2];
+            int keyLength = buffer.getInt(record + Integer.BYTES + 1);
+            return (double) buffer.getInt(record) / buffer.getInt(record + HEADER + keyLength);
+        }
+    }
+
+    // what the index holds for a key; locations point at strings or values in the segments
+    private abstract static class Entry {
+        // the oldest segment that held records of the key while it existed
+        int firstSegment;
+
+        abstract Collection<Long> locations();
+
+        abstract boolean isEmpty();
+
+        boolean holds(String item) {
+            return false;
+        }
+    }
+
+    private static final class ValueEntry extends Entry {
+        long location;
+
+        @Override
+        Collection<Long> locations() {
+            return Collections.singletonList(location);
+        }
+
+        @Override
+        boolean isEmpty() {
+            return false;
+        }
+    }
+
+    private static final class HashEntry extends Entry {
+        private final Map<String, Long> fields = new LinkedHashMap<>();
+
+        @Override
+        Collection<Long> locations() {
+            return fields.values();
+        }
+
+        @Override
+        boolean isEmpty() {
+            return fields.isEmpty();
+        }
+
+        @Override
+        boolean holds(String field) {
+            return fields.containsKey(field);
+        }
+    }
+
+    private static final class ListEntry extends Entry {
+        private final List<Long> elements = new ArrayList<>();
+
+        @Override
+        Collection<Long> locations() {
+            return elements;
+        }
+
+        @Override
+        boolean isEmpty() {
+            return elements.isEmpty();
+        }
+    }
+
+    private static final class SetEntry extends Entry {
+        private final Map<String, Long> members = new LinkedHashMap<>();
+
+        @Override
+        Collection<Long> locations() {
+            return members.values();
+        }
+
+        @Override
+        boolean isEmpty() {
+            return members.isEmpty();
+        }
+
+        @Override
+        boolean holds(String member) {
+            return members.containsKey(member);
+        }
+    }
+
+    private static final class SortedSetEntry extends Entry {
+        private final SortedSetValue scores = new SortedSetValue();
+        private final Map<String, Long> members = new HashMap<>();
+
+        @Override
+        Collection<Long> locations() {
+            return members.values();
+        }
+
+        @Override
+        boolean isEmpty() {
+            return members.isEmpty();
+        }
+
+        @Override
+        boolean holds(String member) {
+            return members.containsKey(member);
+        }
+    }
+
+    // where the records of a removed key can still be: from first up to its latest removal in last
+    private static final class Tombstone {
+        private int first;
+        private int last;
+
+        Tombstone(int first) {
+            this.first = first;
+            this.last = first;
+        }
+    }
+}
@@ -0,0 +1,206 @@
+package com.ecs160.persistence;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+// spreads keys over several backends by consistent hashing: every node owns many points on a ring
+// and a key goes to the node owning the first point at or after the key's hash. adding or removing
+// a node moves only the keys between its points and their neighbours.
+// batches are split per node and the parts run in parallel; an atomic write is atomic per node only
+public final class ShardedBackend implements StorageBackend {
+    public static final int DEFAULT_VIRTUAL_NODES = 160;
+
+    private final List<StorageBackend> nodes;
+    private final NavigableMap<Long, Integer> ring = new TreeMap<>();
+    private final ExecutorService executor;
+
+    // nodes by a stable name such as host:port, the ring depends on the names and not on the order
+    public ShardedBackend(Map<String, ? extends StorageBackend> nodes) {
+        this(nodes, DEFAULT_VIRTUAL_NODES);
+    }
+
+    public ShardedBackend(Map<String, ? extends StorageBackend> nodes, int virtualNodes) {
+        if (nodes.isEmpty()) {
+            throw new RuntimeException("A sharded backend needs at least one node");
+        }
+        this.nodes = new ArrayList<>(nodes.values());
+        int index = 0;
+        for (String name : nodes.keySet()) {
+            for (int i = 0; i < virtualNodes; i++) {
+                ring.put(hash(name + "#" + i), index);
+            }
+            index++;
+        }
+        this.executor = Executors.newFixedThreadPool(this.nodes.size(), runnable -> {
+            Thread thread = new Thread(runnable, "redisdb-shard");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    // one pooled connection set per "host:port" node, every key in namespace instead of a numbered database
+    public static ShardedBackend redis(Collection<String> hostsAndPorts, String namespace, int poolSizePerNode) {
+        Map<String, StorageBackend> nodes = new LinkedHashMap<>();
+        for (String node : hostsAndPorts) {
+            int colon = node.lastIndexOf(':');
+            if (colon < 0) {
+                throw new RuntimeException("Expected host:port, got " + node);
+            }
+            nodes.put(node, new RedisBackend(node.substring(0, colon), Integer.parseInt(node.substring(colon + 1)),
+                namespace, poolSizePerNode));
+        }
+        return new ShardedBackend(nodes);
+    }
+
+    // index of the node holding key
+    int nodeOf(String key) {
+        Map.Entry<Long, Integer> point = ring.ceilingEntry(hash(key));
+        return (point != null ? point : ring.firstEntry()).getValue();
+    }
+
+    @Override
+    public void read(ReadBatch batch) {
+        Map<Integer, ReadBatch> parts = new LinkedHashMap<>();
+        for (ReadBatch.Read<?> read : batch.reads()) {
+            parts.computeIfAbsent(nodeOf(read.key()), node -> new ReadBatch()).add(read);
+        }
+        // the parts hold the original reads, so running them completes the caller's batch
+        onEachNode(parts, (node, part) -> {
+            node.read(part);
+            return 0L;
+        });
+    }
+
+    @Override
+    public long write(WriteBatch batch, boolean atomic) {
+        if (batch.isEmpty()) {
+            return 0;
+        }
+        return onEachNode(batch.split(this::nodeOf), (node, part) -> node.write(part, atomic));
+    }
+
+    // walks the nodes one after the other, the cursor is the node index and that node's own cursor
+    @Override
+    public ScanPage scan(String cursor, String pattern, int count) {
+        int node = 0;
+        String nodeCursor = ScanPage.START;
+        if (!ScanPage.START.equals(cursor)) {
+            int slash = cursor.indexOf('/');
+            node = Integer.parseInt(cursor.substring(0, slash));
+            nodeCursor = cursor.substring(slash + 1);
+        }
+
+        ScanPage page = nodes.get(node).scan(nodeCursor, pattern, count);
+        String next;
+        if (!page.isLast()) {
+            next = node + "/" + page.cursor();
+        } else if (node + 1 < nodes.size()) {
+            next = (node + 1) + "/" + ScanPage.START;
+        } else {
+            next = ScanPage.START;
+        }
+        return new ScanPage(next, page.items());
+    }
+
+    @Override
+    public ScanPage scanSet(String key, String cursor, int count) {
+        return nodes.get(nodeOf(key)).scanSet(key, cursor, count);
+    }
+
+    @Override
+    public long delete(Collection<String> keys) {
+        Map<Integer, List<String>> parts = new LinkedHashMap<>();
+        for (String key : keys) {
+            parts.computeIfAbsent(nodeOf(key), node -> new ArrayList<>()).add(key);
+        }
+        return onEachNode(parts, StorageBackend::delete);
+    }
+
+    // every node runs the script over its own keys, so each run only touches keys it holds
+    @Override
+    public List<ScriptRun> evalScript(String script, List<String> keys, List<String> args) {
+        Map<Integer, List<String>> parts = new LinkedHashMap<>();
+        for (String key : keys) {
+            parts.computeIfAbsent(nodeOf(key), node -> new ArrayList<>()).add(key);
+        }
+        List<ScriptRun> runs = Collections.synchronizedList(new ArrayList<>());
+        long unsupported = onEachNode(parts, (node, part) -> {
+            List<ScriptRun> nodeRuns = node.evalScript(script, part, args);
+            if (nodeRuns == null) {
+                return 1L;
+            }
+            runs.addAll(nodeRuns);
+            return 0L;
+        });
+        return unsupported > 0 ? null : runs;
+    }
+
+    @Override
+    public int parallelism() {
+        int parallelism = 0;
+        for (StorageBackend node : nodes) {
+            parallelism += node.parallelism();
+        }
+        return parallelism;
+    }
+
+    @Override
+    public void close() {
+        executor.shutdown();
+        for (StorageBackend node : nodes) {
+            node.close();
+        }
+    }
+
+    // runs op for every node's part, in parallel when there are several, and sums the results
+    private <P> long onEachNode(Map<Integer, P> parts, NodeOperation<P> op) {
+        if (parts.size() == 1) {
+            Map.Entry<Integer, P> only = parts.entrySet().iterator().next();
+            return op.apply(nodes.get(only.getKey()), only.getValue());
+        }
+
+        List<CompletableFuture<Long>> results = new ArrayList<>(parts.size());
+        parts.forEach((node, part) ->
+            results.add(CompletableFuture.supplyAsync(() -> op.apply(nodes.get(node), part), executor)));
+        long total = 0;
+        for (CompletableFuture<Long> result : results) {
+            try {
+                total += result.join();
+            } catch (CompletionException e) {
+                // the node's own exception, as a single node call would throw it
+                throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : e;
+            }
+        }
+        return total;
+    }
+
+    // 64-bit FNV-1a over the utf-8 bytes, then the murmur3 finalizer to spread nearby keys over the ring
+    private static long hash(String key) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+            hash ^= b & 0xFF;
+            hash *= 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+    private interface NodeOperation<P> {
+        long apply(StorageBackend node, P part);
+    }
+}
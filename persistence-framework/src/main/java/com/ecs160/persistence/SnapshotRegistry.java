@@ -0,0 +1,142 @@
+package com.ecs160.persistence;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// last known stored field values of loaded objects, held weakly by identity
+final class SnapshotRegistry {
+    private final ReferenceQueue<Object> queue = new ReferenceQueue<>();
+    private final Map<IdentityKey, Snapshot> snapshots = new HashMap<>();
+    // stored key -> the snapshots that go stale once it is deleted
+    private final Map<String, Set<IdentityKey>> byStoredKey = new HashMap<>();
+
+    // null unless o was loaded from objectKey
+    synchronized Map<String, String> get(Object o, String objectKey) {
+        expunge();
+        Snapshot snapshot = snapshots.get(new IdentityKey(o, null));
+        return snapshot != null && snapshot.key.equals(objectKey) ? snapshot.fields : null;
+    }
+
+    synchronized void put(Object o, String objectKey, Map<String, String> fields) {
+        expunge();
+        IdentityKey identity = new IdentityKey(o, queue);
+        unindex(snapshots.remove(identity));
+        List<String> storedKeys = ClassDescriptor.of(o.getClass()).storedKeys(objectKey);
+        snapshots.put(identity, new Snapshot(identity, objectKey, storedKeys, fields));
+        for (String storedKey : storedKeys) {
+            byStoredKey.computeIfAbsent(storedKey, k -> new HashSet<>()).add(identity);
+        }
+    }
+
+    // replaces the fields of a loaded object once it is persisted back to the same key; objects
+    // that were never loaded get no snapshot, their stored values may change outside this RedisDB
+    synchronized void refresh(Object o, String objectKey, Map<String, String> fields) {
+        Snapshot snapshot = snapshots.get(new IdentityKey(o, null));
+        if (snapshot != null && snapshot.key.equals(objectKey)) {
+            snapshot.fields.clear();
+            snapshot.fields.putAll(fields);
+        }
+    }
+
+    // records one more field, e.g. a lazy field loaded after the object itself
+    synchronized void putField(Object o, String redisName, String value) {
+        Snapshot snapshot = snapshots.get(new IdentityKey(o, null));
+        if (snapshot != null) {
+            snapshot.fields.put(redisName, value);
+        }
+    }
+
+    synchronized void remove(Object o) {
+        unindex(snapshots.remove(new IdentityKey(o, null)));
+    }
+
+    // forgets the snapshots of objects stored in any of the deleted keys,
+    // so the next persist writes those objects in full
+    synchronized void removeStoredKeys(Collection<String> deletedKeys) {
+        expunge();
+        for (String deletedKey : deletedKeys) {
+            Set<IdentityKey> identities = byStoredKey.get(deletedKey);
+            if (identities == null) {
+                continue;
+            }
+            for (IdentityKey identity : identities.toArray(new IdentityKey[0])) {
+                unindex(snapshots.remove(identity));
+            }
+        }
+    }
+
+    // forgets every snapshot, so the next persist writes objects in full
+    synchronized void clear() {
+        snapshots.clear();
+        byStoredKey.clear();
+        while (queue.poll() != null) {
+            // drain references of already removed entries
+        }
+    }
+
+    private void expunge() {
+        Object cleared;
+        while ((cleared = queue.poll()) != null) {
+            unindex(snapshots.remove(cleared));
+        }
+    }
+
+    private void unindex(Snapshot snapshot) {
+        if (snapshot == null) {
+            return;
+        }
+        for (String storedKey : snapshot.storedKeys) {
+            Set<IdentityKey> identities = byStoredKey.get(storedKey);
+            if (identities != null && identities.remove(snapshot.identity) && identities.isEmpty()) {
+                byStoredKey.remove(storedKey);
+            }
+        }
+    }
+
+    private static final class Snapshot {
+        // the map key the snapshot is held under, found again by identity once o is collected
+        private final IdentityKey identity;
+        private final String key;
+        private final List<String> storedKeys;
+        private final Map<String, String> fields;
+
+        Snapshot(IdentityKey identity, String key, List<String> storedKeys, Map<String, String> fields) {
+            this.identity = identity;
+            this.key = key;
+            this.storedKeys = storedKeys;
+            this.fields = fields;
+        }
+    }
+
+    private static final class IdentityKey extends WeakReference<Object> {
+        private final int hash;
+
+        IdentityKey(Object referent, ReferenceQueue<Object> queue) {
+            super(referent, queue);
+            this.hash = System.identityHashCode(referent);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (this == other) {
+                return true;
+            }
+            if (!(other instanceof IdentityKey)) {
+                return false;
+            }
+            Object referent = get();
+            return referent != null && referent == ((IdentityKey) other).get();
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package com.ecs160.persistence;
+
+import java.io.Closeable;
+import java.util.Collection;
+import java.util.List;
+
+// the key-value operations RedisDB maps objects onto; reads and writes come in batches
+// so a networked backend can send each batch in a single round trip
+public interface StorageBackend extends Closeable {
+    // fills in every read of the batch
+    void read(ReadBatch batch);
+
+    // applies every write of the batch, all or nothing when atomic is set;
+    // returns how many keys the batch's unlinks removed and how many fields its hash removals dropped
+    long write(WriteBatch batch, boolean atomic);
+
+    // one page of keys matching a glob pattern, count is a hint for the page size
+    ScanPage scan(String cursor, String pattern, int count);
+
+    // one page of the members of the set at key
+    ScanPage scanSet(String key, String cursor, int count);
+
+    long delete(Collection<String> keys);
+
+    // how many calls the backend serves at the same time
+    int parallelism();
+
+    // runs a lua script where the data lives and returns the array reply of every run, or null when
+    // the backend cannot run scripts and the caller has to work on the client instead. the script
+    // declares every key it touches in keys and must treat them one at a time, since the backend
+    // may split them between runs, such as one per shard
+    default List<ScriptRun> evalScript(String script, List<String> keys, List<String> args) {
+        return null;
+    }
+
+    @Override
+    void close();
+
+    // a batch of results plus the cursor to continue from, START once the walk is done
+    final class ScanPage {
+        public static final String START = "0";
+
+        private final String cursor;
+        private final List<String> items;
+
+        public ScanPage(String cursor, List<String> items) {
+            this.cursor = cursor;
+            this.items = items;
+        }
+
+        public String cursor() {
+            return cursor;
+        }
+
+        public List<String> items() {
+            return items;
+        }
+
+        public boolean isLast() {
+            return START.equals(cursor);
+        }
+    }
+
+    // the keys one script run got and its array reply
+    final class ScriptRun {
+        private final List<String> keys;
+        private final List<String> reply;
+
+        public ScriptRun(List<String> keys, List<String> reply) {
+            this.keys = keys;
+            this.reply = reply;
+        }
+
+        public List<String> keys() {
+            return keys;
+        }
+
+        public List<String> reply() {
+            return reply;
+        }
+    }
+}
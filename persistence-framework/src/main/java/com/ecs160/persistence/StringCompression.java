@@ -0,0 +1,93 @@
+package com.ecs160.persistence;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+// threshold compression of string values kept in redis hashes. a compressed value is a header,
+// \u0001 then 'z', followed by the base64 of the raw deflate (fastest level) of its utf-8 bytes.
+// stored strings that happen to start with \u0001 get the header \u0001 'r' so they read back as is.
+// public for writers that bypass RedisDB but share its data, decoding works regardless of settings
+public final class StringCompression {
+    private static final char HEADER = '\u0001';
+    private static final char DEFLATED = 'z';
+    private static final char RAW = 'r';
+
+    private static final ThreadLocal<Deflater> DEFLATERS =
+        ThreadLocal.withInitial(() -> new Deflater(Deflater.BEST_SPEED, true));
+    private static final ThreadLocal<Inflater> INFLATERS = ThreadLocal.withInitial(() -> new Inflater(true));
+
+    private StringCompression() {
+    }
+
+    // the stored form of value, compressed when it has at least threshold characters and that saves space;
+    // a threshold of 0 or less never compresses
+    public static String encode(String value, int threshold) {
+        if (value == null) {
+            return null;
+        }
+        if (threshold > 0 && value.length() >= threshold) {
+            String compressed = deflate(value);
+            if (compressed.length() < value.length()) {
+                return compressed;
+            }
+        }
+        if (!value.isEmpty() && value.charAt(0) == HEADER) {
+            return new StringBuilder(value.length() + 2).append(HEADER).append(RAW).append(value).toString();
+        }
+        return value;
+    }
+
+    // the original value of a stored string, plain strings come back unchanged
+    public static String decode(String stored) {
+        if (stored == null || stored.length() < 2 || stored.charAt(0) != HEADER) {
+            return stored;
+        }
+        switch (stored.charAt(1)) {
+            case DEFLATED:
+                return inflate(stored);
+            case RAW:
+                return stored.substring(2);
+            default:
+                return stored;
+        }
+    }
+
+    private static String deflate(String value) {
+        Deflater deflater = DEFLATERS.get();
+        deflater.reset();
+        deflater.setInput(value.getBytes(StandardCharsets.UTF_8));
+        deflater.finish();
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(value.length() / 2 + 16);
+        byte[] buffer = new byte[8192];
+        while (!deflater.finished()) {
+            out.write(buffer, 0, deflater.deflate(buffer));
+        }
+        return HEADER + String.valueOf(DEFLATED) + Base64.getEncoder().encodeToString(out.toByteArray());
+    }
+
+    private static String inflate(String stored) {
+        Inflater inflater = INFLATERS.get();
+        inflater.reset();
+        inflater.setInput(Base64.getDecoder().decode(stored.substring(2)));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(stored.length() * 3);
+        byte[] buffer = new byte[8192];
+        try {
+            while (!inflater.finished()) {
+                int length = inflater.inflate(buffer);
+                if (length == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new RuntimeException("Truncated compressed value");
+                }
+                out.write(buffer, 0, length);
+            }
+        } catch (DataFormatException e) {
+            throw new RuntimeException("Corrupt compressed value", e);
+        }
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+}
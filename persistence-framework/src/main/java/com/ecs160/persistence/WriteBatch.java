@@ -0,0 +1,170 @@
+package com.ecs160.persistence;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+
+// every write produced by one persist call, queued so it can be sent in a single round trip.
+// backends apply the unlinks first and then the rest, in the order of the accessors below
+public final class WriteBatch {
+    private final Map<String, Map<String, String>> hashes = new LinkedHashMap<>();
+    private final Map<String, byte[]> values = new LinkedHashMap<>();
+    private final Set<String> unlinks = new LinkedHashSet<>();
+    private final Map<String, Set<String>> hashRemoves = new LinkedHashMap<>();
+    private final Set<String> bucketedKeys = new LinkedHashSet<>();
+    private final Map<String, Set<String>> setAdds = new LinkedHashMap<>();
+    private final Map<String, Set<String>> setRemoves = new LinkedHashMap<>();
+    private final Map<String, Set<String>> listRemoves = new LinkedHashMap<>();
+    private final Map<String, List<String>> listAppends = new LinkedHashMap<>();
+    private final Map<String, Map<String, Double>> sortedSetAdds = new LinkedHashMap<>();
+    private final Map<String, Set<String>> sortedSetRemoves = new LinkedHashMap<>();
+    private final Map<Object, String> encodedKeys = new IdentityHashMap<>();
+    private final Map<Object, Map<String, String>> encodedFields = new IdentityHashMap<>();
+
+    // fields to write into the hash at key, merged into one multi-field HSET
+    Map<String, String> hash(String key) {
+        return hashes.computeIfAbsent(key, k -> new LinkedHashMap<>());
+    }
+
+    // one object packed into a field of a shared bucket hash, objectKey names the object itself
+    void putInBucket(String bucketKey, String field, String packed, String objectKey) {
+        hash(bucketKey).put(field, packed);
+        bucketedKeys.add(objectKey);
+    }
+
+    void removeFromHash(String key, String field) {
+        hashRemoves.computeIfAbsent(key, k -> new LinkedHashSet<>()).add(field);
+    }
+
+    // whole value written with one SET, used by binary encoded classes
+    void setValue(String key, byte[] value) {
+        values.put(key, value);
+    }
+
+    void addToSet(String key, String member) {
+        setAdds.computeIfAbsent(key, k -> new LinkedHashSet<>()).add(member);
+    }
+
+    void removeFromSet(String key, String member) {
+        setRemoves.computeIfAbsent(key, k -> new LinkedHashSet<>()).add(member);
+    }
+
+    // drops every occurrence of element from the list at key
+    void removeFromList(String key, String element) {
+        listRemoves.computeIfAbsent(key, k -> new LinkedHashSet<>()).add(element);
+    }
+
+    void appendToList(String key, List<String> elements) {
+        listAppends.computeIfAbsent(key, k -> new ArrayList<>()).addAll(elements);
+    }
+
+    // dropped before anything else in the batch is written, so the key can be rebuilt
+    void unlink(String key) {
+        unlinks.add(key);
+    }
+
+    void addToSortedSet(String key, String member, double score) {
+        sortedSetAdds.computeIfAbsent(key, k -> new LinkedHashMap<>()).put(member, score);
+        Set<String> removes = sortedSetRemoves.get(key);
+        if (removes != null) {
+            removes.remove(member);
+        }
+    }
+
+    void removeFromSortedSet(String key, String member) {
+        sortedSetRemoves.computeIfAbsent(key, k -> new LinkedHashSet<>()).add(member);
+        Map<String, Double> adds = sortedSetAdds.get(key);
+        if (adds != null) {
+            adds.remove(member);
+        }
+    }
+
+    // the full encoding of o, which refreshes its snapshot once the batch is written
+    void recordEncoded(Object o, String objectKey, Map<String, String> fields) {
+        encodedKeys.put(o, objectKey);
+        encodedFields.put(o, fields);
+    }
+
+    void forEachEncoded(SnapshotRegistry snapshots) {
+        encodedKeys.forEach((o, key) -> snapshots.refresh(o, key, encodedFields.get(o)));
+    }
+
+    // keys of the objects this batch writes
+    Set<String> objectKeys() {
+        Set<String> keys = new LinkedHashSet<>(hashes.keySet());
+        keys.addAll(values.keySet());
+        keys.addAll(bucketedKeys);
+        return keys;
+    }
+
+    // this batch divided by where route sends each key, the parts share the collections of this one
+    <K> Map<K, WriteBatch> split(Function<String, K> route) {
+        Map<K, WriteBatch> parts = new LinkedHashMap<>();
+        Function<String, WriteBatch> part = key -> parts.computeIfAbsent(route.apply(key), k -> new WriteBatch());
+        unlinks.forEach(key -> part.apply(key).unlinks.add(key));
+        hashRemoves.forEach((key, fields) -> part.apply(key).hashRemoves.put(key, fields));
+        hashes.forEach((key, hash) -> part.apply(key).hashes.put(key, hash));
+        values.forEach((key, value) -> part.apply(key).values.put(key, value));
+        setAdds.forEach((key, members) -> part.apply(key).setAdds.put(key, members));
+        setRemoves.forEach((key, members) -> part.apply(key).setRemoves.put(key, members));
+        listRemoves.forEach((key, elements) -> part.apply(key).listRemoves.put(key, elements));
+        listAppends.forEach((key, elements) -> part.apply(key).listAppends.put(key, elements));
+        sortedSetAdds.forEach((key, members) -> part.apply(key).sortedSetAdds.put(key, members));
+        sortedSetRemoves.forEach((key, members) -> part.apply(key).sortedSetRemoves.put(key, members));
+        return parts;
+    }
+
+    public boolean isEmpty() {
+        return hashes.isEmpty() && values.isEmpty() && unlinks.isEmpty() && hashRemoves.isEmpty() && setAdds.isEmpty() &&
+            setRemoves.isEmpty() && listRemoves.isEmpty() && listAppends.isEmpty() && sortedSetAdds.isEmpty() &&
+            sortedSetRemoves.isEmpty();
+    }
+
+    public Set<String> unlinks() {
+        return Collections.unmodifiableSet(unlinks);
+    }
+
+    // fields dropped from hashes, before the hash writes of the same batch
+    public Map<String, Set<String>> hashRemoves() {
+        return Collections.unmodifiableMap(hashRemoves);
+    }
+
+    public Map<String, Map<String, String>> hashes() {
+        return Collections.unmodifiableMap(hashes);
+    }
+
+    public Map<String, byte[]> values() {
+        return Collections.unmodifiableMap(values);
+    }
+
+    public Map<String, Set<String>> setAdds() {
+        return Collections.unmodifiableMap(setAdds);
+    }
+
+    public Map<String, Set<String>> setRemoves() {
+        return Collections.unmodifiableMap(setRemoves);
+    }
+
+    // every occurrence of each element is removed
+    public Map<String, Set<String>> listRemoves() {
+        return Collections.unmodifiableMap(listRemoves);
+    }
+
+    public Map<String, List<String>> listAppends() {
+        return Collections.unmodifiableMap(listAppends);
+    }
+
+    public Map<String, Map<String, Double>> sortedSetAdds() {
+        return Collections.unmodifiableMap(sortedSetAdds);
+    }
+
+    public Map<String, Set<String>> sortedSetRemoves() {
+        return Collections.unmodifiableMap(sortedSetRemoves);
+    }
+}
@@ -0,0 +1,239 @@
+package com.ecs160.persistence;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+// bounded queue of pending persists, written by one background thread in pipelined batches.
+// repeated writes of the same object within the window collapse into one
+final class WriteBehindQueue {
+    private final RedisDB redisDB;
+    private final long windowNanos;
+    private final int capacity;
+    private final int batchSize;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+    private final Condition drained = lock.newCondition();
+    // insertion order is the order objects were first queued, so the head is the oldest
+    private final LinkedHashMap<PendingKey, Pending> pending = new LinkedHashMap<>();
+    private int inFlight;
+    private int flushRequests;
+    private boolean closed;
+    private final Thread worker;
+
+    WriteBehindQueue(RedisDB redisDB, Duration window, int capacity, int batchSize) {
+        this.redisDB = redisDB;
+        this.windowNanos = window.toNanos();
+        this.capacity = capacity;
+        this.batchSize = batchSize;
+        this.worker = new Thread(this::run, "redisdb-write-behind");
+        this.worker.setDaemon(true);
+        this.worker.start();
+    }
+
+    // blocks while the queue is full; objects of different classes never share a slot, even with equal ids
+    CompletableFuture<Boolean> submit(Class<?> type, String id, Object o) throws InterruptedException {
+        PendingKey key = new PendingKey(type, id);
+        lock.lock();
+        try {
+            Pending existing = pending.get(key);
+            if (existing == null) {
+                while (pending.size() >= capacity && !closed) {
+                    notFull.await();
+                }
+                // the slot may have been taken by the same key while waiting
+                existing = pending.get(key);
+            }
+            if (closed) {
+                throw new RuntimeException("Write-behind queue is closed");
+            }
+
+            CompletableFuture<Boolean> future = new CompletableFuture<>();
+            if (existing != null) {
+                existing.object = o;
+                existing.futures.add(future);
+            } else {
+                pending.put(key, new Pending(o, future));
+                changed.signalAll();
+            }
+            return future;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // returns once everything queued before the call is written
+    void flush() throws InterruptedException {
+        lock.lock();
+        try {
+            flushRequests++;
+            changed.signalAll();
+            while (!pending.isEmpty() || inFlight > 0) {
+                drained.await();
+            }
+        } finally {
+            flushRequests--;
+            lock.unlock();
+        }
+    }
+
+    int size() {
+        lock.lock();
+        try {
+            return pending.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // writes what is queued, then stops the background thread
+    void close() throws InterruptedException {
+        lock.lock();
+        try {
+            closed = true;
+            changed.signalAll();
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        worker.join();
+    }
+
+    private void run() {
+        try {
+            drain();
+        } catch (Throwable t) {
+            // the worker is gone, so nothing queued would ever be written and flush would wait forever
+            abandon(t);
+            throw t;
+        }
+    }
+
+    private void drain() {
+        while (true) {
+            List<Pending> batch;
+            lock.lock();
+            try {
+                while (pending.isEmpty() && !closed) {
+                    changed.awaitUninterruptibly();
+                }
+                if (pending.isEmpty()) {
+                    return;
+                }
+
+                // give the oldest write its window to collect repeats, unless someone needs it now
+                long deadline = pending.values().iterator().next().queuedAt + windowNanos;
+                long remaining;
+                while (flushRequests == 0 && !closed && pending.size() < capacity &&
+                    (remaining = deadline - System.nanoTime()) > 0) {
+                    try {
+                        changed.awaitNanos(remaining);
+                    } catch (InterruptedException e) {
+                        // only close stops the worker
+                    }
+                }
+
+                batch = new ArrayList<>(Math.min(batchSize, pending.size()));
+                Iterator<Map.Entry<PendingKey, Pending>> entries = pending.entrySet().iterator();
+                while (entries.hasNext() && batch.size() < batchSize) {
+                    batch.add(entries.next().getValue());
+                    entries.remove();
+                }
+                inFlight += batch.size();
+                notFull.signalAll();
+            } finally {
+                lock.unlock();
+            }
+
+            write(batch);
+
+            lock.lock();
+            try {
+                inFlight -= batch.size();
+                if (pending.isEmpty() && inFlight == 0) {
+                    drained.signalAll();
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private void write(List<Pending> batch) {
+        List<Object> objects = new ArrayList<>(batch.size());
+        for (Pending entry : batch) {
+            objects.add(entry.object);
+        }
+
+        try {
+            boolean persisted = redisDB.persistAll(objects);
+            for (Pending entry : batch) {
+                entry.futures.forEach(future -> future.complete(persisted));
+            }
+        } catch (Throwable t) {
+            // errors fail the batch too, the worker goes on with the next one
+            for (Pending entry : batch) {
+                entry.futures.forEach(future -> future.completeExceptionally(t));
+            }
+        }
+    }
+
+    private void abandon(Throwable t) {
+        lock.lock();
+        try {
+            closed = true;
+            for (Pending entry : pending.values()) {
+                entry.futures.forEach(future -> future.completeExceptionally(t));
+            }
+            pending.clear();
+            inFlight = 0;
+            notFull.signalAll();
+            drained.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static final class PendingKey {
+        private final Class<?> type;
+        private final String id;
+
+        PendingKey(Class<?> type, String id) {
+            this.type = type;
+            this.id = id;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof PendingKey)) {
+                return false;
+            }
+            PendingKey other = (PendingKey) o;
+            return type == other.type && id.equals(other.id);
+        }
+
+        @Override
+        public int hashCode() {
+            return type.hashCode() * 31 + id.hashCode();
+        }
+    }
+
+    private static final class Pending {
+        private final long queuedAt = System.nanoTime();
+        private final List<CompletableFuture<Boolean>> futures = new ArrayList<>(1);
+        private Object object;
+
+        Pending(Object object, CompletableFuture<Boolean> future) {
+            this.object = object;
+            this.futures.add(future);
+        }
+    }
+}
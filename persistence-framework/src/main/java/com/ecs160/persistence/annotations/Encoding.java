@@ -0,0 +1,15 @@
+package com.ecs160.persistence.annotations;
+
+// how the objects of a @PersistableObject class are laid out in redis
+public enum Encoding {
+    // one hash per object, one string field per persisted field
+    HASH,
+    // the whole object as one compact binary value, read back with a single GET
+    BINARY,
+    // many small objects packed into the fields of a few shared hashes, picked by id. redis keeps a
+    // hash in its compact listpack form while it has at most 128 fields of at most 64 bytes each,
+    // so buckets are sized from expectedObjects for about 100 objects, and an object packing to
+    // more than 64 bytes is stored with a warning, as its bucket turns into a regular hash. values
+    // are stored in declaration order, so new fields go last
+    BUCKETED
+}
@@ -0,0 +1,12 @@
+package com.ecs160.persistence.annotations;
+
+// where the elements of a List field are stored
+public enum ListStorage {
+    // joined with commas into the object's hash field
+    INLINE,
+    // a native redis list next to the object, keeping element order and duplicates
+    LIST,
+    // a redis sorted set next to the object with every score 0, without duplicates;
+    // members come back and page in byte order rather than insertion order
+    SET
+}
@@ -7,4 +7,25 @@ import java.lang.annotation.Target;
 
 @Target(ElementType.FIELD)
 @Retention(RetentionPolicy.RUNTIME)
-public @interface PersistableField {}
+public @interface PersistableField {
+    // name of the hash field holding the value, the java field name when empty
+    String name() default "";
+
+    // other hash field names read, in order, when the value is missing under name;
+    // for data written by other tools or under an earlier name. writes always use name
+    String[] aliases() default {};
+
+    // keep a sorted-set index of this field for range queries, Date and numeric fields only
+    boolean indexed() default false;
+
+    // List fields only, LIST and SET keep elements in their own key, appended and removed incrementally
+    ListStorage listStorage() default ListStorage.INLINE;
+
+    // String fields only, values of at least this many characters are stored compressed.
+    // -1 takes the setting of the class, 0 turns compression off for this field
+    int compressAbove() default -1;
+
+    // BINARY classes only, the number the value is stored under, -1 takes the field's position among the
+    // persistable fields. after removing or reordering fields, keep the others on their old numbers here
+    int binaryId() default -1;
+}
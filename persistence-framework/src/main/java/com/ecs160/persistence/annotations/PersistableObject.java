@@ -7,4 +7,18 @@ import java.lang.annotation.Target;
 
 @Target(ElementType.TYPE)
 @Retention(RetentionPolicy.RUNTIME)
-public @interface PersistableObject {}
\ No newline at end of file
+public @interface PersistableObject {
+    Encoding encoding() default Encoding.HASH;
+
+    // stored with BINARY values to tell the layouts apart. fields are stored under their
+    // PersistableField.binaryId, so values of an older version still load: numbers the class no
+    // longer has are skipped, and a number must not be reused for a field of another meaning
+    int schemaVersion() default 1;
+
+    // compression threshold in characters for the String fields of HASH encoded classes, 0 is off
+    int compressAbove() default 0;
+
+    // how many objects a BUCKETED class is expected to hold. it sets the bucket count, so that each
+    // bucket keeps about a hundred objects; changing it later strands the objects already stored
+    int expectedObjects() default 100_000;
+}
@@ -0,0 +1,294 @@
+package com.ecs160.persistence.processor;
+
+import com.ecs160.persistence.PersistenceCodec;
+import com.ecs160.persistence.annotations.Id;
+import com.ecs160.persistence.annotations.LazyLoad;
+import com.ecs160.persistence.annotations.PersistableField;
+import com.ecs160.persistence.annotations.PersistableObject;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.NestingKind;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.PrimitiveType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.tools.Diagnostic;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+// generates a PersistenceCodec for every @PersistableObject class, so RedisDB can create instances
+// and move field values with plain calls. non-private fields are used directly, private ones through
+// their getter and setter; a private field without both, or a lazy one without direct access
+// (its getter would trigger the load), is left out and stays on reflection
+@SupportedAnnotationTypes("com.ecs160.persistence.annotations.PersistableObject")
+public class PersistenceCodecProcessor extends AbstractProcessor {
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+        for (Element element : roundEnv.getElementsAnnotatedWith(PersistableObject.class)) {
+            if (element.getKind() != ElementKind.CLASS) {
+                continue;
+            }
+            TypeElement type = (TypeElement) element;
+            if (!isGeneratable(type)) {
+                processingEnv.getMessager().printMessage(Diagnostic.Kind.NOTE,
+                    "No codec for " + type.getQualifiedName() + ", it will be mapped by reflection", type);
+                continue;
+            }
+            try {
+                generate(type);
+            } catch (IOException e) {
+                processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR,
+                    "Cannot write codec for " + type.getQualifiedName() + ": " + e.getMessage(), type);
+            }
+        }
+        return false;
+    }
+
+    // the codec lives in the model's package, so it can reach anything but private members
+    private boolean isGeneratable(TypeElement type) {
+        if (type.getModifiers().contains(Modifier.ABSTRACT) || !type.getTypeParameters().isEmpty()) {
+            return false;
+        }
+        for (Element enclosing = type; enclosing instanceof TypeElement; enclosing = enclosing.getEnclosingElement()) {
+            if (enclosing.getModifiers().contains(Modifier.PRIVATE)) {
+                return false;
+            }
+            if (((TypeElement) enclosing).getNestingKind() == NestingKind.MEMBER &&
+                !enclosing.getModifiers().contains(Modifier.STATIC)) {
+                return false;
+            }
+        }
+        List<ExecutableElement> constructors = ElementFilter.constructorsIn(type.getEnclosedElements());
+        for (ExecutableElement constructor : constructors) {
+            if (constructor.getParameters().isEmpty() && !constructor.getModifiers().contains(Modifier.PRIVATE)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void generate(TypeElement type) throws IOException {
+        String packageName = processingEnv.getElementUtils().getPackageOf(type).getQualifiedName().toString();
+        String binaryName = processingEnv.getElementUtils().getBinaryName(type).toString();
+        // nested models get their outer class names in front, Outer$Model becomes Outer_Model
+        String simpleName = (packageName.isEmpty() ? binaryName : binaryName.substring(packageName.length() + 1))
+            .replace('$', '_') + PersistenceCodec.SUFFIX;
+        String modelName = type.getQualifiedName().toString();
+
+        Set<String> lazyFields = new HashSet<>();
+        for (ExecutableElement method : ElementFilter.methodsIn(type.getEnclosedElements())) {
+            LazyLoad lazyLoad = method.getAnnotation(LazyLoad.class);
+            if (lazyLoad != null) {
+                lazyFields.add(lazyLoad.field());
+            }
+        }
+
+        List<Access> fields = new ArrayList<>();
+        for (VariableElement field : ElementFilter.fieldsIn(type.getEnclosedElements())) {
+            if (field.getAnnotation(PersistableField.class) == null && field.getAnnotation(Id.class) == null) {
+                continue;
+            }
+            if (field.getModifiers().contains(Modifier.STATIC) || field.getModifiers().contains(Modifier.FINAL)) {
+                continue;
+            }
+            Access access = access(type, field, lazyFields.contains(field.getSimpleName().toString()));
+            if (access != null) {
+                fields.add(access);
+            }
+        }
+
+        StringBuilder source = new StringBuilder();
+        if (!packageName.isEmpty()) {
+            source.append("package ").append(packageName).append(";\n\n");
+        }
+        source.append("// generated by ").append(PersistenceCodecProcessor.class.getName()).append(", do not edit\n");
+        source.append("public final class ").append(simpleName).append(" implements ")
+            .append(PersistenceCodec.class.getName()).append("<").append(modelName).append("> {\n");
+
+        source.append("    private static final String[] FIELDS = {");
+        for (int i = 0; i < fields.size(); i++) {
+            source.append(i == 0 ? "" : ", ").append('"').append(fields.get(i).name).append('"');
+        }
+        source.append("};\n\n");
+
+        source.append("    @Override\n    public String[] fields() {\n        return FIELDS.clone();\n    }\n\n");
+        source.append("    @Override\n    public ").append(modelName).append(" newInstance() {\n")
+            .append("        return new ").append(modelName).append("();\n    }\n\n");
+
+        source.append("    @Override\n    public Object get(").append(modelName).append(" instance, int field) {\n")
+            .append("        switch (field) {\n");
+        for (int i = 0; i < fields.size(); i++) {
+            source.append("            case ").append(i).append(":\n")
+                .append("                return ").append(fields.get(i).read).append(";\n");
+        }
+        source.append("            default:\n                throw unknown(field);\n        }\n    }\n\n");
+
+        // casts to parameterized field types cannot be checked at runtime, the caller stores matching values
+        boolean unchecked = false;
+        for (Access field : fields) {
+            unchecked |= field.parameterized;
+        }
+        source.append("    @Override\n");
+        if (unchecked) {
+            source.append("    @SuppressWarnings(\"unchecked\")\n");
+        }
+        source.append("    public void set(").append(modelName).append(" instance, int field, Object value) {\n")
+            .append("        switch (field) {\n");
+        for (int i = 0; i < fields.size(); i++) {
+            Access field = fields.get(i);
+            source.append("            case ").append(i).append(":\n")
+                .append("                ").append(field.write("(" + field.boxedType + ") value")).append(";\n")
+                .append("                break;\n");
+        }
+        source.append("            default:\n                throw unknown(field);\n        }\n    }\n\n");
+
+        source.append("    @Override\n    public String getString(").append(modelName).append(" instance, int field) {\n")
+            .append("        switch (field) {\n");
+        for (int i = 0; i < fields.size(); i++) {
+            Access field = fields.get(i);
+            if (field.parse != null) {
+                source.append("            case ").append(i).append(":\n")
+                    .append("                return ").append(field.boxedType).append(".toString(")
+                    .append(field.read).append(");\n");
+            }
+        }
+        source.append("            default:\n                throw unknown(field);\n        }\n    }\n\n");
+
+        source.append("    @Override\n    public void setString(").append(modelName).append(" instance, int field, String value) {\n")
+            .append("        switch (field) {\n");
+        for (int i = 0; i < fields.size(); i++) {
+            Access field = fields.get(i);
+            if (field.parse != null) {
+                source.append("            case ").append(i).append(":\n")
+                    .append("                ").append(field.write(field.parse + "(value)")).append(";\n")
+                    .append("                break;\n");
+            }
+        }
+        source.append("            default:\n                throw unknown(field);\n        }\n    }\n\n");
+
+        source.append("    private static RuntimeException unknown(int field) {\n")
+            .append("        return new IllegalArgumentException(\"No field \" + field + \" in codec for ")
+            .append(modelName).append("\");\n    }\n}\n");
+
+        String codecName = packageName.isEmpty() ? simpleName : packageName + "." + simpleName;
+        try (Writer writer = processingEnv.getFiler().createSourceFile(codecName, type).openWriter()) {
+            writer.write(source.toString());
+        }
+    }
+
+    // how the generated code reads and writes one field, or null when it cannot without reflection
+    private Access access(TypeElement type, VariableElement field, boolean lazy) {
+        String name = field.getSimpleName().toString();
+        // getters and setters are matched on the erasure, values are cast to the declared type
+        TypeMirror fieldType = processingEnv.getTypeUtils().erasure(field.asType());
+        Access access = new Access(name, field.asType());
+
+        if (!field.getModifiers().contains(Modifier.PRIVATE)) {
+            access.read = "instance." + name;
+            access.writePrefix = "instance." + name + " = ";
+            access.writeSuffix = "";
+            return access;
+        }
+        if (lazy) {
+            return null;
+        }
+
+        String property = Character.toUpperCase(name.charAt(0)) + name.substring(1);
+        ExecutableElement getter = method(type, "get" + property, fieldType, 0);
+        if (getter == null && fieldType.getKind() == TypeKind.BOOLEAN) {
+            getter = method(type, "is" + property, fieldType, 0);
+        }
+        ExecutableElement setter = method(type, "set" + property, fieldType, 1);
+        if (getter == null || setter == null) {
+            return null;
+        }
+        access.read = "instance." + getter.getSimpleName() + "()";
+        access.writePrefix = "instance." + setter.getSimpleName() + "(";
+        access.writeSuffix = ")";
+        return access;
+    }
+
+    // a non-private, non-static, non-lazy method with the field's type as return value or single parameter
+    private ExecutableElement method(TypeElement type, String name, TypeMirror fieldType, int parameters) {
+        for (ExecutableElement method : ElementFilter.methodsIn(type.getEnclosedElements())) {
+            if (!method.getSimpleName().contentEquals(name) || method.getParameters().size() != parameters ||
+                method.getModifiers().contains(Modifier.PRIVATE) || method.getModifiers().contains(Modifier.STATIC) ||
+                method.getAnnotation(LazyLoad.class) != null) {
+                continue;
+            }
+            TypeMirror actual = parameters == 0
+                ? method.getReturnType()
+                : method.getParameters().get(0).asType();
+            if (processingEnv.getTypeUtils().isSameType(processingEnv.getTypeUtils().erasure(actual), fieldType)) {
+                return method;
+            }
+        }
+        return null;
+    }
+
+    private final class Access {
+        private final String name;
+        private final String boxedType;
+        // true when the declared type has type arguments, so a cast to it is unchecked
+        private final boolean parameterized;
+        // parse method for the primitives RedisDB writes as text without boxing
+        private final String parse;
+        private String read;
+        private String writePrefix;
+        private String writeSuffix;
+
+        Access(String name, TypeMirror type) {
+            this.name = name;
+            this.parameterized = !type.getKind().isPrimitive() &&
+                !processingEnv.getTypeUtils().isSameType(type, processingEnv.getTypeUtils().erasure(type));
+            switch (type.getKind()) {
+                case INT:
+                    boxedType = "Integer";
+                    parse = "Integer.parseInt";
+                    break;
+                case LONG:
+                    boxedType = "Long";
+                    parse = "Long.parseLong";
+                    break;
+                case DOUBLE:
+                    boxedType = "Double";
+                    parse = "Double.parseDouble";
+                    break;
+                case BOOLEAN:
+                    boxedType = "Boolean";
+                    parse = "Boolean.parseBoolean";
+                    break;
+                default:
+                    boxedType = type.getKind().isPrimitive()
+                        ? processingEnv.getTypeUtils().boxedClass((PrimitiveType) type)
+                            .getQualifiedName().toString()
+                        : type.toString();
+                    parse = null;
+                    break;
+            }
+        }
+
+        String write(String value) {
+            return writePrefix + value + writeSuffix;
+        }
+    }
+}
@@ -1,6 +1,9 @@
 package com.ecs160.persistence;
 
+import com.ecs160.persistence.annotations.Encoding;
 import com.ecs160.persistence.annotations.Id;
+import com.ecs160.persistence.annotations.LazyLoad;
+import com.ecs160.persistence.annotations.ListStorage;
 import com.ecs160.persistence.annotations.PersistableField;
 import com.ecs160.persistence.annotations.PersistableObject;
 import org.junit.Before;
@@ -194,6 +197,1148 @@ public class AppTest {
         assertEquals(0, loaded.getItems().size());
     }
 
+    @Test
+    public void testPersistAllObjects() {
+        List<TestSimpleObject> objects = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            TestSimpleObject obj = new TestSimpleObject();
+            obj.setId("batch-" + i);
+            obj.setName("Batch " + i);
+            obj.setValue(i);
+            objects.add(obj);
+        }
+
+        assertTrue("Should persist all objects", redisDB.persistAll(objects));
+
+        for (TestSimpleObject obj : objects) {
+            TestSimpleObject loaded = (TestSimpleObject) redisDB.load(obj);
+            assertNotNull("Loaded object should not be null", loaded);
+            assertEquals(obj.getName(), loaded.getName());
+            assertEquals(obj.getValue(), loaded.getValue());
+        }
+    }
+
+    @Test
+    public void testPersistNestedObjectInTransaction() {
+        redisDB.setTransactional(true);
+
+        TestNestedObject parent = new TestNestedObject();
+        parent.setId("parent-tx");
+        parent.setName("Parent");
+
+        TestSimpleObject child = new TestSimpleObject();
+        child.setId("child-tx");
+        child.setName("Child");
+        parent.setChild(child);
+
+        assertTrue("Should persist successfully", redisDB.persist(parent));
+
+        TestNestedObject loaded = (TestNestedObject) redisDB.load(parent);
+        assertNotNull("Loaded object should not be null", loaded);
+        assertNotNull("Child should not be null", loaded.getChild());
+        assertEquals("Child", loaded.getChild().getName());
+    }
+
+    @Test
+    public void testPersistPrimitiveFields() {
+        TestPrimitiveObject obj = new TestPrimitiveObject();
+        obj.setId("prim-1");
+        obj.setCount(1234567890123L);
+        obj.setScore(3.25);
+        obj.setActive(true);
+
+        assertTrue("Should persist successfully", redisDB.persist(obj));
+
+        TestPrimitiveObject loaded = (TestPrimitiveObject) redisDB.load(obj);
+        assertNotNull("Loaded object should not be null", loaded);
+        assertEquals(1234567890123L, loaded.getCount());
+        assertEquals(3.25, loaded.getScore(), 0.0);
+        assertTrue("Boolean should be loaded", loaded.isActive());
+    }
+
+    @Test
+    public void testLoadResolvesFieldNameVariants() {
+        // hash written by another tool with different field names
+        Jedis jedis = new Jedis("localhost", 6379);
+        jedis.select(TEST_DB);
+        jedis.hset("repo-variant", "id", "repo-variant");
+        jedis.hset("repo-variant", "Url", "https://github.com/test/repo");
+        jedis.hset("repo-variant", "Author Name", "octocat");
+        jedis.close();
+
+        TestRepoObject repo = new TestRepoObject();
+        repo.setId("repo-variant");
+
+        TestRepoObject loaded = (TestRepoObject) redisDB.load(repo);
+        assertNotNull("Loaded object should not be null", loaded);
+        assertEquals("https://github.com/test/repo", loaded.getUrl());
+        assertEquals("octocat", loaded.getAuthorName());
+    }
+
+    @Test
+    public void testLoadAllPreservesOrder() {
+        for (int i = 0; i < 3; i++) {
+            TestSimpleObject obj = new TestSimpleObject();
+            obj.setId("ordered-" + i);
+            obj.setName("Ordered " + i);
+            redisDB.persist(obj);
+        }
+
+        List<TestSimpleObject> loaded = redisDB.loadAll(TestSimpleObject.class,
+            java.util.Arrays.asList("ordered-2", "missing", "ordered-0", "ordered-1"));
+        assertEquals(3, loaded.size());
+        assertEquals("Ordered 2", loaded.get(0).getName());
+        assertEquals("Ordered 0", loaded.get(1).getName());
+        assertEquals("Ordered 1", loaded.get(2).getName());
+    }
+
+    @Test
+    public void testPersistObjectWithListOfObjects() {
+        TestObjectWithChildren parent = new TestObjectWithChildren();
+        parent.setId("parent-list");
+        List<TestSimpleObject> children = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            TestSimpleObject child = new TestSimpleObject();
+            child.setId("list-child-" + i);
+            child.setValue(i);
+            children.add(child);
+        }
+        parent.setChildren(children);
+
+        assertTrue("Should persist successfully", redisDB.persist(parent));
+
+        TestObjectWithChildren loaded = (TestObjectWithChildren) redisDB.load(parent);
+        assertNotNull("Loaded object should not be null", loaded);
+        assertEquals(3, loaded.getChildren().size());
+        for (int i = 0; i < 3; i++) {
+            assertEquals("list-child-" + i, loaded.getChildren().get(i).getId());
+            assertEquals(i, loaded.getChildren().get(i).getValue());
+        }
+    }
+
+    @Test
+    public void testLazyLoadedFields() throws Exception {
+        TestLazyObject obj = new TestLazyObject();
+        obj.setId("lazy-1");
+        obj.setName("Lazy");
+        obj.setItems(new ArrayList<>(java.util.Arrays.asList("a", "b")));
+        TestSimpleObject child = new TestSimpleObject();
+        child.setId("lazy-child");
+        child.setName("Lazy Child");
+        obj.setChild(child);
+        assertTrue("Should persist successfully", redisDB.persist(obj));
+
+        TestLazyObject loaded = (TestLazyObject) redisDB.load(obj);
+        assertNotNull("Loaded object should not be null", loaded);
+        assertEquals("Lazy", loaded.getName());
+
+        java.lang.reflect.Field items = TestLazyObject.class.getDeclaredField("items");
+        items.setAccessible(true);
+        assertNull("Lazy list should not be loaded yet", items.get(loaded));
+
+        // persisting before the lazy fields are read must not erase them
+        assertTrue("Should persist successfully", redisDB.persist(loaded));
+        loaded = (TestLazyObject) redisDB.load(obj);
+
+        assertEquals(2, loaded.getItems().size());
+        assertEquals("b", loaded.getItems().get(1));
+        assertNotNull("Lazy child should be loaded on access", loaded.getChild());
+        assertEquals("Lazy Child", loaded.getChild().getName());
+    }
+
+    @Test
+    public void testLazyPrimitiveAndInitializedFields() {
+        TestLazyInitializedObject obj = new TestLazyInitializedObject();
+        obj.setId("lazy-initialized");
+        obj.setStars(7);
+        obj.getTags().add("x");
+        assertTrue(redisDB.persist(obj));
+
+        // the default 0 and the initializer's empty list must not overwrite the stored values
+        TestLazyInitializedObject loaded = (TestLazyInitializedObject) redisDB.load(obj);
+        assertTrue(redisDB.persist(loaded));
+        loaded = (TestLazyInitializedObject) redisDB.load(obj);
+        assertEquals(7, loaded.getStars());
+        assertEquals(java.util.Arrays.asList("x"), loaded.getTags());
+
+        // a value assigned before the first read wins over the stored one
+        TestLazyInitializedObject assigned = (TestLazyInitializedObject) redisDB.load(obj);
+        assigned.setStars(9);
+        assigned.setTags(new ArrayList<>(java.util.Arrays.asList("y", "z")));
+        assertEquals(9, assigned.getStars());
+        assertTrue(redisDB.persist(assigned));
+        TestLazyInitializedObject reloaded = (TestLazyInitializedObject) redisDB.load(obj);
+        assertEquals(9, reloaded.getStars());
+        assertEquals(java.util.Arrays.asList("y", "z"), reloaded.getTags());
+    }
+
+    @Test
+    public void testPooledConcurrentPersistAndLoad() throws Exception {
+        RedisDB pooledDB = new RedisDB("localhost", 6379, TEST_DB, 4);
+        java.util.concurrent.ExecutorService executor = java.util.concurrent.Executors.newFixedThreadPool(8);
+        try {
+            List<java.util.concurrent.Future<Boolean>> results = new ArrayList<>();
+            for (int i = 0; i < 40; i++) {
+                final int n = i;
+                results.add(executor.submit(() -> {
+                    TestSimpleObject obj = new TestSimpleObject();
+                    obj.setId("pooled-" + n);
+                    obj.setValue(n);
+                    obj.setCreatedAt(new Date());
+                    pooledDB.persist(obj);
+                    TestSimpleObject loaded = (TestSimpleObject) pooledDB.load(obj);
+                    return loaded != null && loaded.getValue() == n && loaded.getCreatedAt() != null;
+                }));
+            }
+            for (java.util.concurrent.Future<Boolean> result : results) {
+                assertTrue("Concurrent round trip should succeed", result.get());
+            }
+        } finally {
+            executor.shutdown();
+            pooledDB.close();
+        }
+    }
+
+    @Test
+    public void testScanKeysAndDeleteMatching() {
+        List<TestSimpleObject> objects = new ArrayList<>();
+        for (int i = 0; i < 25; i++) {
+            TestSimpleObject obj = new TestSimpleObject();
+            obj.setId((i % 5 == 0 ? "scan-test-" : "scan-keep-") + i);
+            objects.add(obj);
+        }
+        redisDB.persistAll(objects);
+
+        assertEquals(25, redisDB.scanKeys("scan-*", 4).distinct().count());
+        assertEquals(5, redisDB.deleteMatching("scan-test-*"));
+        assertEquals(20, redisDB.listKeys("scan-*").size());
+    }
+
+    @Test
+    public void testFindRangeUsesIndexes() {
+        long day = 24L * 60 * 60 * 1000;
+        long start = System.currentTimeMillis() - 30 * day;
+        for (int i = 0; i < 10; i++) {
+            TestIndexedObject obj = new TestIndexedObject();
+            obj.setId("indexed-" + i);
+            obj.setDate(new Date(start + i * day));
+            obj.setStars(i * 10);
+            redisDB.persist(obj);
+        }
+
+        List<TestIndexedObject> byStars = redisDB.findRange(TestIndexedObject.class, "stars", 20, 50, 0);
+        assertEquals(4, byStars.size());
+        assertEquals("indexed-2", byStars.get(0).getId());
+        assertEquals("indexed-5", byStars.get(3).getId());
+
+        List<TestIndexedObject> byDate = redisDB.findRange(TestIndexedObject.class, "date",
+            new Date(start + 7 * day), null, 2);
+        assertEquals(2, byDate.size());
+        assertEquals("indexed-7", byDate.get(0).getId());
+        assertEquals("indexed-8", byDate.get(1).getId());
+
+        assertEquals(10, redisDB.scanIds(TestIndexedObject.class, 3).distinct().count());
+        assertTrue("Should delete object", redisDB.delete(byStars.get(0)));
+        assertEquals(3, redisDB.findRange(TestIndexedObject.class, "stars", 20, 50, 0).size());
+        assertEquals(9, redisDB.scanIds(TestIndexedObject.class, 3).distinct().count());
+    }
+
+    @Test
+    public void testLoadSharesInstancesAndBreaksCycles() {
+        TestCyclicObject first = new TestCyclicObject();
+        first.setId("cycle-a");
+        TestCyclicObject second = new TestCyclicObject();
+        second.setId("cycle-b");
+        first.setPartner(second);
+        second.setPartner(first);
+        assertTrue("Should persist cyclic graph", redisDB.persist(first));
+
+        TestCyclicObject loaded = (TestCyclicObject) redisDB.load(first);
+        assertNotNull("Loaded object should not be null", loaded);
+        assertEquals("cycle-b", loaded.getPartner().getId());
+        assertTrue("Cycle should resolve to the same instance", loaded.getPartner().getPartner() == loaded);
+
+        TestSimpleObject shared = new TestSimpleObject();
+        shared.setId("shared-child");
+        TestNestedObject parent1 = new TestNestedObject();
+        parent1.setId("shared-parent-1");
+        parent1.setChild(shared);
+        TestNestedObject parent2 = new TestNestedObject();
+        parent2.setId("shared-parent-2");
+        parent2.setChild(shared);
+        redisDB.persistAll(java.util.Arrays.asList(parent1, parent2));
+
+        List<TestNestedObject> parents = redisDB.loadAll(TestNestedObject.class,
+            java.util.Arrays.asList("shared-parent-1", "shared-parent-2"));
+        assertEquals(2, parents.size());
+        assertTrue("Shared child should be loaded once", parents.get(0).getChild() == parents.get(1).getChild());
+    }
+
+    @Test
+    public void testNearCacheHitsAndInvalidation() {
+        NearCache cache = redisDB.enableNearCache(100, java.time.Duration.ofMinutes(5));
+
+        TestSimpleObject obj = new TestSimpleObject();
+        obj.setId("cached-1");
+        obj.setName("Before");
+        redisDB.persist(obj);
+
+        assertEquals("Before", ((TestSimpleObject) redisDB.load(obj)).getName());
+        assertEquals("Before", ((TestSimpleObject) redisDB.load(obj)).getName());
+        assertEquals(1, cache.missCount());
+        assertEquals(1, cache.hitCount());
+
+        // another class reading the same id has its own entry
+        TestPrimitiveObject other = new TestPrimitiveObject();
+        other.setId("cached-1");
+        redisDB.load(other);
+        assertEquals(2, cache.missCount());
+        assertEquals(2, cache.size());
+
+        // a write through the same instance drops the cached copy of every class
+        obj.setName("After");
+        redisDB.persist(obj);
+        assertEquals(0, cache.size());
+        assertEquals("After", ((TestSimpleObject) redisDB.load(obj)).getName());
+        assertEquals(3, cache.missCount());
+
+        // classes with a zero ttl are never cached
+        cache.setTtl(TestSimpleObject.class, java.time.Duration.ZERO);
+        redisDB.deleteKey("cached-1");
+        redisDB.persist(obj);
+        redisDB.load(obj);
+        redisDB.load(obj);
+        assertEquals(5, cache.missCount());
+    }
+
+    @Test
+    public void testPersistWritesOnlyChangedFields() {
+        TestSimpleObject obj = new TestSimpleObject();
+        obj.setId("dirty-1");
+        obj.setName("Original");
+        obj.setValue(1);
+        redisDB.persist(obj);
+
+        TestSimpleObject loaded = (TestSimpleObject) redisDB.load(obj);
+        Jedis jedis = new Jedis("localhost", 6379);
+        jedis.select(TEST_DB);
+        try {
+            // a concurrent writer changes a field the loaded copy leaves untouched
+            jedis.hset("dirty-1", "name", "Changed elsewhere");
+
+            loaded.setValue(2);
+            assertTrue(redisDB.persist(loaded));
+            assertEquals("2", jedis.hget("dirty-1", "value"));
+            assertEquals("Changed elsewhere", jedis.hget("dirty-1", "name"));
+
+            // nothing changed since the last persist, so nothing is written
+            jedis.hset("dirty-1", "value", "3");
+            assertTrue(redisDB.persist(loaded));
+            assertEquals("3", jedis.hget("dirty-1", "value"));
+
+            // without tracking every field is written again
+            redisDB.setDirtyTracking(false);
+            assertTrue(redisDB.persist(loaded));
+            assertEquals("2", jedis.hget("dirty-1", "value"));
+            assertEquals("Original", jedis.hget("dirty-1", "name"));
+        } finally {
+            jedis.close();
+        }
+    }
+
+    @Test
+    public void testPersistedObjectsAreWrittenAgainAfterOutsideDeletes() {
+        TestSimpleObject obj = new TestSimpleObject();
+        obj.setId("dirty-outside");
+        obj.setName("Persisted");
+        assertTrue(redisDB.persist(obj));
+
+        Jedis jedis = new Jedis("localhost", 6379);
+        jedis.select(TEST_DB);
+        try {
+            // deleted behind this RedisDB's back, persisting the unchanged object must store it again
+            jedis.del("dirty-outside");
+            assertTrue(redisDB.persist(obj));
+            assertEquals("Persisted", jedis.hget("dirty-outside", "name"));
+        } finally {
+            jedis.close();
+        }
+    }
+
+    @Test
+    public void testDeletingKeysForgetsOnlyTheirSnapshots() {
+        TestSimpleObject deleted = new TestSimpleObject();
+        deleted.setId("dirty-deleted");
+        deleted.setName("Deleted");
+        TestSimpleObject kept = new TestSimpleObject();
+        kept.setId("dirty-kept");
+        kept.setName("Kept");
+        redisDB.persist(deleted);
+        redisDB.persist(kept);
+        // only loaded objects carry snapshots
+        deleted = (TestSimpleObject) redisDB.load(deleted);
+        kept = (TestSimpleObject) redisDB.load(kept);
+
+        Jedis jedis = new Jedis("localhost", 6379);
+        jedis.select(TEST_DB);
+        try {
+            // the deleted object is written in full again
+            assertTrue(redisDB.deleteKey("dirty-deleted"));
+            assertTrue(redisDB.persist(deleted));
+            assertEquals("Deleted", jedis.hget("dirty-deleted", "name"));
+
+            // the other object still remembers what it loaded, so an unchanged persist writes nothing
+            jedis.hset("dirty-kept", "name", "Changed elsewhere");
+            assertTrue(redisDB.persist(kept));
+            assertEquals("Changed elsewhere", jedis.hget("dirty-kept", "name"));
+
+            // dropping the membership set forgets every object of the class
+            redisDB.deleteMatching("_members:*");
+            assertTrue(redisDB.persist(kept));
+            assertEquals("Kept", jedis.hget("dirty-kept", "name"));
+            assertTrue(jedis.sismember("_members:" + TestSimpleObject.class.getName(), "dirty-kept"));
+        } finally {
+            jedis.close();
+        }
+    }
+
+    @Test
+    public void testBinaryEncodingRoundTrip() {
+        TestSimpleObject author = new TestSimpleObject();
+        author.setId("bin-author");
+        author.setName("Author");
+
+        TestBinaryObject obj = new TestBinaryObject();
+        obj.setId("bin-1");
+        obj.setTitle("Binary \u2713");
+        obj.setCount(-300);
+        obj.setSize(1L << 40);
+        obj.setCreatedAt(new Date(1700000000123L));
+        List<String> tags = new ArrayList<>();
+        tags.add("a");
+        tags.add("b,c");
+        obj.setTags(tags);
+        obj.setAuthor(author);
+        assertTrue(redisDB.persist(obj));
+
+        // the object is one string value holding format byte and schema version, fields go by binaryId
+        Jedis jedis = new Jedis("localhost", 6379);
+        jedis.select(TEST_DB);
+        byte[] stored = jedis.get("bin-1".getBytes());
+        assertNotNull(stored);
+        assertEquals(BinaryCodec.FORMAT, stored[0]);
+        assertEquals(2, stored[1]);
+        assertFalse(new String(stored, java.nio.charset.StandardCharsets.UTF_8).contains("createdAt"));
+
+        // the schema version only records the writer, fields still line up by binaryId
+        byte[] otherVersion = stored.clone();
+        otherVersion[1] = 1;
+        jedis.set("bin-other".getBytes(), otherVersion);
+        jedis.close();
+        TestBinaryObject other = new TestBinaryObject();
+        other.setId("bin-other");
+        assertEquals("Binary \u2713", ((TestBinaryObject) redisDB.load(other)).getTitle());
+
+        TestBinaryObject query = new TestBinaryObject();
+        query.setId("bin-1");
+        TestBinaryObject loaded = (TestBinaryObject) redisDB.load(query);
+        assertNotNull(loaded);
+        assertEquals("Binary \u2713", loaded.getTitle());
+        assertEquals(-300, loaded.getCount());
+        assertEquals(1L << 40, loaded.getSize().longValue());
+        assertEquals(1700000000123L, loaded.getCreatedAt().getTime());
+        assertEquals(tags, loaded.getTags());
+        assertEquals("Author", loaded.getAuthor().getName());
+        assertEquals(1, redisDB.loadAll(TestBinaryObject.class, java.util.Arrays.asList("bin-1", "missing")).size());
+    }
+
+    @Test
+    public void testBinaryValuesOfOlderSchemaVersionLoad() {
+        TestBinaryV1 written = new TestBinaryV1();
+        written.setId("bin-evolve");
+        written.setTitle("First layout");
+        written.setObsolete("dropped later");
+        written.setCount(7);
+        assertTrue(redisDB.persist(written));
+
+        // version 2 dropped obsolete and moved count ahead of title, keeping their binaryIds
+        TestBinaryV2 query = new TestBinaryV2();
+        query.setId("bin-evolve");
+        TestBinaryV2 loaded = (TestBinaryV2) redisDB.load(query);
+        assertNotNull(loaded);
+        assertEquals("First layout", loaded.getTitle());
+        assertEquals(7, loaded.getCount());
+        assertNull(loaded.getRating());
+
+        loaded.setRating(4.5);
+        assertTrue(redisDB.persist(loaded));
+        TestBinaryV2 reloaded = (TestBinaryV2) redisDB.load(query);
+        assertEquals(7, reloaded.getCount());
+        assertEquals(4.5, reloaded.getRating(), 0.0);
+    }
+
+    @Test
+    public void testNativeListStorageAndPaging() {
+        TestNativeListObject obj = new TestNativeListObject();
+        obj.setId("native-1");
+        List<String> tags = new ArrayList<>();
+        tags.add("a,b");
+        tags.add("c");
+        obj.setTags(tags);
+        List<String> labels = new ArrayList<>();
+        labels.add("x");
+        labels.add("y");
+        obj.setLabels(labels);
+        List<TestSimpleObject> children = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            TestSimpleObject child = new TestSimpleObject();
+            child.setId("native-child-" + i);
+            child.setValue(i);
+            children.add(child);
+        }
+        obj.setChildren(children);
+        assertTrue(redisDB.persist(obj));
+
+        Jedis jedis = new Jedis("localhost", 6379);
+        jedis.select(TEST_DB);
+        try {
+            assertEquals(tags, jedis.lrange("_list:native-1:tags", 0, -1));
+            assertEquals(java.util.Arrays.asList("x", "y"), jedis.zrange("_list:native-1:labels", 0, -1));
+
+            // on a loaded copy appending pushes only the new element, other edits touch only what changed
+            TestNativeListObject edited = (TestNativeListObject) redisDB.load(obj);
+            jedis.rpush("_list:native-1:tags", "external");
+            edited.getTags().add("d");
+            edited.getLabels().remove("x");
+            edited.getLabels().add("z");
+            assertTrue(redisDB.persist(edited));
+            assertEquals(4, jedis.llen("_list:native-1:tags"));
+            assertEquals(java.util.Arrays.asList("y", "z"), jedis.zrange("_list:native-1:labels", 0, -1));
+        } finally {
+            jedis.close();
+        }
+
+        TestNativeListObject query = new TestNativeListObject();
+        query.setId("native-1");
+        TestNativeListObject loaded = (TestNativeListObject) redisDB.load(query);
+        assertEquals("a,b", loaded.getTags().get(0));
+        assertEquals(5, loaded.getChildren().size());
+
+        List<Object> page = redisDB.loadListPage(query, "children", 1, 2);
+        assertEquals(2, page.size());
+        assertEquals(1, ((TestSimpleObject) page.get(0)).getValue());
+        assertEquals(2, ((TestSimpleObject) page.get(1)).getValue());
+        // set members page in byte order, whatever order they were added in
+        assertEquals(java.util.Collections.singletonList("z"), redisDB.loadListPage(query, "labels", 1, 5));
+        assertTrue(redisDB.loadListPage(query, "children", 10, 5).isEmpty());
+    }
+
+    @Test
+    public void testWriteBehindCoalescesUntilFlush() throws Exception {
+        // a long window leaves writing to the explicit flush
+        redisDB.enableWriteBehind(java.time.Duration.ofMinutes(1), 100, 10);
+
+        TestSimpleObject obj = new TestSimpleObject();
+        obj.setId("behind-1");
+        List<java.util.concurrent.CompletableFuture<Boolean>> futures = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            obj.setName("Version " + i);
+            futures.add(redisDB.persistAsync(obj));
+        }
+        assertFalse(futures.get(0).isDone());
+        assertNull(redisDB.load(obj));
+
+        redisDB.flush();
+        for (java.util.concurrent.CompletableFuture<Boolean> future : futures) {
+            assertTrue(future.isDone());
+            assertTrue(future.get());
+        }
+
+        TestSimpleObject query = new TestSimpleObject();
+        query.setId("behind-1");
+        TestSimpleObject loaded = (TestSimpleObject) redisDB.loadAsync(query).get();
+        assertEquals("Version 2", loaded.getName());
+        redisDB.close();
+    }
+
+    @Test
+    public void testWriteBehindSurvivesErrors() throws Exception {
+        InMemoryBackend memory = new InMemoryBackend();
+        java.util.concurrent.atomic.AtomicBoolean failNext = new java.util.concurrent.atomic.AtomicBoolean(true);
+        StorageBackend failing = new StorageBackend() {
+            @Override
+            public void read(ReadBatch batch) {
+                memory.read(batch);
+            }
+
+            @Override
+            public long write(WriteBatch batch, boolean atomic) {
+                if (failNext.getAndSet(false)) {
+                    throw new AssertionError("write failed");
+                }
+                return memory.write(batch, atomic);
+            }
+
+            @Override
+            public ScanPage scan(String cursor, String pattern, int count) {
+                return memory.scan(cursor, pattern, count);
+            }
+
+            @Override
+            public ScanPage scanSet(String key, String cursor, int count) {
+                return memory.scanSet(key, cursor, count);
+            }
+
+            @Override
+            public long delete(java.util.Collection<String> keys) {
+                return memory.delete(keys);
+            }
+
+            @Override
+            public int parallelism() {
+                return 1;
+            }
+
+            @Override
+            public void close() {
+                memory.close();
+            }
+        };
+        RedisDB behindDB = new RedisDB(failing);
+        behindDB.enableWriteBehind(java.time.Duration.ofMinutes(1), 100, 1);
+
+        // the same id in two classes takes two slots, so each is its own batch of one
+        TestSimpleObject obj = new TestSimpleObject();
+        obj.setId("behind-error");
+        obj.setName("First");
+        TestPrimitiveObject other = new TestPrimitiveObject();
+        other.setId("behind-error");
+        java.util.concurrent.CompletableFuture<Boolean> first = behindDB.persistAsync(obj);
+        java.util.concurrent.CompletableFuture<Boolean> second = behindDB.persistAsync(other);
+
+        // an error fails its batch without stopping the worker
+        behindDB.flush();
+        assertTrue(first.isCompletedExceptionally());
+        assertTrue(second.get());
+
+        obj.setName("Second");
+        java.util.concurrent.CompletableFuture<Boolean> retry = behindDB.persistAsync(obj);
+        behindDB.flush();
+        assertTrue(retry.get());
+        TestSimpleObject query = new TestSimpleObject();
+        query.setId("behind-error");
+        assertEquals("Second", ((TestSimpleObject) behindDB.load(query)).getName());
+        behindDB.close();
+    }
+
+    @Test
+    public void testInMemoryBackend() {
+        RedisDB memoryDB = new RedisDB(new InMemoryBackend());
+
+        TestObjectWithChildren parent = new TestObjectWithChildren();
+        parent.setId("memory-parent");
+        List<TestSimpleObject> children = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            TestSimpleObject child = new TestSimpleObject();
+            child.setId("memory-child-" + i);
+            child.setValue(i);
+            children.add(child);
+        }
+        parent.setChildren(children);
+        assertTrue(memoryDB.persist(parent));
+
+        TestObjectWithChildren query = new TestObjectWithChildren();
+        query.setId("memory-parent");
+        TestObjectWithChildren loaded = (TestObjectWithChildren) memoryDB.load(query);
+        assertEquals(3, loaded.getChildren().size());
+        assertEquals(2, loaded.getChildren().get(2).getValue());
+
+        for (int stars = 1; stars <= 5; stars++) {
+            TestIndexedObject indexed = new TestIndexedObject();
+            indexed.setId("memory-indexed-" + stars);
+            indexed.setStars(stars);
+            memoryDB.persist(indexed);
+        }
+        List<TestIndexedObject> range = memoryDB.findRange(TestIndexedObject.class, "stars", 2, 4, 0);
+        assertEquals(3, range.size());
+        assertEquals(2, range.get(0).getStars());
+
+        assertEquals(3, memoryDB.listKeys("memory-child-*").size());
+        assertEquals(5, memoryDB.scanIds(TestIndexedObject.class, 10).count());
+        assertTrue(memoryDB.delete(range.get(0)));
+        assertEquals(2, memoryDB.findRange(TestIndexedObject.class, "stars", 2, 4, 0).size());
+        assertEquals(3, memoryDB.deleteMatching("memory-child-?"));
+        assertTrue(memoryDB.listKeys("memory-child-*").isEmpty());
+
+        // nothing reached the redis server
+        assertTrue(redisDB.listKeys("memory-*").isEmpty());
+        memoryDB.close();
+    }
+
+    @Test
+    public void testSegmentBackendSurvivesReopenAndCompaction() throws Exception {
+        java.nio.file.Path directory = java.nio.file.Files.createTempDirectory("segments");
+        SegmentBackend backend = new SegmentBackend(directory, 4096, java.time.Duration.ZERO);
+        RedisDB segmentDB = new RedisDB(backend);
+
+        TestSimpleObject obj = new TestSimpleObject();
+        obj.setId("segment-1");
+        // rewrites fill several small segments with dead records
+        for (int i = 0; i < 200; i++) {
+            obj.setName("Version " + i);
+            obj.setValue(i);
+            assertTrue(segmentDB.persist(obj));
+        }
+        TestSimpleObject other = new TestSimpleObject();
+        other.setId("segment-2");
+        other.setName("Other");
+        segmentDB.persist(other);
+
+        long segmentsBefore = java.nio.file.Files.list(directory).filter(p -> p.toString().endsWith(".dat")).count();
+        backend.compact();
+        long segmentsAfter = java.nio.file.Files.list(directory).filter(p -> p.toString().endsWith(".dat")).count();
+        assertTrue(segmentsAfter < segmentsBefore);
+        segmentDB.close();
+
+        // reopened by replaying the segments
+        RedisDB reopened = new RedisDB(new SegmentBackend(directory, 4096, java.time.Duration.ZERO));
+        TestSimpleObject query = new TestSimpleObject();
+        query.setId("segment-1");
+        assertEquals("Version 199", ((TestSimpleObject) reopened.load(query)).getName());
+        assertTrue(reopened.delete(other));
+        reopened.close();
+
+        // the deletion stays in force while compaction drops the segments around it
+        SegmentBackend churned = new SegmentBackend(directory, 4096, java.time.Duration.ZERO);
+        RedisDB churnedDB = new RedisDB(churned);
+        for (int i = 200; i < 400; i++) {
+            obj.setName("Version " + i);
+            obj.setValue(i);
+            assertTrue(churnedDB.persist(obj));
+        }
+        churned.compact();
+        churnedDB.close();
+
+        RedisDB rebuilt = new RedisDB(new SegmentBackend(directory, 4096, java.time.Duration.ZERO));
+        assertEquals(399, ((TestSimpleObject) rebuilt.load(query)).getValue());
+        assertNull(rebuilt.load(other));
+        assertEquals(1, rebuilt.scanIds(TestSimpleObject.class, 10).count());
+        rebuilt.close();
+    }
+
+    @Test
+    public void testSegmentBackendReopensFromCheckpoint() throws Exception {
+        java.nio.file.Path directory = java.nio.file.Files.createTempDirectory("segments");
+        RedisDB segmentDB = new RedisDB(new SegmentBackend(directory, 4096, java.time.Duration.ZERO));
+        TestSimpleObject obj = new TestSimpleObject();
+        obj.setId("checkpointed");
+        obj.setName("Before close");
+        assertTrue(segmentDB.persist(obj));
+        for (int i = 0; i < 3; i++) {
+            TestIndexedObject ranked = new TestIndexedObject();
+            ranked.setId("ranked-" + i);
+            ranked.setStars(10 * i);
+            assertTrue(segmentDB.persist(ranked));
+        }
+        segmentDB.close();
+        java.nio.file.Path checkpoint = directory.resolve("index.checkpoint");
+        assertTrue(java.nio.file.Files.exists(checkpoint));
+
+        // written after the checkpoint and never closed, so only replay finds it
+        RedisDB unclosed = new RedisDB(new SegmentBackend(directory, 4096, java.time.Duration.ZERO));
+        TestSimpleObject later = new TestSimpleObject();
+        later.setId("after-checkpoint");
+        later.setName("After close");
+        assertTrue(unclosed.persist(later));
+        obj.setName("Changed after close");
+        assertTrue(unclosed.persist(obj));
+
+        RedisDB reopened = new RedisDB(new SegmentBackend(directory, 4096, java.time.Duration.ZERO));
+        assertEquals("Changed after close", ((TestSimpleObject) reopened.load(obj)).getName());
+        assertEquals("After close", ((TestSimpleObject) reopened.load(later)).getName());
+        // index scores come back from the segments
+        assertEquals(2, reopened.findRange(TestIndexedObject.class, "stars", 5, 50, 0).size());
+        reopened.close();
+
+        // a damaged checkpoint falls back to replaying every segment
+        java.nio.file.Files.write(checkpoint, new byte[] { 1, 2, 3 });
+        RedisDB replayed = new RedisDB(new SegmentBackend(directory, 4096, java.time.Duration.ZERO));
+        assertEquals("Changed after close", ((TestSimpleObject) replayed.load(obj)).getName());
+        assertEquals(2, replayed.scanIds(TestSimpleObject.class, 10).count());
+        replayed.close();
+    }
+
+    @Test
+    public void testSegmentBackendAppendsOnlyChanges() throws Exception {
+        java.nio.file.Path directory = java.nio.file.Files.createTempDirectory("segments");
+        RedisDB segmentDB = new RedisDB(new SegmentBackend(directory, 4096, java.time.Duration.ZERO));
+
+        // each persist adds one member to the class's member set, which must not be written out whole
+        for (int i = 0; i < 500; i++) {
+            TestSimpleObject obj = new TestSimpleObject();
+            obj.setId("append-" + i);
+            obj.setName("Name " + i);
+            assertTrue(segmentDB.persist(obj));
+        }
+        long bytes = java.nio.file.Files.list(directory).filter(p -> p.toString().endsWith(".dat"))
+            .mapToLong(p -> p.toFile().length()).sum();
+        assertTrue(bytes < 500 * 1024);
+        assertEquals(500, segmentDB.scanIds(TestSimpleObject.class, 100).count());
+        segmentDB.close();
+    }
+
+    @Test
+    public void testGeneratedCodecs() {
+        assertTrue(ClassDescriptor.of(TestSimpleObject.class).hasCodec());
+        assertTrue(ClassDescriptor.of(TestCodecFallbackObject.class).hasCodec());
+
+        // secret has no setter, so the codec leaves it to reflection
+        TestCodecFallbackObject obj = new TestCodecFallbackObject("codec-1", "hidden");
+        obj.setCount(7);
+        assertTrue(redisDB.persist(obj));
+
+        TestCodecFallbackObject query = new TestCodecFallbackObject();
+        query.setId("codec-1");
+        TestCodecFallbackObject loaded = (TestCodecFallbackObject) redisDB.load(query);
+        assertEquals("hidden", loaded.getSecret());
+        assertEquals(7, loaded.getCount());
+    }
+
+    @Test
+    public void testLargeStringsAreStoredCompressed() {
+        StringBuilder body = new StringBuilder();
+        for (int i = 0; i < 200; i++) {
+            body.append("Stack trace line ").append(i % 10).append('\n');
+        }
+        TestCompressedObject obj = new TestCompressedObject();
+        obj.setId("compressed-1");
+        obj.setBody(body.toString());
+        obj.setUncompressed(body.toString());
+        obj.setTitle("\u0001looks like a header");
+        assertTrue(redisDB.persist(obj));
+
+        try (Jedis jedis = new Jedis("localhost", 6379)) {
+            jedis.select(TEST_DB);
+            String stored = jedis.hget("compressed-1", "body");
+            assertTrue(stored.startsWith("\u0001z"));
+            assertTrue(stored.length() < body.length() / 4);
+            assertEquals(body.toString(), jedis.hget("compressed-1", "uncompressed"));
+        }
+
+        TestCompressedObject query = new TestCompressedObject();
+        query.setId("compressed-1");
+        TestCompressedObject loaded = (TestCompressedObject) redisDB.load(query);
+        assertEquals(body.toString(), loaded.getBody());
+        assertEquals(body.toString(), loaded.getUncompressed());
+        assertEquals("\u0001looks like a header", loaded.getTitle());
+    }
+
+    @Test
+    public void testShardedBackendSpreadsKeysAcrossNodes() {
+        java.util.Map<String, InMemoryBackend> nodes = new java.util.LinkedHashMap<>();
+        for (int i = 0; i < 3; i++) {
+            nodes.put("node-" + i, new InMemoryBackend());
+        }
+        ShardedBackend sharded = new ShardedBackend(nodes);
+        RedisDB shardedDB = new RedisDB(sharded);
+
+        List<String> ids = new ArrayList<>();
+        List<TestSimpleObject> objects = new ArrayList<>();
+        for (int i = 0; i < 60; i++) {
+            TestSimpleObject obj = new TestSimpleObject();
+            obj.setId("shard-" + i);
+            obj.setName("Object " + i);
+            obj.setValue(i);
+            objects.add(obj);
+            ids.add(obj.getId());
+        }
+        assertTrue(shardedDB.persistAll(objects));
+
+        // every node holds part of the objects, and each key only on the node it routes to
+        int perNodeTotal = 0;
+        for (InMemoryBackend node : nodes.values()) {
+            java.util.Set<String> keys = new java.util.HashSet<>();
+            String cursor = StorageBackend.ScanPage.START;
+            do {
+                StorageBackend.ScanPage page = node.scan(cursor, "shard-*", 100);
+                keys.addAll(page.items());
+                cursor = page.cursor();
+            } while (!StorageBackend.ScanPage.START.equals(cursor));
+            assertFalse(keys.isEmpty());
+            perNodeTotal += keys.size();
+        }
+        assertEquals(60, perNodeTotal);
+
+        // batched loads come back whole, in order, across nodes
+        List<TestSimpleObject> loaded = shardedDB.loadAll(TestSimpleObject.class, ids);
+        assertEquals(60, loaded.size());
+        assertEquals("Object 42", loaded.get(42).getName());
+        assertEquals(60, shardedDB.listKeys("shard-*").size());
+        assertEquals(60, shardedDB.deleteMatching("shard-*"));
+        assertNull(shardedDB.load(objects.get(0)));
+        shardedDB.close();
+    }
+
+    @Test
+    public void testNamespacesSeparateDataOnOneServer() {
+        RedisDB repos = new RedisDB(new RedisBackend("localhost", 6379, "repos", 2));
+        RedisDB issues = new RedisDB(new RedisBackend("localhost", 6379, "issues", 2));
+        // namespaces live in database 0, so only the test's own keys are removed afterwards
+        try (Jedis jedis = new Jedis("localhost", 6379)) {
+            TestSimpleObject repo = new TestSimpleObject();
+            repo.setId("same-id");
+            repo.setName("Repo");
+            repos.persist(repo);
+            TestSimpleObject issue = new TestSimpleObject();
+            issue.setId("same-id");
+            issue.setName("Issue");
+            issues.persist(issue);
+
+            assertEquals("Repo", jedis.hget("repos:same-id", "name"));
+            assertEquals("Issue", jedis.hget("issues:same-id", "name"));
+            TestSimpleObject query = new TestSimpleObject();
+            query.setId("same-id");
+            assertEquals("Repo", ((TestSimpleObject) repos.load(query)).getName());
+            assertEquals(1, issues.listKeys("same-*").size());
+            assertTrue(issues.listKeys("same-*").contains("same-id"));
+        } finally {
+            repos.deleteMatching("*");
+            issues.deleteMatching("*");
+            repos.close();
+            issues.close();
+        }
+    }
+
+    @Test
+    public void testMetricsCountCallsRoundTripsAndBytes() throws Exception {
+        PersistenceStats stats = redisDB.enableMetrics("app-test");
+        javax.management.ObjectName name =
+            new javax.management.ObjectName("com.ecs160.persistence:type=PersistenceStats,name=\"app-test\"");
+        assertTrue(java.lang.management.ManagementFactory.getPlatformMBeanServer().isRegistered(name));
+
+        TestObjectWithChildren parent = new TestObjectWithChildren();
+        parent.setId("metrics-parent");
+        List<TestSimpleObject> children = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            TestSimpleObject child = new TestSimpleObject();
+            child.setId("metrics-child-" + i);
+            child.setName("Child " + i);
+            children.add(child);
+        }
+        parent.setChildren(children);
+        redisDB.persist(parent);
+        redisDB.load(parent);
+
+        assertEquals(1, stats.calls(PersistenceMetrics.Operation.PERSIST));
+        assertEquals(1, stats.roundTrips(PersistenceMetrics.Operation.PERSIST));
+        // the parent, then all children together, not one round trip per child
+        assertEquals(1, stats.calls(PersistenceMetrics.Operation.LOAD));
+        assertEquals(2, stats.roundTrips(PersistenceMetrics.Operation.LOAD));
+        assertEquals(1, stats.calls(PersistenceMetrics.Operation.NESTED_LOAD));
+        assertEquals(1, stats.latency(PersistenceMetrics.Operation.LOAD).count());
+        assertTrue(stats.bytesWritten(TestSimpleObject.class) > 0);
+        assertTrue(stats.bytesRead(TestSimpleObject.class) > 0);
+        assertEquals(Long.valueOf(1), stats.getCalls().get("LOAD"));
+
+        redisDB.close();
+        assertFalse(java.lang.management.ManagementFactory.getPlatformMBeanServer().isRegistered(name));
+    }
+
+    @Test
+    public void testLatencyHistogramPercentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (long value = 1; value <= 100000; value++) {
+            histogram.record(value * 1000);
+        }
+        assertEquals(100000, histogram.count());
+        assertEquals(100000000, histogram.max());
+        // every bucket is within 1/64 of the values it holds
+        assertEquals(50000000, histogram.percentile(50), 50000000 / 64.0);
+        assertEquals(99000000, histogram.percentile(99), 99000000 / 64.0);
+        assertEquals(100000000, histogram.percentile(100));
+        histogram.reset();
+        assertEquals(0, histogram.percentile(99));
+    }
+
+    @Test
+    public void testClassDescriptorIsComputedOncePerClass() {
+        // pure metadata, no backend involved
+        ClassDescriptor descriptor = ClassDescriptor.of(TestLazyObject.class);
+        assertTrue(descriptor == ClassDescriptor.of(TestLazyObject.class));
+        assertTrue(descriptor.isPersistable());
+        assertTrue(descriptor.hasLazyFields());
+        assertEquals(4, descriptor.fields().size());
+
+        ClassDescriptor.FieldDescriptor items = descriptor.field("items");
+        assertEquals(ClassDescriptor.Kind.LIST, items.kind());
+        assertEquals(String.class, items.elementType());
+        assertTrue(items.isLazy());
+        ClassDescriptor.FieldDescriptor child = descriptor.field("child");
+        assertEquals(ClassDescriptor.Kind.NESTED, child.kind());
+        assertTrue(child.isLazy());
+        assertFalse(descriptor.field("name").isLazy());
+
+        TestLazyObject obj = new TestLazyObject();
+        obj.setId("descriptor-1");
+        assertEquals("descriptor-1", descriptor.idOf(obj));
+
+        ClassDescriptor simple = ClassDescriptor.of(TestSimpleObject.class);
+        assertFalse(simple.hasLazyFields());
+        assertEquals(ClassDescriptor.Converter.INT, simple.field("value").converter());
+        assertEquals(ClassDescriptor.Converter.DATE, simple.field("createdAt").converter());
+        assertEquals("createdAt", simple.field("createdAt").redisName());
+        assertFalse(ClassDescriptor.of(String.class).isPersistable());
+    }
+
+    @Test
+    public void testDeclaredFieldNamesAndAliases() {
+        ClassDescriptor descriptor = ClassDescriptor.of(TestRepoObject.class);
+        assertEquals("authorName", descriptor.fieldForStoredName("Author Name").name());
+        assertEquals("url", descriptor.fieldForStoredName("htmlUrl").name());
+        assertNull(descriptor.fieldForStoredName("html_url"));
+
+        // an alias is read when the declared name is missing, writes go to the declared name
+        Jedis jedis = new Jedis("localhost", 6379);
+        jedis.select(TEST_DB);
+        try {
+            jedis.hset("repo-alias", "htmlUrl", "https://github.com/test/alias");
+            jedis.hset("repo-alias", "Author Name", "hubot");
+
+            TestRepoObject query = new TestRepoObject();
+            query.setId("repo-alias");
+            TestRepoObject loaded = (TestRepoObject) redisDB.load(query);
+            assertEquals("https://github.com/test/alias", loaded.getUrl());
+            // the declared name wins over an alias once both are stored, an empty value never does
+            jedis.hset("repo-alias", "Url", "");
+            jedis.hset("repo-alias", "url", "https://github.com/test/declared");
+            assertEquals("https://github.com/test/declared", ((TestRepoObject) redisDB.load(query)).getUrl());
+
+            loaded.setAuthorName("monalisa");
+            redisDB.persist(loaded);
+            assertEquals("monalisa", jedis.hget("repo-alias", "Author Name"));
+            assertNull(jedis.hget("repo-alias", "authorName"));
+        } finally {
+            jedis.close();
+        }
+    }
+
+    @Test
+    public void testBucketedObjectsShareHashes() {
+        List<String> ids = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            TestBucketedObject obj = new TestBucketedObject();
+            obj.setId("bucketed-" + i);
+            obj.setName(i == 0 ? "unit\u001Fseparator\u001B\\" : "Object " + i);
+            obj.setCount(i);
+            obj.setTags(java.util.Arrays.asList("a", "b"));
+            assertTrue(redisDB.persist(obj));
+            ids.add(obj.getId());
+        }
+
+        try (Jedis jedis = new Jedis("localhost", 6379)) {
+            jedis.select(TEST_DB);
+            assertFalse(jedis.exists("bucketed-0"));
+            java.util.Set<String> buckets = jedis.keys("_bucket:" + TestBucketedObject.class.getName() + ":*");
+            assertTrue(buckets.size() <= 4);
+            long stored = 0;
+            for (String bucket : buckets) {
+                stored += jedis.hlen(bucket);
+            }
+            assertEquals(20, stored);
+        }
+
+        List<TestBucketedObject> loaded = redisDB.loadAll(TestBucketedObject.class, ids);
+        assertEquals(20, loaded.size());
+        assertEquals("unit\u001Fseparator\u001B\\", loaded.get(0).getName());
+        assertEquals(7, loaded.get(7).getCount());
+        assertEquals(java.util.Arrays.asList("a", "b"), loaded.get(7).getTags());
+        assertNull(loaded.get(7).getNote());
+
+        loaded.get(7).setNote("changed");
+        assertTrue(redisDB.persist(loaded.get(7)));
+        TestBucketedObject query = new TestBucketedObject();
+        query.setId("bucketed-7");
+        TestBucketedObject reloaded = (TestBucketedObject) redisDB.load(query);
+        assertEquals("changed", reloaded.getNote());
+        assertEquals("Object 7", reloaded.getName());
+
+        assertTrue(redisDB.delete(reloaded));
+        assertFalse(redisDB.delete(reloaded));
+        assertNull(redisDB.load(query));
+        assertEquals(19, redisDB.scanIds(TestBucketedObject.class, 100).count());
+    }
+
+    @Test
+    public void testBucketsStayListpackEncoded() {
+        ClassDescriptor descriptor = ClassDescriptor.of(TestBucketedObject.class);
+        assertEquals(4, descriptor.bucketKeys().size());
+        for (int i = 0; i < 150; i++) {
+            TestBucketedObject obj = new TestBucketedObject();
+            obj.setId("listpack-" + i);
+            obj.setName("Object " + i);
+            obj.setCount(i);
+            assertTrue(redisDB.persist(obj));
+        }
+
+        try (Jedis jedis = new Jedis("localhost", 6379)) {
+            jedis.select(TEST_DB);
+            for (String bucket : descriptor.bucketKeys()) {
+                // listpack since redis 7, ziplist before
+                assertTrue(java.util.Arrays.asList("listpack", "ziplist").contains(jedis.objectEncoding(bucket)));
+            }
+        }
+    }
+
+    @Test
+    public void testQueriesCountSumAndFilterOnEveryBackend() {
+        for (RedisDB db : java.util.Arrays.asList(redisDB, new RedisDB(new InMemoryBackend()))) {
+            for (int i = 0; i < 10; i++) {
+                TestQueryObject obj = new TestQueryObject();
+                obj.setId("query-" + i);
+                obj.setStars(i);
+                obj.setBytes(9007199254740993L + i);
+                obj.setCreated(Date.from(java.time.LocalDate.of(2024, 1, 1 + i)
+                    .atStartOfDay(java.time.ZoneId.systemDefault()).toInstant()));
+                obj.setUrl(i % 3 == 0 ? null : "https://example.com/" + i);
+                assertTrue(db.persist(obj));
+
+                TestBucketedObject bucketed = new TestBucketedObject();
+                bucketed.setId("query-bucketed-" + i);
+                bucketed.setName(i % 2 == 0 ? "even" : "odd\u001Fone");
+                bucketed.setCount(i);
+                assertTrue(db.persist(bucketed));
+            }
+            Date fifth = Date.from(java.time.LocalDate.of(2024, 1, 5)
+                .atStartOfDay(java.time.ZoneId.systemDefault()).toInstant());
+
+            assertEquals(10, db.count(TestQueryObject.class, Filter.all()));
+            assertEquals(4, db.count(TestQueryObject.class, Filter.isEmpty("url")));
+            assertEquals(9, db.count(TestQueryObject.class, Filter.ne("url", "https://example.com/5")));
+            assertEquals(39L, db.sum(TestQueryObject.class, "stars", Filter.ge("created", fifth)));
+            // past 2^53 a double would drop the last digits
+            assertEquals(10 * 9007199254740993L + 45, db.sum(TestQueryObject.class, "bytes", Filter.all()));
+
+            List<String> ids = db.filterIds(TestQueryObject.class,
+                Filter.and(Filter.gt("stars", 6), Filter.not(Filter.isEmpty("url"))));
+            java.util.Collections.sort(ids);
+            assertEquals(java.util.Arrays.asList("query-7", "query-8"), ids);
+
+            List<TestQueryObject> loaded = db.filter(TestQueryObject.class,
+                Filter.or(Filter.eq("url", "https://example.com/5"), Filter.lt("created", fifth)));
+            assertEquals(5, loaded.size());
+
+            assertEquals(5, db.count(TestBucketedObject.class, Filter.eq("name", "odd\u001Fone")));
+            assertEquals(20L, db.sum(TestBucketedObject.class, "count", Filter.eq("name", "even")));
+
+            try {
+                db.count(TestQueryObject.class, Filter.gt("url", "a"));
+                fail("Should throw exception for ordering a String field");
+            } catch (RuntimeException e) {
+                assertTrue(e.getMessage().contains("has no order"));
+            }
+        }
+    }
+
     // test classes
     @PersistableObject
     static class TestSimpleObject {
@@ -263,4 +1408,375 @@ public class AppTest {
         public String getName() { return name; }
         public void setName(String name) { this.name = name; }
     }
+
+    @PersistableObject
+    static class TestPrimitiveObject {
+        @Id
+        @PersistableField
+        private String id;
+
+        @PersistableField
+        private long count;
+
+        @PersistableField
+        private double score;
+
+        @PersistableField
+        private boolean active;
+
+        public String getId() { return id; }
+        public void setId(String id) { this.id = id; }
+        public long getCount() { return count; }
+        public void setCount(long count) { this.count = count; }
+        public double getScore() { return score; }
+        public void setScore(double score) { this.score = score; }
+        public boolean isActive() { return active; }
+        public void setActive(boolean active) { this.active = active; }
+    }
+
+    @PersistableObject
+    static class TestRepoObject {
+        @Id
+        @PersistableField
+        private String id;
+
+        @PersistableField(aliases = {"Url", "URL", "htmlUrl"})
+        private String url;
+
+        @PersistableField(name = "Author Name")
+        private String authorName;
+
+        public String getId() { return id; }
+        public void setId(String id) { this.id = id; }
+        public String getUrl() { return url; }
+        public void setUrl(String url) { this.url = url; }
+        public String getAuthorName() { return authorName; }
+        public void setAuthorName(String authorName) { this.authorName = authorName; }
+    }
+
+    @PersistableObject
+    static class TestObjectWithChildren {
+        @Id
+        @PersistableField
+        private String id;
+
+        @PersistableField
+        private List<TestSimpleObject> children;
+
+        public String getId() { return id; }
+        public void setId(String id) { this.id = id; }
+        public List<TestSimpleObject> getChildren() { return children; }
+        public void setChildren(List<TestSimpleObject> children) { this.children = children; }
+    }
+
+    @PersistableObject
+    static class TestLazyObject {
+        @Id
+        @PersistableField
+        private String id;
+
+        @PersistableField
+        private String name;
+
+        @PersistableField
+        private List<String> items;
+
+        @PersistableField
+        private TestSimpleObject child;
+
+        public String getId() { return id; }
+        public void setId(String id) { this.id = id; }
+        public String getName() { return name; }
+        public void setName(String name) { this.name = name; }
+        @LazyLoad(field = "items")
+        public List<String> getItems() { return items; }
+        public void setItems(List<String> items) { this.items = items; }
+        @LazyLoad(field = "child")
+        public TestSimpleObject getChild() { return child; }
+        public void setChild(TestSimpleObject child) { this.child = child; }
+    }
+
+    @PersistableObject
+    static class TestLazyInitializedObject {
+        @Id
+        @PersistableField
+        private String id;
+
+        @PersistableField
+        private int stars;
+
+        @PersistableField
+        private List<String> tags = new ArrayList<>();
+
+        public String getId() { return id; }
+        public void setId(String id) { this.id = id; }
+        @LazyLoad(field = "stars")
+        public int getStars() { return stars; }
+        public void setStars(int stars) { this.stars = stars; }
+        @LazyLoad(field = "tags")
+        public List<String> getTags() { return tags; }
+        public void setTags(List<String> tags) { this.tags = tags; }
+    }
+
+    @PersistableObject
+    static class TestIndexedObject {
+        @Id
+        @PersistableField
+        private String id;
+
+        @PersistableField(indexed = true)
+        private Date date;
+
+        @PersistableField(indexed = true)
+        private int stars;
+
+        public String getId() { return id; }
+        public void setId(String id) { this.id = id; }
+        public Date getDate() { return date; }
+        public void setDate(Date date) { this.date = date; }
+        public int getStars() { return stars; }
+        public void setStars(int stars) { this.stars = stars; }
+    }
+
+    @PersistableObject
+    static class TestCyclicObject {
+        @Id
+        @PersistableField
+        private String id;
+
+        @PersistableField
+        private TestCyclicObject partner;
+
+        public String getId() { return id; }
+        public void setId(String id) { this.id = id; }
+        public TestCyclicObject getPartner() { return partner; }
+        public void setPartner(TestCyclicObject partner) { this.partner = partner; }
+    }
+
+    @PersistableObject(encoding = Encoding.BINARY, schemaVersion = 2)
+    static class TestBinaryObject {
+        @Id
+        @PersistableField
+        private String id;
+
+        @PersistableField
+        private String title;
+
+        @PersistableField
+        private int count;
+
+        @PersistableField
+        private Long size;
+
+        @PersistableField
+        private Date createdAt;
+
+        @PersistableField
+        private List<String> tags;
+
+        @PersistableField
+        private TestSimpleObject author;
+
+        public String getId() { return id; }
+        public void setId(String id) { this.id = id; }
+        public String getTitle() { return title; }
+        public void setTitle(String title) { this.title = title; }
+        public int getCount() { return count; }
+        public void setCount(int count) { this.count = count; }
+        public Long getSize() { return size; }
+        public void setSize(Long size) { this.size = size; }
+        public Date getCreatedAt() { return createdAt; }
+        public void setCreatedAt(Date createdAt) { this.createdAt = createdAt; }
+        public List<String> getTags() { return tags; }
+        public void setTags(List<String> tags) { this.tags = tags; }
+        public TestSimpleObject getAuthor() { return author; }
+        public void setAuthor(TestSimpleObject author) { this.author = author; }
+    }
+
+    @PersistableObject(encoding = Encoding.BINARY)
+    static class TestBinaryV1 {
+        @Id
+        @PersistableField
+        private String id;
+
+        @PersistableField
+        private String title;
+
+        @PersistableField
+        private String obsolete;
+
+        @PersistableField
+        private int count;
+
+        public String getId() { return id; }
+        public void setId(String id) { this.id = id; }
+        public String getTitle() { return title; }
+        public void setTitle(String title) { this.title = title; }
+        public String getObsolete() { return obsolete; }
+        public void setObsolete(String obsolete) { this.obsolete = obsolete; }
+        public int getCount() { return count; }
+        public void setCount(int count) { this.count = count; }
+    }
+
+    @PersistableObject(encoding = Encoding.BINARY, schemaVersion = 2)
+    static class TestBinaryV2 {
+        @Id
+        @PersistableField(binaryId = 0)
+        private String id;
+
+        @PersistableField(binaryId = 3)
+        private int count;
+
+        @PersistableField(binaryId = 1)
+        private String title;
+
+        @PersistableField(binaryId = 4)
+        private Double rating;
+
+        public String getId() { return id; }
+        public void setId(String id) { this.id = id; }
+        public int getCount() { return count; }
+        public void setCount(int count) { this.count = count; }
+        public String getTitle() { return title; }
+        public void setTitle(String title) { this.title = title; }
+        public Double getRating() { return rating; }
+        public void setRating(Double rating) { this.rating = rating; }
+    }
+
+    @PersistableObject
+    static class TestNativeListObject {
+        @Id
+        @PersistableField
+        private String id;
+
+        @PersistableField(listStorage = ListStorage.LIST)
+        private List<String> tags;
+
+        @PersistableField(listStorage = ListStorage.SET)
+        private List<String> labels;
+
+        @PersistableField(listStorage = ListStorage.LIST)
+        private List<TestSimpleObject> children;
+
+        public String getId() { return id; }
+        public void setId(String id) { this.id = id; }
+        public List<String> getTags() { return tags; }
+        public void setTags(List<String> tags) { this.tags = tags; }
+        public List<String> getLabels() { return labels; }
+        public void setLabels(List<String> labels) { this.labels = labels; }
+        public List<TestSimpleObject> getChildren() { return children; }
+        public void setChildren(List<TestSimpleObject> children) { this.children = children; }
+    }
+
+    @PersistableObject
+    static class TestCodecFallbackObject {
+        @Id
+        @PersistableField
+        private String id;
+
+        @PersistableField
+        private String secret;
+
+        @PersistableField
+        private int count;
+
+        TestCodecFallbackObject() {
+        }
+
+        TestCodecFallbackObject(String id, String secret) {
+            this.id = id;
+            this.secret = secret;
+        }
+
+        public String getId() { return id; }
+        public void setId(String id) { this.id = id; }
+        public String getSecret() { return secret; }
+        public int getCount() { return count; }
+        public void setCount(int count) { this.count = count; }
+    }
+
+    @PersistableObject(compressAbove = 256)
+    static class TestCompressedObject {
+        @Id
+        @PersistableField
+        private String id;
+
+        @PersistableField
+        private String title;
+
+        @PersistableField
+        private String body;
+
+        @PersistableField(compressAbove = 0)
+        private String uncompressed;
+
+        public String getId() { return id; }
+        public void setId(String id) { this.id = id; }
+        public String getTitle() { return title; }
+        public void setTitle(String title) { this.title = title; }
+        public String getBody() { return body; }
+        public void setBody(String body) { this.body = body; }
+        public String getUncompressed() { return uncompressed; }
+        public void setUncompressed(String uncompressed) { this.uncompressed = uncompressed; }
+    }
+
+    @PersistableObject(encoding = Encoding.BUCKETED, expectedObjects = 400)
+    static class TestBucketedObject {
+        @Id
+        @PersistableField
+        private String id;
+
+        @PersistableField
+        private String name;
+
+        @PersistableField
+        private int count;
+
+        @PersistableField
+        private List<String> tags;
+
+        @PersistableField
+        private String note;
+
+        public String getId() { return id; }
+        public void setId(String id) { this.id = id; }
+        public String getName() { return name; }
+        public void setName(String name) { this.name = name; }
+        public int getCount() { return count; }
+        public void setCount(int count) { this.count = count; }
+        public List<String> getTags() { return tags; }
+        public void setTags(List<String> tags) { this.tags = tags; }
+        public String getNote() { return note; }
+        public void setNote(String note) { this.note = note; }
+    }
+
+    @PersistableObject
+    static class TestQueryObject {
+        @Id
+        @PersistableField
+        private String id;
+
+        @PersistableField
+        private int stars;
+
+        @PersistableField
+        private Date created;
+
+        @PersistableField(aliases = {"URL"})
+        private String url;
+
+        @PersistableField
+        private long bytes;
+
+        public String getId() { return id; }
+        public void setId(String id) { this.id = id; }
+        public int getStars() { return stars; }
+        public void setStars(int stars) { this.stars = stars; }
+        public Date getCreated() { return created; }
+        public void setCreated(Date created) { this.created = created; }
+        public String getUrl() { return url; }
+        public void setUrl(String url) { this.url = url; }
+        public long getBytes() { return bytes; }
+        public void setBytes(long bytes) { this.bytes = bytes; }
+    }
 }